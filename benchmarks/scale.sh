@@ -0,0 +1,13 @@
+#!/bin/sh
+
+# measure poll time and CPU of bejmx as the number of engines and entities grows.
+# each scale point runs in a new JVM, with the simulated engines in a child process.
+# usage: scale.sh [extra ScaleDriver options], e.g., scale.sh -latencyMicros 200 -churnMillis 5000
+
+JAR=`dirname $0`/target/benchmarks.jar
+
+for engines in 1 10 50; do
+  for entities in 100 1000 5000; do
+    java -cp $JAR com.tibco.metrics.bejmx.ScaleDriver -engines $engines -entities $entities -interval 10 -polls 6 "$@" | grep '^engines='
+  done
+done
@@ -0,0 +1,27 @@
+/*
+ * Benchmarks.java - run JMH benchmarks of bejmx with the allocation profiler.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class of benchmarks.jar. It accepts the command line options of JMH,
+ * e.g., a regex of benchmarks to run, and always adds the GC profiler, so
+ * that the allocation rate per operation (gc.alloc.rate.norm) is reported
+ * with the throughput.
+ *
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
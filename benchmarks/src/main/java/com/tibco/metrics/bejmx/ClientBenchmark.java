@@ -0,0 +1,97 @@
+/*
+ * ClientBenchmark.java - throughput of encoding report rows and headers.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode a poll of report rows with Client.serializeMetrics, as the polling
+ * thread does after attributes are fetched, and build report headers.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+	@Param({ "BEEntityCache", "BEAgentEntity", "RTCTxnManagerReport" })
+	public String statType;
+
+	// number of entities in a poll
+	@Param({ "1000" })
+	public int entities;
+
+	private Client client;
+	private Client.RowPlan plan;
+	private String[] names;
+	private Object[][] rows;
+	private CsvEncoder out = new CsvEncoder();
+
+	@Setup
+	public void setup() {
+		client = new Client("bench", "localhost", 9899);
+		plan = client.getRowPlan(statType);
+		String[] cols = Client.getReportColumns(statType);
+		int dateCol = Client.getDateColumn(statType);
+		names = new String[entities];
+		rows = new Object[entities][];
+		for (int i = 0; i < entities; i++) {
+			names[i] = "be.gen.Concept" + i;
+			Object[] row = new Object[cols.length];
+			for (int c = 0; c < cols.length; c++) {
+				row[c] = getValue(i, c);
+			}
+			row[dateCol] = "2015-07-24T10:20:30.456";
+			if ("BEEntityCache".equals(statType)) {
+				row[0] = names[i];
+			}
+			rows[i] = row;
+		}
+	}
+
+	// mix of counters, averages, ids and missing attributes, as returned by BE
+	// MBeans
+	static Object getValue(int entity, int col) {
+		switch (col % 4) {
+		case 0:
+			return Long.valueOf(entity * 1000L + col);
+		case 1:
+			return Double.valueOf(0.125 * col + entity);
+		case 2:
+			return Integer.valueOf(col);
+		default:
+			return null;
+		}
+	}
+
+	@Benchmark
+	public int serializeMetrics() {
+		out.reset();
+		for (int i = 0; i < entities; i++) {
+			Client.serializeMetrics(plan, names[i], rows[i], out);
+		}
+		return out.size();
+	}
+
+	@Benchmark
+	public String getHeader() {
+		return client.getHeader(statType);
+	}
+}
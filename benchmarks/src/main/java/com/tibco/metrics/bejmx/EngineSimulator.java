@@ -0,0 +1,180 @@
+/*
+ * EngineSimulator.java - simulated BusinessEvents engines exposed over local RMI JMX connectors.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * A simulated BE engine with an MBean server of its own, exposed at
+ * service:jmx:rmi:///jndi/rmi://localhost:&lt;port&gt;/jmxrmi. It registers
+ * the MBeans of BEEntityCache, BEAgentEntity and RTCTxnManagerReport for a
+ * configured number of entities. With churn enabled, one entity of the cache
+ * and of the agent is replaced by a new entity periodically, so entities
+ * appear and disappear as in a running application.
+ *
+ * Run as a process with N engines on consecutive ports:
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.tibco.metrics.bejmx.EngineSimulator -engines 10 -entities 500 -port 19800 -latencyMicros 200 -churnMillis 5000
+ * </pre>
+ *
+ */
+public class EngineSimulator {
+
+	private int port;
+	private int entities;
+	private long latencyMicros;
+
+	private MBeanServer mbs;
+	private Registry registry;
+	private JMXConnectorServer server;
+
+	// ids of registered entities, and the next id for churn
+	private List<Integer> active = new ArrayList<Integer>();
+	private int nextId;
+	private Random random;
+
+	/**
+	 * Construct a simulated engine.
+	 *
+	 * @param port
+	 *            RMI registry port of the JMX connector
+	 * @param entities
+	 *            number of entities of cache and agent
+	 * @param latencyMicros
+	 *            microseconds to wait before each request is answered
+	 */
+	public EngineSimulator(int port, int entities, long latencyMicros) {
+		this.port = port;
+		this.entities = entities;
+		this.latencyMicros = latencyMicros;
+		this.nextId = entities;
+		this.random = new Random(port);
+	}
+
+	/**
+	 * Register the MBeans of all entities, and start the JMX connector.
+	 *
+	 * @throws Exception
+	 *             when failed to register MBeans or to start the connector
+	 */
+	public void start() throws Exception {
+		mbs = MBeanServerFactory.newMBeanServer();
+		for (int i = 0; i < entities; i++) {
+			register(i);
+		}
+		mbs.registerMBean(new SimulatedEntity("RTCTxnManagerReport", "RTCTxnManagerReport", 0, latencyMicros),
+				new ObjectName("com.tibco.be:service=RTCTxnManagerReport"));
+		registry = LocateRegistry.createRegistry(port);
+		server = JMXConnectorServerFactory.newJMXConnectorServer(
+				new JMXServiceURL(String.format("service:jmx:rmi:///jndi/rmi://localhost:%d/jmxrmi", port)), null,
+				mbs);
+		server.start();
+	}
+
+	private void register(int id) throws Exception {
+		String name = "Concept" + id;
+		mbs.registerMBean(new SimulatedEntity("BEEntityCache", "be.gen." + name, id, latencyMicros),
+				getCacheName(id));
+		mbs.registerMBean(new SimulatedEntity("BEAgentEntity", "be.gen." + name, id, latencyMicros),
+				getAgentName(id));
+		active.add(id);
+	}
+
+	private static ObjectName getCacheName(int id) throws Exception {
+		return new ObjectName("com.tibco.be:service=Cache,name=Concept" + id);
+	}
+
+	private static ObjectName getAgentName(int id) throws Exception {
+		return new ObjectName("com.tibco.be:type=Agent,agentId=1,subType=Entity,entityId=be.gen.Concept" + id);
+	}
+
+	/**
+	 * Replace a random entity by a new one.
+	 */
+	public synchronized void churn() {
+		try {
+			if (active.size() > 0) {
+				int id = active.remove(random.nextInt(active.size()));
+				mbs.unregisterMBean(getCacheName(id));
+				mbs.unregisterMBean(getAgentName(id));
+			}
+			register(nextId++);
+		} catch (Exception e) {
+			System.out.println(String.format("Failed to replace entity of engine %d: %s", port, e.getMessage()));
+		}
+	}
+
+	/**
+	 * Stop the JMX connector.
+	 */
+	public void stop() {
+		try {
+			server.stop();
+			UnicastRemoteObject.unexportObject(registry, true);
+		} catch (Exception e) {
+			// do nothing
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int engines = 1;
+		int entities = 100;
+		int port = 19800;
+		long latencyMicros = 0;
+		long churnMillis = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-engines".equals(args[i])) {
+				engines = Integer.parseInt(args[i + 1]);
+			} else if ("-entities".equals(args[i])) {
+				entities = Integer.parseInt(args[i + 1]);
+			} else if ("-port".equals(args[i])) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if ("-latencyMicros".equals(args[i])) {
+				latencyMicros = Long.parseLong(args[i + 1]);
+			} else if ("-churnMillis".equals(args[i])) {
+				churnMillis = Long.parseLong(args[i + 1]);
+			}
+		}
+
+		final List<EngineSimulator> sims = new ArrayList<EngineSimulator>();
+		for (int i = 0; i < engines; i++) {
+			EngineSimulator sim = new EngineSimulator(port + i, entities, latencyMicros);
+			sim.start();
+			sims.add(sim);
+		}
+		if (churnMillis > 0) {
+			ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+			timer.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					for (EngineSimulator sim : sims) {
+						sim.churn();
+					}
+				}
+			}, churnMillis, churnMillis, TimeUnit.MILLISECONDS);
+		}
+
+		// signal to the benchmark driver that engines are ready
+		System.out.println(String.format("Simulator ready: %d engines with %d entities on ports %d-%d", engines,
+				entities, port, port + engines - 1));
+		System.out.flush();
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
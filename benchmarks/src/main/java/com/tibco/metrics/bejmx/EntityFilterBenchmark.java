@@ -0,0 +1,75 @@
+/*
+ * EntityFilterBenchmark.java - throughput of include/ignore decisions for entity names.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluate BEJMX.isIgnoredEntity for all entity names of a poll, with
+ * include patterns as typically configured for BEEntityCache. With more
+ * names than EntityFilter.MAX_CACHED_NAMES, the memoized decisions are
+ * evicted, and the patterns are evaluated again.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityFilterBenchmark {
+
+	// number of distinct entity names in a poll
+	@Param({ "2000", "20000" })
+	public int entities;
+
+	private String[] names;
+
+	@Setup
+	public void setup() {
+		Set<String> includes = new HashSet<String>();
+		includes.add("Order.*");
+		includes.add("Account[0-9]+");
+		includes.add(".*Event");
+		includes.add("Customer(Profile|Address)?_.*");
+		includes.add("Concept[0-9]*5");
+		BEJMX.ignoreInternalEntity = true;
+		BEJMX.statTypes.clear();
+		BEJMX.statTypes.put("BEEntityCache", includes);
+		BEJMX.compileFilters();
+
+		String[] stems = { "Order", "Account", "PaymentEvent", "CustomerProfile_", "Concept", "Inventory",
+				"com.tibco.cep.runtime.model.element.impl.Table", "Shipment--ObjectTableIds" };
+		names = new String[entities];
+		for (int i = 0; i < entities; i++) {
+			names[i] = stems[i % stems.length] + i;
+		}
+	}
+
+	@Benchmark
+	public int isIgnoredEntity() {
+		int ignored = 0;
+		for (String name : names) {
+			if (BEJMX.isIgnoredEntity(name, "BEEntityCache")) {
+				ignored++;
+			}
+		}
+		return ignored;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * ReportFileBenchmark.java - throughput of report file name lookup.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Return the name of the report file of the current day, which is looked up
+ * by every write of a report.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportFileBenchmark {
+
+	private ReportFile file;
+
+	@Setup
+	public void setup() {
+		file = new ReportFile(null, "engine_localhost_9899", "BEEntityCache", "ClassName,DateTime\n",
+				ReportPolicy.getDefault());
+	}
+
+	@Benchmark
+	public String getFilename() {
+		return file.getFilename();
+	}
+}
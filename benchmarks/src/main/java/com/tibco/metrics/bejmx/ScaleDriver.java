@@ -0,0 +1,267 @@
+/*
+ * ScaleDriver.java - measure poll time and CPU of BEJMX against simulated engines.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Benchmark driver of BEJMX at scale. It starts EngineSimulator in a child
+ * process with the requested number of engines and entities, writes a BEJMX
+ * configuration that monitors all of them, and runs BEJMX in this JVM. After
+ * warm-up polls, it reads the collector statistics of all engines from the
+ * PollStats MBeans, and the CPU time of this process, so the CPU used by the
+ * simulated engines is not counted. One scale point is measured per run,
+ * e.g.,
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.tibco.metrics.bejmx.ScaleDriver -engines 10 -entities 1000 -interval 5 -polls 6
+ * </pre>
+ *
+ * Other BEJMX properties are set by -prop key=value, e.g., -prop
+ * connectionsPerEngine=4.
+ *
+ */
+public class ScaleDriver {
+
+	private static final String[] STAT_TYPES = { "BEEntityCache", "BEAgentEntity", "RTCTxnManagerReport" };
+
+	// totals of all PollStats MBeans at a point in time
+	static class Snapshot {
+		long polls = 0;
+		double pollMillis = 0;
+		long maxPollMillis = 0;
+		long[] histogram = new long[PollStats.BUCKETS];
+		long roundTrips = 0;
+		long skippedSlots = 0;
+		long cpuNanos = 0;
+		long time = System.nanoTime();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int engines = 1;
+		int entities = 100;
+		int port = 19800;
+		int interval = 5;
+		int warmup = 2;
+		int polls = 6;
+		long latencyMicros = 0;
+		long churnMillis = 0;
+		Properties props = new Properties();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if ("-engines".equals(args[i])) {
+				engines = Integer.parseInt(args[i + 1]);
+			} else if ("-entities".equals(args[i])) {
+				entities = Integer.parseInt(args[i + 1]);
+			} else if ("-port".equals(args[i])) {
+				port = Integer.parseInt(args[i + 1]);
+			} else if ("-interval".equals(args[i])) {
+				interval = Integer.parseInt(args[i + 1]);
+			} else if ("-warmup".equals(args[i])) {
+				warmup = Integer.parseInt(args[i + 1]);
+			} else if ("-polls".equals(args[i])) {
+				polls = Integer.parseInt(args[i + 1]);
+			} else if ("-latencyMicros".equals(args[i])) {
+				latencyMicros = Long.parseLong(args[i + 1]);
+			} else if ("-churnMillis".equals(args[i])) {
+				churnMillis = Long.parseLong(args[i + 1]);
+			} else if ("-prop".equals(args[i])) {
+				String[] kv = args[i + 1].split("=", 2);
+				props.setProperty(kv[0], kv.length > 1 ? kv[1] : "");
+			}
+		}
+
+		Process simulator = startSimulator(engines, entities, port, latencyMicros, churnMillis);
+		try {
+			File folder = Files.createTempDirectory("bejmx-scale").toFile();
+			File config = writeConfig(folder, engines, port, interval, props);
+			runBEJMX(config);
+
+			// first poll starts at the next aligned slot
+			Thread.sleep((warmup + 1) * interval * 1000L);
+			Snapshot start = snapshot();
+			Thread.sleep(polls * interval * 1000L);
+			Snapshot end = snapshot();
+			report(engines, entities, start, end);
+		} finally {
+			simulator.destroy();
+		}
+		System.exit(0);
+	}
+
+	private static Process startSimulator(int engines, int entities, int port, long latencyMicros, long churnMillis)
+			throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(java);
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(EngineSimulator.class.getName());
+		cmd.add("-engines");
+		cmd.add(String.valueOf(engines));
+		cmd.add("-entities");
+		cmd.add(String.valueOf(entities));
+		cmd.add("-port");
+		cmd.add(String.valueOf(port));
+		cmd.add("-latencyMicros");
+		cmd.add(String.valueOf(latencyMicros));
+		cmd.add("-churnMillis");
+		cmd.add(String.valueOf(churnMillis));
+		final Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+
+		// wait until all engines are ready, and then keep draining the output
+		final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null) {
+			System.out.println(line);
+			if (line.startsWith("Simulator ready")) {
+				break;
+			}
+		}
+		if (null == line) {
+			throw new IOException("Simulator exited before engines are ready");
+		}
+		Thread drain = new Thread() {
+			public void run() {
+				try {
+					String l;
+					while ((l = in.readLine()) != null) {
+						System.out.println(l);
+					}
+				} catch (IOException e) {
+					// simulator is stopped
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+		return process;
+	}
+
+	private static File writeConfig(File folder, int engines, int port, int interval, Properties extra)
+			throws IOException {
+		Properties props = new Properties();
+		props.setProperty("interval", String.valueOf(interval));
+		props.setProperty("maxThreads", String.valueOf(engines));
+		props.setProperty("reportFolder", new File(folder, "reports").getPath());
+		props.setProperty("collectorMBeans", "true");
+		for (int i = 0; i < STAT_TYPES.length; i++) {
+			props.setProperty("report." + (i + 1), STAT_TYPES[i]);
+		}
+		for (int i = 0; i < engines; i++) {
+			props.setProperty("engine.name." + i, "sim" + i);
+			props.setProperty("engine.jmxport." + i, String.valueOf(port + i));
+		}
+		props.putAll(extra);
+
+		File config = new File(folder, "config.properties");
+		OutputStream out = new FileOutputStream(config);
+		try {
+			props.store(out, "generated by ScaleDriver");
+		} finally {
+			out.close();
+		}
+		return config;
+	}
+
+	private static void runBEJMX(final File config) {
+		Thread thread = new Thread("bejmx-main") {
+			public void run() {
+				try {
+					BEJMX.main(new String[] { "-config", config.getPath() });
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static Snapshot snapshot() throws Exception {
+		Snapshot s = new Snapshot();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Set<ObjectName> names = server.queryNames(new ObjectName("com.tibco.metrics.bejmx:type=PollStats,*"), null);
+		Map<String, Long> skipped = new HashMap<String, Long>();
+		for (ObjectName name : names) {
+			long polls = (Long) server.getAttribute(name, "Polls");
+			s.polls += polls;
+			s.pollMillis += polls * (Double) server.getAttribute(name, "MeanPollMillis");
+			s.maxPollMillis = Math.max(s.maxPollMillis, (Long) server.getAttribute(name, "MaxPollMillis"));
+			long[] histogram = (long[]) server.getAttribute(name, "PollMillisHistogram");
+			for (int i = 0; i < histogram.length; i++) {
+				s.histogram[i] += histogram[i];
+			}
+			s.roundTrips += (Long) server.getAttribute(name, "RoundTrips");
+
+			// skipped slots are counted per engine
+			skipped.put(name.getKeyProperty("engine"), (Long) server.getAttribute(name, "SkippedSlots"));
+		}
+		for (Long count : skipped.values()) {
+			s.skippedSlots += count;
+		}
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			s.cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return s;
+	}
+
+	private static void report(int engines, int entities, Snapshot start, Snapshot end) {
+		long polls = end.polls - start.polls;
+		if (0 == polls) {
+			System.out.println("No poll is completed in the measurement period");
+			return;
+		}
+
+		// a poll of an engine collects all stat types
+		double enginePolls = (double) polls / STAT_TYPES.length;
+		long[] histogram = new long[PollStats.BUCKETS];
+		for (int i = 0; i < histogram.length; i++) {
+			histogram[i] = end.histogram[i] - start.histogram[i];
+		}
+		double wallMillis = (end.time - start.time) / 1000000.0;
+		double cpuMillis = (end.cpuNanos - start.cpuNanos) / 1000000.0;
+		System.out.println(String.format(
+				"engines=%d entities=%d enginePolls=%.0f meanEnginePollMillis=%.1f p99StatPollMillis<=%d maxStatPollMillis=%d "
+						+ "cpuMillisPerEnginePoll=%.2f cpuCores=%.2f roundTripsPerEnginePoll=%.0f skippedSlots=%d",
+				engines, entities, enginePolls, (end.pollMillis - start.pollMillis) / enginePolls,
+				getPercentile(histogram, 0.99), end.maxPollMillis, cpuMillis / enginePolls, cpuMillis / wallMillis,
+				(end.roundTrips - start.roundTrips) / enginePolls, end.skippedSlots - start.skippedSlots));
+	}
+
+	// upper bound of the histogram bucket of a percentile
+	private static long getPercentile(long[] histogram, double fraction) {
+		long total = 0;
+		for (long c : histogram) {
+			total += c;
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (histogram.length - 1);
+	}
+}
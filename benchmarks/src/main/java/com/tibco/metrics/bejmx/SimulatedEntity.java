@@ -0,0 +1,154 @@
+/*
+ * SimulatedEntity.java - dynamic MBean that simulates stats of one BusinessEvents entity.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * MBean of a simulated BE entity, i.e., a cache of a concept, an agent
+ * entity, or the RTC transaction manager. Attributes are the report columns
+ * of the stat type. Cumulative counters grow at a fixed rate per entity, and
+ * other values vary with time, so consecutive polls see evolving values.
+ * Each attribute request or operation waits for the configured latency
+ * before it is answered, to simulate the response time of a busy engine.
+ *
+ */
+public class SimulatedEntity implements DynamicMBean {
+
+	private String name;
+	private Set<String> attributes = new HashSet<String>();
+	private Set<String> counters = new HashSet<String>();
+	private long latencyNanos;
+
+	// counters grow from the time of creation or the last reset
+	private long start = System.currentTimeMillis();
+	private double ratePerSecond;
+	private int seed;
+
+	private MBeanInfo info;
+
+	/**
+	 * Construct a simulated entity.
+	 *
+	 * @param statType
+	 *            BEEntityCache, BEAgentEntity or RTCTxnManagerReport
+	 * @param name
+	 *            name of the entity, e.g., be.gen.Concept1
+	 * @param seed
+	 *            number that varies the values of entities
+	 * @param latencyMicros
+	 *            microseconds to wait before each request is answered
+	 */
+	public SimulatedEntity(String statType, String name, int seed, long latencyMicros) {
+		this.name = name;
+		this.seed = seed;
+		this.latencyNanos = latencyMicros * 1000L;
+		this.ratePerSecond = 1 + seed % 100;
+		if ("BEEntityCache".equals(statType)) {
+			counters.addAll(Arrays.asList(Client.BEEntityCacheCounters));
+		} else if ("BEAgentEntity".equals(statType)) {
+			counters.addAll(Arrays.asList(Client.BEAgentEntityCounters));
+		} else {
+			counters.addAll(Arrays.asList(Client.BERTCTxnManagerCounters));
+		}
+
+		List<MBeanAttributeInfo> attrInfos = new ArrayList<MBeanAttributeInfo>();
+		for (String col : Client.getReportColumns(statType)) {
+			if (!"DateTime".equals(col)) {
+				attributes.add(col);
+				attrInfos.add(new MBeanAttributeInfo(col, getValue(col, 0).getClass().getName(), col, true, false,
+						false));
+			}
+		}
+		MBeanOperationInfo[] ops = new MBeanOperationInfo[0];
+		if ("RTCTxnManagerReport".equals(statType)) {
+			ops = new MBeanOperationInfo[] {
+					new MBeanOperationInfo("resetStats", "reset counters", null, "void", MBeanOperationInfo.ACTION) };
+		}
+		info = new MBeanInfo(getClass().getName(), "simulated " + statType,
+				attrInfos.toArray(new MBeanAttributeInfo[attrInfos.size()]), null, ops, null);
+	}
+
+	private void waitLatency() {
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+	}
+
+	private Object getValue(String attr, long now) {
+		long elapsed = Math.max(0, now - start);
+		if ("ClassName".equals(attr)) {
+			return name;
+		} else if ("CacheMode".equals(attr)) {
+			return "Cache";
+		} else if ("TypeId".equals(attr)) {
+			return Integer.valueOf(1000 + seed);
+		} else if (counters.contains(attr)) {
+			return Long.valueOf((long) (elapsed * ratePerSecond / 1000));
+		} else if (attr.startsWith("Avg")) {
+			// average time between 0.1 and 10 ms, changing every second
+			return Double.valueOf(0.1 + ((now / 1000 + seed + attr.length()) % 100) / 10.0);
+		}
+		// gauge, e.g., cache size or pending writes
+		return Long.valueOf(seed * 10L + (now / 1000 + attr.length()) % 50);
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		waitLatency();
+		if (!attributes.contains(attribute)) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return getValue(attribute, System.currentTimeMillis());
+	}
+
+	public AttributeList getAttributes(String[] names) {
+		waitLatency();
+		long now = System.currentTimeMillis();
+		AttributeList list = new AttributeList(names.length);
+		for (String attr : names) {
+			if (attributes.contains(attr)) {
+				list.add(new Attribute(attr, getValue(attr, now)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		waitLatency();
+		if ("resetStats".equals(actionName)) {
+			start = System.currentTimeMillis();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		// also used by the MBean server itself, so it is answered without
+		// latency
+		return info;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * WriteMetricsBenchmark.java - end-to-end throughput of polling an in-process MBean server.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Poll BEEntityCache stats of an engine end to end, i.e., query entity
+ * names, fetch attributes over a JMX RMI connection, filter and encode rows,
+ * and write the report file. The engine is simulated by an MBean server in
+ * the benchmark JVM, so RMI calls go over the loopback interface. Reports
+ * are written to a temporary folder that is deleted after the trial.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteMetricsBenchmark {
+
+	public interface CacheMBean {
+		String getClassName();
+
+		long getCacheSize();
+
+		double getGetAvgTime();
+
+		long getGetCount();
+
+		long getNumHandlesInStore();
+
+		double getPutAvgTime();
+
+		long getPutCount();
+
+		double getRemoveAvgTime();
+
+		long getRemoveCount();
+
+		int getTypeId();
+	}
+
+	public static class Cache implements CacheMBean {
+		private String className;
+		private int typeId;
+		private long count = 0;
+
+		public Cache(String className, int typeId) {
+			this.className = className;
+			this.typeId = typeId;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public long getCacheSize() {
+			return 1000 + typeId;
+		}
+
+		public double getGetAvgTime() {
+			return 0.25;
+		}
+
+		public long getGetCount() {
+			return count++;
+		}
+
+		public long getNumHandlesInStore() {
+			return 0;
+		}
+
+		public double getPutAvgTime() {
+			return 0.5;
+		}
+
+		public long getPutCount() {
+			return count;
+		}
+
+		public double getRemoveAvgTime() {
+			return 0.0;
+		}
+
+		public long getRemoveCount() {
+			return 0;
+		}
+
+		public int getTypeId() {
+			return typeId;
+		}
+	}
+
+	// number of cache MBeans of the engine
+	@Param({ "100", "1000" })
+	public int entities;
+
+	@Param({ ReportPolicy.FORMAT_CSV, ReportPolicy.FORMAT_BINARY })
+	public String format;
+
+	private Registry registry;
+	private JMXConnectorServer server;
+	private File folder;
+	private Client client;
+	private SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+	private long time;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int port;
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			port = socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+		MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+		for (int i = 0; i < entities; i++) {
+			mbs.registerMBean(new Cache("be.gen.Concept" + i, 1000 + i),
+					new ObjectName("com.tibco.be:service=Cache,name=Concept" + i));
+		}
+		registry = LocateRegistry.createRegistry(port);
+		server = JMXConnectorServerFactory.newJMXConnectorServer(
+				new JMXServiceURL(String.format("service:jmx:rmi:///jndi/rmi://localhost:%d/jmxrmi", port)), null,
+				mbs);
+		server.start();
+
+		folder = Files.createTempDirectory("bejmx-bench").toFile();
+		ReportPolicy policy = ReportPolicy.getDefault();
+		policy.setFormat(format);
+		client = new Client("bench", "localhost", port);
+		client.setReportFolder(folder.getPath());
+		client.setReportPolicy(policy);
+		client.setStatTypes(new String[] { "BEEntityCache" });
+		time = System.currentTimeMillis();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		client.cleanup();
+		server.stop();
+		UnicastRemoteObject.unexportObject(registry, true);
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	@Benchmark
+	public void writeAllMetrics() {
+		time += 1000;
+		client.setTimestamp(time, fmt.format(new Date(time)));
+		client.writeAllMetrics();
+	}
+}
@@ -1,21 +1,32 @@
 package com.tibco.metrics.bejmx;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * Driver to collect BE performance statistics via JMX. It supports 3 MBeans:
  * Agent/Entity, Cache, and RTCTxnManagerReport. One or more MBean data can be
  * printed out periodically. Use a Java properties file to configure 1 or more
- * Inference engines to be monitored. Stat files are tagged by month-and-date,
+ * Inference engines to be monitored. Stat files are tagged by year-month-date,
  * so every day, a new file is created for each BE engine and each MBean stats.
  *
  * @author yxu
@@ -23,7 +34,91 @@ import java.util.concurrent.TimeUnit;
 public class BEJMX {
 
 	// thread pool to fetch MBean data from multiple BE engines concurrently
-	static ThreadPoolExecutor pool;
+	static ExecutorService pool;
+
+	// thread pool to fetch entity attributes of one engine concurrently
+	static ExecutorService fetchPool = null;
+
+	// thread pool to open JMX connections, so a dead engine does not block
+	// its polling thread beyond the connect timeout
+	static ExecutorService connectPool = null;
+
+	// report file settings, i.e., max bytes of a file before rollover (0 for
+	// no limit), policy to force data to disk, and interval to check for
+	// deleted files
+	static long reportMaxSize = 0;
+	static String reportSync = ReportPolicy.SYNC_NONE;
+	static long reportSyncMillis = 10000;
+	static long fileCheckMillis = 60000;
+	static ReportPolicy reportPolicy = null;
+
+	// format of report files, i.e., csv or binary
+	static String reportFormat = ReportPolicy.FORMAT_CSV;
+
+	// compress rolled over report files, and delete archives older than
+	// archiveMaxDays or exceeding archiveMaxSize bytes in total (0 for no
+	// limit)
+	static boolean archive = false;
+	static int archiveMaxDays = 0;
+	static long archiveMaxSize = 0;
+	static ReportArchiver archiver = null;
+
+	// asynchronous write pipeline for report files, null to write files in
+	// polling threads
+	static ReportWriter reportWriter = null;
+	static boolean asyncWrite = false;
+	static int writeQueueSize = 1000;
+	static String writeOverflow = ReportWriter.BLOCK;
+	static long writeFlushMillis = 1000;
+	static int writeFlushBytes = 1 << 20;
+
+	// report delta and rate columns of cumulative counters, and invoke the
+	// reset operation of stat types, e.g., RTCTxnManagerReport, after each poll
+	static boolean computeRates = false;
+	static boolean resetRTCStats = true;
+
+	// resolutions of rollup reports in seconds, e.g., 60,300,3600
+	static int[] rollups = new int[0];
+
+	// in-memory store of recent values with a budget of storeMaxBytes (0 to
+	// disable), storeCapacity points per series, and HTTP queries on
+	// storePort (0 to disable). Series of an entity not reported for
+	// storeIdlePolls polls are released
+	static long storeMaxBytes = 0;
+	static int storeCapacity = 360;
+	static int storeIdlePolls = 3;
+	static int storePort = 0;
+	static MetricStore metricStore = null;
+	static MetricQueryServer queryServer = null;
+
+	// Prometheus endpoint on prometheusPort (0 to disable), served by
+	// prometheusThreads threads
+	static int prometheusPort = 0;
+	static int prometheusThreads = 2;
+	static PrometheusExporter prometheusExporter = null;
+
+	// register statistics of the collector itself as MBeans, and write them
+	// to the BEJMXStats report after each poll
+	static boolean collectorMBeans = true;
+	static boolean statsReport = false;
+
+	// push rows to a metrics collector at pushHost:pushPort (0 to disable) in
+	// graphite, statsd or influx protocol over udp or tcp
+	static String pushProtocol = PushExporter.GRAPHITE;
+	static String pushTransport = PushExporter.UDP;
+	static String pushHost = "localhost";
+	static int pushPort = 0;
+	static int pushMtu = 1432;
+	static int pushMaxBuffer = 4 << 20;
+	static String pushPrefix = "bejmx";
+	static PushExporter pushExporter = null;
+
+	// run polls on platform or virtual threads
+	static String executorMode = ExecutorFactory.PLATFORM;
+
+	// max number of RMI calls in flight across all engines, 0 for no limit
+	static int maxRmiCalls = 0;
+	static Semaphore rmiPermits = null;
 
 	// set to true if do not print out stats of BE internal objects
 	static boolean ignoreInternalEntity = true;
@@ -35,8 +130,67 @@ public class BEJMX {
 	// seconds to wait between consecutive MBean polls
 	static int interval = 60;
 
-	// all monitored engines in hash host:port -> JMXClient
-	static HashMap<String, Client> clientMap = new HashMap<String, Client>();
+	// seconds between polls of each stat type, defaults to interval
+	static HashMap<String, Integer> statIntervals = new HashMap<String, Integer>();
+
+	// stretch the interval of a stat type of an engine, up to
+	// adaptiveMaxFactor times its interval, when its polls take more than
+	// adaptiveBudget of the interval, or its values are unchanged
+	static boolean adaptiveInterval = false;
+	static int adaptiveMaxFactor = 8;
+	static double adaptiveBudget = 0.5;
+
+	// write only report rows that match predicates of each stat type, and
+	// skip rows that are unchanged since the last row written for the entity,
+	// unless the entity has not been written for suppressHeartbeat polls
+	static HashMap<String, List<String>> rowPredicates = new HashMap<String, List<String>>();
+	static boolean suppressUnchanged = false;
+	static int suppressHeartbeat = 0;
+
+	// seconds between scheduler slots, i.e., the greatest common divisor of
+	// all intervals
+	static int tick = 60;
+
+	// max number of engines polled concurrently
+	static int maxThreads = 20;
+
+	// number of JMX connections per engine for concurrent attribute fetch
+	static int connectionsPerEngine = 1;
+
+	// max number of attribute requests in flight per engine, 0 for twice the
+	// number of connections
+	static int fetchWindow = 0;
+
+	// seconds between full rescans of MBean object names, 0 to query names on
+	// every poll
+	static int discoveryRescan = 3600;
+
+	// connection settings, i.e., connect and call timeouts, reconnect
+	// backoff, and circuit breaker of engines that fail repeatedly
+	static ConnectionPolicy connectionPolicy = null;
+	static long connectTimeoutMillis = 10000;
+	static long callTimeoutMillis = 120000;
+	static long reconnectBackoffMillis = 5000;
+	static long reconnectMaxBackoffMillis = 300000;
+	static int circuitFailures = 5;
+	static long circuitOpenMillis = 600000;
+
+	// all monitored engines in hash host:port -> JMXClient, or pid ->
+	// JMXClient of local engines. Updated by the discovery thread in
+	// discovery mode
+	static ConcurrentHashMap<String, Client> clientMap = new ConcurrentHashMap<String, Client>();
+
+	// discover local engines continuously instead of the configured engines,
+	// every discoverInterval seconds, by main class pattern or by a system
+	// property. Clients of exited engines are closed when their last poll
+	// completes
+	static boolean discover = false;
+	static int discoverInterval = 60;
+	static String discoverMainClass = ".*\\.BEMain";
+	static String discoverProperty = null;
+	static LocalDiscovery discovery = null;
+	static ScheduledExecutorService discoveryTimer = null;
+	static List<Client> retiredClients = new ArrayList<Client>();
 
 	// all monitored statTypes, i.e., BEEntityCache, BEAgentEntity, and
 	// RTCTxnManagerReport
@@ -44,6 +198,9 @@ public class BEJMX {
 	// one of the patterns will be monitored.
 	static HashMap<String, Set<String>> statTypes = new HashMap<String, Set<String>>();
 
+	// statType -> compiled entity filter
+	static Map<String, EntityFilter> entityFilters = new ConcurrentHashMap<String, EntityFilter>();
+
 	/**
 	 * Main driver to start monitoring BE inference engines.
 	 *
@@ -65,6 +222,9 @@ public class BEJMX {
 			if (args[i].equals("-pid")) {
 				pidList = args[i + 1];
 			}
+			if (args[i].equals("-discover")) {
+				discover = true;
+			}
 
 			if (args.length < 2 || args[i].contains("-help") || args[i].equals("-?")) {
 				printUsage();
@@ -80,38 +240,252 @@ public class BEJMX {
 		loadConfig(configFile);
 		if (pidList != null) {
 			parsePids(pidList);
+		} else if (discover) {
+			// ignore engines in config file, and monitor local engines only
+			clientMap.clear();
+		}
+		createPools();
+		connectionPolicy = new ConnectionPolicy(connectTimeoutMillis, callTimeoutMillis, reconnectBackoffMillis,
+				reconnectMaxBackoffMillis, circuitFailures, circuitOpenMillis);
+		try {
+			connectionPolicy.installSocketFactory();
+		} catch (IOException e) {
+			System.out.println("Failed to set timeouts of RMI connections: " + e.getMessage());
+		}
+		reportPolicy = new ReportPolicy(reportMaxSize, reportSync, reportSyncMillis, fileCheckMillis);
+		reportPolicy.setFormat(reportFormat);
+		if (archive) {
+			archiver = new ReportArchiver(reportFolder, archiveMaxDays, archiveMaxSize);
+			archiver.archiveStale();
+			reportPolicy.setArchiver(archiver);
+		}
+		if (asyncWrite) {
+			reportWriter = new ReportWriter(writeQueueSize, writeOverflow, writeFlushMillis, writeFlushBytes);
+			reportWriter.start();
+
+			// write queued reports when the process is terminated
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					reportWriter.shutdown(5000);
+				}
+			});
+		}
+		if (storeMaxBytes > 0) {
+			metricStore = new MetricStore(storeMaxBytes, storeCapacity, storeIdlePolls);
+			if (storePort > 0) {
+				queryServer = new MetricQueryServer(metricStore, storePort);
+				queryServer.start();
+			}
+		}
+		if (pushPort > 0) {
+			pushExporter = new PushExporter(pushProtocol, pushTransport, pushHost, pushPort, pushMtu, pushMaxBuffer,
+					pushPrefix);
+			pushExporter.start();
+		}
+		if (prometheusPort > 0) {
+			prometheusExporter = new PrometheusExporter(prometheusPort, prometheusThreads);
+			prometheusExporter.start();
 		}
 		for (Client client : clientMap.values()) {
 			initializeClient(client);
 		}
-
-		// create thread pool
-		pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-		pool.setKeepAliveTime(2 * interval, TimeUnit.SECONDS);
+		if (null == pidList && discover) {
+			startDiscovery();
+		}
 
 		// System.out.println("Start monitoring ...");
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		PollSlots slots = new PollSlots(tick * 1000L, System.currentTimeMillis());
+		// local PID's are polled once right away, remote servers at wall-clock
+		// slots aligned to the interval
+		long slot = (null == pidList) ? slots.getSlot() : System.currentTimeMillis();
 		boolean forever = true;
 		while (forever) {
-			SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-			String timestamp = fmt.format(Calendar.getInstance().getTime());
+			if (null == pidList) {
+				try {
+					sleepUntil(slot);
+				} catch (InterruptedException e) {
+					shutdown();
+					return;
+				}
+			}
+			String timestamp = fmt.format(new Date(slot));
+			int skipped = 0;
+			int started = 0;
 			for (Client client : clientMap.values()) {
-				client.setTimestamp(timestamp);
-				pool.execute(new ClientThread(client));
+				if (null == pidList && !client.isDue(slot)) {
+					// no stat type of the engine is due in this slot
+					continue;
+				}
+				if (client.startPoll()) {
+					started++;
+					client.setTimestamp(slot, timestamp);
+					pool.execute(new ClientThread(client));
+				} else {
+					// previous poll of the engine is still running
+					client.skipSlot();
+					skipped++;
+				}
+			}
+			if (skipped > 0) {
+				System.out.println(
+						String.format("%s, %d engines skipped the poll at %s", getPoolStatus(), skipped, timestamp));
+			} else if (started > 0) {
+				System.out.println(getPoolStatus());
 			}
-			System.out.println(String.format("%d of %d threads are active", pool.getActiveCount(), pool.getPoolSize()));
 			if (pidList != null) {
 				// for local PID's, quit after one collection
 				forever = false;
+				shutdown();
 			} else {
-				// for remote servers, continue after sleep
-				try {
-					TimeUnit.SECONDS.sleep(interval);
-				} catch (InterruptedException e) {
-					forever = false;
+				// for remote servers, continue at the next slot. Slots missed
+				// by a stalled scheduler are not replayed.
+				slot = slots.next(System.currentTimeMillis());
+				if (slots.getMissed() > 0) {
+					System.out.println(String.format("%d poll slots missed before %s", slots.getMissed(),
+							fmt.format(new Date(slot))));
 				}
 			}
-			if (!forever) {
-				shutdown();
+		}
+	}
+
+	/**
+	 * Create executors for polling engines and fetching entity attributes. In
+	 * virtual thread mode, both run on virtual threads, and the number of
+	 * concurrent RMI calls is bounded by maxRmiCalls only.
+	 */
+	private static void createPools() {
+		if (fetchWindow <= 0) {
+			fetchWindow = 2 * connectionsPerEngine;
+		}
+		if (maxRmiCalls > 0) {
+			rmiPermits = new Semaphore(maxRmiCalls);
+		}
+		if (ExecutorFactory.VIRTUAL.equals(executorMode)) {
+			if (ExecutorFactory.isVirtualSupported()) {
+				pool = ExecutorFactory.newVirtualExecutor();
+				fetchPool = pool;
+				connectPool = pool;
+				return;
+			}
+			System.out.println(String.format("Virtual threads are not supported by Java %s, use platform threads",
+					System.getProperty("java.version")));
+		}
+
+		// create thread pool, bounded by the configured number of threads
+		pool = ExecutorFactory.newPlatformPool(maxThreads, 2 * interval);
+		if (connectionsPerEngine > 1) {
+			// shared by all engines, each engine uses at most fetchWindow
+			// threads
+			fetchPool = ExecutorFactory.newPlatformPool(maxThreads * fetchWindow, 2 * interval);
+		}
+
+		// each engine has at most one connection attempt in flight
+		connectPool = ExecutorFactory.newPlatformPool(maxThreads, 2 * interval);
+	}
+
+	/**
+	 * @return status of the polling threads
+	 */
+	private static String getPoolStatus() {
+		if (pool instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor tpe = (ThreadPoolExecutor) pool;
+			return String.format("%d of %d threads are active", tpe.getActiveCount(), tpe.getPoolSize());
+		}
+		int active = 0;
+		for (Client client : clientMap.values()) {
+			if (client.isPolling()) {
+				active++;
+			}
+		}
+		return String.format("%d of %d engines are active on virtual threads", active, clientMap.size());
+	}
+
+	/**
+	 * Sleep until a specified wall-clock time.
+	 *
+	 * @param time
+	 *            wall-clock time in milliseconds
+	 * @throws InterruptedException
+	 *             when the thread is interrupted
+	 */
+	private static void sleepUntil(long time) throws InterruptedException {
+		long delay = time - System.currentTimeMillis();
+		while (delay > 0) {
+			TimeUnit.MILLISECONDS.sleep(delay);
+			delay = time - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Discover local engines, and continue discovery in a background thread
+	 * every discoverInterval seconds.
+	 */
+	private static void startDiscovery() {
+		discovery = new LocalDiscovery(Pattern.compile(discoverMainClass), discoverProperty);
+		discoverEngines();
+		discoveryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bejmx-discovery");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		discoveryTimer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				discoverEngines();
+			}
+		}, discoverInterval, discoverInterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Start clients of new local engines, and stop clients of exited engines.
+	 * Called by the discovery thread only.
+	 */
+	static void discoverEngines() {
+		Map<Integer, String> engines;
+		try {
+			engines = discovery.discover();
+		} catch (Exception e) {
+			// keep the discovery thread alive
+			System.out.println("Failed to list local JVMs: " + e.getMessage());
+			return;
+		}
+		Set<String> names = new HashSet<String>();
+		for (Map.Entry<Integer, String> engine : engines.entrySet()) {
+			String name = discovery.getEngineName(engine.getKey());
+			names.add(name);
+			Client client = clientMap.get(name);
+			if (null == client) {
+				client = new Client(engine.getKey(), name, engine.getValue());
+				initializeClient(client);
+				clientMap.put(name, client);
+				System.out.println(String.format("Start monitoring engine %s at %s", name, engine.getValue()));
+			} else if (!engine.getValue().equals(client.getConnectorAddress())) {
+				// the engine published a new address
+				System.out.println(String.format("Connect to engine %s at %s", name, engine.getValue()));
+				client.setConnectorAddress(engine.getValue());
+			} else if (client.takeConnectFailure()) {
+				// the address refused a connection, so resolve it again by the
+				// next scan. timeouts and failed polls keep the address
+				discovery.invalidate(engine.getKey(), engine.getValue());
+			}
+		}
+		for (Iterator<Map.Entry<String, Client>> it = clientMap.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Client> entry = it.next();
+			if (!names.contains(entry.getKey())) {
+				// the engine exited, or its PID is reused by another JVM
+				it.remove();
+				retiredClients.add(entry.getValue());
+				System.out.println(String.format("Stop monitoring engine %s", entry.getKey()));
+			}
+		}
+		for (Iterator<Client> it = retiredClients.iterator(); it.hasNext();) {
+			Client client = it.next();
+			if (client.startPoll()) {
+				// no poll is running, and none is started after removal
+				client.cleanup();
+				it.remove();
 			}
 		}
 	}
@@ -151,8 +525,17 @@ public class BEJMX {
 		props.load(fis);
 		fis.close();
 
+		// names of stat types defined by statType.<name>.<field>
+		Set<String> definedTypes = new HashSet<String>();
 		for (String key : props.stringPropertyNames()) {
-			if (key.startsWith("engine.")) {
+			if (key.startsWith("statType.")) {
+				String[] tokens = key.split("\\.");
+				if (tokens.length == 3) {
+					definedTypes.add(tokens[1]);
+				} else {
+					System.out.println("ignore config property " + key);
+				}
+			} else if (key.startsWith("engine.")) {
 				if (key.startsWith("engine.jmxport.")) {
 					String port = props.getProperty(key, "").trim();
 					if (port.length() > 0) {
@@ -205,6 +588,135 @@ public class BEJMX {
 				interval = Integer.parseInt(props.getProperty(key, "30").trim());
 				// System.out.println("Write stats every " + interval + "
 				// seconds");
+			} else if (key.equals("maxThreads")) {
+				maxThreads = Integer.parseInt(props.getProperty(key, "20").trim());
+			} else if (key.equals("reportMaxSize")) {
+				reportMaxSize = Long.parseLong(props.getProperty(key, "0").trim());
+			} else if (key.equals("collectorMBeans")) {
+				collectorMBeans = Boolean.parseBoolean(props.getProperty(key, "true").trim());
+			} else if (key.equals("statsReport")) {
+				statsReport = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("pushProtocol")) {
+				pushProtocol = props.getProperty(key, PushExporter.GRAPHITE).trim();
+			} else if (key.equals("pushTransport")) {
+				pushTransport = props.getProperty(key, PushExporter.UDP).trim();
+			} else if (key.equals("pushHost")) {
+				pushHost = props.getProperty(key, "localhost").trim();
+			} else if (key.equals("pushPort")) {
+				pushPort = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("pushMtu")) {
+				pushMtu = Integer.parseInt(props.getProperty(key, "1432").trim());
+			} else if (key.equals("pushMaxBuffer")) {
+				pushMaxBuffer = Integer.parseInt(props.getProperty(key, "4194304").trim());
+			} else if (key.equals("pushPrefix")) {
+				pushPrefix = props.getProperty(key, "bejmx").trim();
+			} else if (key.equals("prometheusPort")) {
+				prometheusPort = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("prometheusThreads")) {
+				prometheusThreads = Integer.parseInt(props.getProperty(key, "2").trim());
+			} else if (key.equals("rollups")) {
+				String value = props.getProperty(key, "").trim();
+				String[] tokens = value.length() > 0 ? value.split("\\s*,\\s*") : new String[0];
+				rollups = new int[tokens.length];
+				for (int i = 0; i < tokens.length; i++) {
+					rollups[i] = Integer.parseInt(tokens[i]);
+				}
+			} else if (key.startsWith("interval.")) {
+				String value = props.getProperty(key, "").trim();
+				if (value.length() > 0) {
+					statIntervals.put(key.substring("interval.".length()), Integer.parseInt(value));
+				}
+			} else if (key.startsWith("filter.")) {
+				// add predicate of report rows to specified stat type
+				String[] tokens = key.split("\\.");
+				String expr = props.getProperty(key, "").trim();
+				if (tokens.length == 3 && expr.length() > 0) {
+					List<String> predicates = rowPredicates.get(tokens[1]);
+					if (null == predicates) {
+						predicates = new ArrayList<String>();
+						rowPredicates.put(tokens[1], predicates);
+					}
+					predicates.add(expr);
+				}
+			} else if (key.equals("suppressUnchanged")) {
+				suppressUnchanged = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("suppressHeartbeat")) {
+				suppressHeartbeat = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("adaptiveInterval")) {
+				adaptiveInterval = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("adaptiveMaxFactor")) {
+				adaptiveMaxFactor = Integer.parseInt(props.getProperty(key, "8").trim());
+			} else if (key.equals("adaptiveBudget")) {
+				adaptiveBudget = Double.parseDouble(props.getProperty(key, "0.5").trim());
+			} else if (key.equals("computeRates")) {
+				computeRates = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("resetRTCStats")) {
+				resetRTCStats = Boolean.parseBoolean(props.getProperty(key, "true").trim());
+			} else if (key.equals("storeMaxBytes")) {
+				storeMaxBytes = Long.parseLong(props.getProperty(key, "0").trim());
+			} else if (key.equals("storeCapacity")) {
+				storeCapacity = Integer.parseInt(props.getProperty(key, "360").trim());
+			} else if (key.equals("storeIdlePolls")) {
+				storeIdlePolls = Integer.parseInt(props.getProperty(key, "3").trim());
+			} else if (key.equals("storePort")) {
+				storePort = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("reportFormat")) {
+				reportFormat = props.getProperty(key, ReportPolicy.FORMAT_CSV).trim();
+			} else if (key.equals("reportSync")) {
+				reportSync = props.getProperty(key, ReportPolicy.SYNC_NONE).trim();
+			} else if (key.equals("reportSyncMillis")) {
+				reportSyncMillis = Long.parseLong(props.getProperty(key, "10000").trim());
+			} else if (key.equals("fileCheckMillis")) {
+				fileCheckMillis = Long.parseLong(props.getProperty(key, "60000").trim());
+			} else if (key.equals("archive")) {
+				archive = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("archiveMaxDays")) {
+				archiveMaxDays = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("archiveMaxSize")) {
+				archiveMaxSize = Long.parseLong(props.getProperty(key, "0").trim());
+			} else if (key.equals("asyncWrite")) {
+				asyncWrite = Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("writeQueueSize")) {
+				writeQueueSize = Integer.parseInt(props.getProperty(key, "1000").trim());
+			} else if (key.equals("writeOverflow")) {
+				writeOverflow = props.getProperty(key, ReportWriter.BLOCK).trim();
+			} else if (key.equals("writeFlushMillis")) {
+				writeFlushMillis = Long.parseLong(props.getProperty(key, "1000").trim());
+			} else if (key.equals("writeFlushBytes")) {
+				writeFlushBytes = Integer.parseInt(props.getProperty(key, "1048576").trim());
+			} else if (key.equals("executor")) {
+				executorMode = props.getProperty(key, ExecutorFactory.PLATFORM).trim();
+			} else if (key.equals("maxRmiCalls")) {
+				maxRmiCalls = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("connectionsPerEngine")) {
+				connectionsPerEngine = Integer.parseInt(props.getProperty(key, "1").trim());
+			} else if (key.equals("fetchWindow")) {
+				fetchWindow = Integer.parseInt(props.getProperty(key, "0").trim());
+			} else if (key.equals("connectTimeoutMillis")) {
+				connectTimeoutMillis = Long.parseLong(props.getProperty(key, "10000").trim());
+			} else if (key.equals("callTimeoutMillis")) {
+				callTimeoutMillis = Long.parseLong(props.getProperty(key, "120000").trim());
+			} else if (key.equals("reconnectBackoffMillis")) {
+				reconnectBackoffMillis = Long.parseLong(props.getProperty(key, "5000").trim());
+			} else if (key.equals("reconnectMaxBackoffMillis")) {
+				reconnectMaxBackoffMillis = Long.parseLong(props.getProperty(key, "300000").trim());
+			} else if (key.equals("circuitFailures")) {
+				circuitFailures = Integer.parseInt(props.getProperty(key, "5").trim());
+			} else if (key.equals("circuitOpenMillis")) {
+				circuitOpenMillis = Long.parseLong(props.getProperty(key, "600000").trim());
+			} else if (key.equals("discover")) {
+				discover = discover || Boolean.parseBoolean(props.getProperty(key, "false").trim());
+			} else if (key.equals("discoverInterval")) {
+				discoverInterval = Integer.parseInt(props.getProperty(key, "60").trim());
+			} else if (key.equals("discoverMainClass")) {
+				discoverMainClass = props.getProperty(key, ".*\\.BEMain").trim();
+			} else if (key.equals("discoverProperty")) {
+				discoverProperty = props.getProperty(key, "").trim();
+				if (0 == discoverProperty.length()) {
+					discoverProperty = null;
+				}
+			} else if (key.equals("discoveryRescan")) {
+				discoveryRescan = Integer.parseInt(props.getProperty(key, "3600").trim());
 			} else if (key.equals("ignoreInternalEntity")) {
 				ignoreInternalEntity = Boolean.parseBoolean(props.getProperty(key, "false").trim());
 				if (ignoreInternalEntity) {
@@ -221,6 +733,39 @@ public class BEJMX {
 				System.out.println("ignore config property " + key);
 			}
 		}
+		for (String name : definedTypes) {
+			StatType.define(StatType.parse(name, props));
+			System.out.println("Defined stat type " + name);
+		}
+		for (Iterator<String> it = statTypes.keySet().iterator(); it.hasNext();) {
+			String type = it.next();
+			if (null == StatType.get(type)) {
+				System.out.println(String.format("Ignore report of undefined stat type %s", type));
+				it.remove();
+			}
+		}
+		for (Map.Entry<String, List<String>> entry : rowPredicates.entrySet()) {
+			StatType type = StatType.get(entry.getKey());
+			if (null == type) {
+				throw new IllegalArgumentException("Filter of undefined stat type " + entry.getKey());
+			}
+			String[] columns = type.getColumns();
+			if (computeRates && !(resetRTCStats && type.getResetOperation() != null)) {
+				// predicates may refer to derived delta and rate columns
+				columns = new CounterRates(columns, type.getCounters()).getColumns();
+			}
+			for (String expr : entry.getValue()) {
+				RowFilter.validate(expr, columns);
+			}
+		}
+		tick = interval;
+		for (String type : statTypes.keySet()) {
+			Integer seconds = statIntervals.get(type);
+			if (seconds != null && seconds > 0) {
+				tick = PollSchedule.gcd(tick, seconds);
+			}
+		}
+		compileFilters();
 	}
 
 	/**
@@ -232,6 +777,28 @@ public class BEJMX {
 	 */
 	private static void initializeClient(Client client) {
 		client.setReportFolder(reportFolder);
+		client.setDiscoveryRescan(discoveryRescan);
+		client.setFetchPool(connectionsPerEngine, fetchWindow, fetchPool);
+		client.setConnectionPolicy(connectionPolicy, connectPool);
+		client.setCallLimiter(rmiPermits);
+		client.setReportWriter(reportWriter);
+		client.setReportPolicy(reportPolicy);
+		client.setMetricStore(metricStore);
+		client.setComputeRates(computeRates);
+		client.setResetRTCStats(resetRTCStats);
+		client.setRollups(rollups);
+		client.setPrometheusExporter(prometheusExporter);
+		client.setPushExporter(pushExporter);
+		client.setCollectorStats(collectorMBeans, statsReport);
+		client.setRowFilters(rowPredicates, suppressUnchanged, suppressHeartbeat);
+		if (adaptiveInterval || !statIntervals.isEmpty()) {
+			Map<String, Integer> intervals = new HashMap<String, Integer>();
+			for (String type : statTypes.keySet()) {
+				Integer seconds = statIntervals.get(type);
+				intervals.put(type, (seconds != null && seconds > 0) ? seconds : interval);
+			}
+			client.setPollIntervals(tick, intervals, adaptiveInterval, adaptiveMaxFactor, adaptiveBudget);
+		}
 		String[] statArray = new String[statTypes.size()];
 		statTypes.keySet().toArray(statArray);
 		client.setStatTypes(statArray);
@@ -242,9 +809,21 @@ public class BEJMX {
 	 */
 	private static void shutdown() {
 		System.out.println("Shutting down ...");
+		if (discoveryTimer != null) {
+			discoveryTimer.shutdownNow();
+			try {
+				discoveryTimer.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		pool.shutdown();
-		for (Client client : clientMap.values()) {
-			client.cleanup();
+		if (fetchPool != null && fetchPool != pool) {
+			fetchPool.shutdown();
+		}
+		if (connectPool != null && connectPool != pool) {
+			// abandon hanging connection attempts
+			connectPool.shutdownNow();
 		}
 
 		// wait until all threads complete
@@ -260,6 +839,29 @@ public class BEJMX {
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 		}
+
+		// write queued reports, and close all report files
+		if (reportWriter != null) {
+			reportWriter.shutdown(30000);
+		}
+		for (Client client : clientMap.values()) {
+			client.cleanup();
+		}
+		for (Client client : retiredClients) {
+			client.cleanup();
+		}
+		if (archiver != null) {
+			archiver.shutdown(30000);
+		}
+		if (queryServer != null) {
+			queryServer.stop();
+		}
+		if (prometheusExporter != null) {
+			prometheusExporter.stop();
+		}
+		if (pushExporter != null) {
+			pushExporter.shutdown(5000);
+		}
 	}
 
 	/**
@@ -269,7 +871,7 @@ public class BEJMX {
 		System.out.println(getVersions());
 		System.out.println("Collect BE Metrics about Cache, Agent, and RTC");
 		System.out.println("BEJMX Usage:");
-		System.out.println("java com.tibco.metrics.bejmx.BEJMX -config <configFile> [-pid <pidList>]");
+		System.out.println("java com.tibco.metrics.bejmx.BEJMX -config <configFile> [-pid <pidList> | -discover]");
 	}
 
 	/**
@@ -297,22 +899,34 @@ public class BEJMX {
 	 *         otherwise.
 	 */
 	public static boolean isIgnoredEntity(String attrName, String statType) {
-		// ignore ObjectTableIds
-		if (attrName.endsWith("--ObjectTableIds")) {
-			return true;
-		} else if (ignoreInternalEntity && attrName.contains("com.tibco.cep.runtime.model")) {
-			return true;
-		}
-
-		Set<String> includedPatterns = statTypes.get(statType);
-		if (includedPatterns != null && includedPatterns.size() > 0) {
-			for (String pattern : includedPatterns) {
-				if (attrName.matches(pattern)) {
-					return false;
-				}
-			}
-			return true;
+		return getEntityFilter(statType).isIgnored(attrName);
+	}
+
+	/**
+	 * Return the configured rules for filtering out entities of a stat type.
+	 *
+	 * @param statType
+	 *            type of the MBean data to be reported.
+	 * @return the entity filter
+	 */
+	static EntityFilter getEntityFilter(String statType) {
+		EntityFilter filter = entityFilters.get(statType);
+		if (null == filter) {
+			// stat type is not configured, so no include patterns
+			filter = new EntityFilter(null, ignoreInternalEntity);
+			entityFilters.put(statType, filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * Compile include patterns of configured stat types into entity filters.
+	 */
+	static void compileFilters() {
+		Map<String, EntityFilter> filters = new ConcurrentHashMap<String, EntityFilter>();
+		for (Map.Entry<String, Set<String>> entry : statTypes.entrySet()) {
+			filters.put(entry.getKey(), new EntityFilter(entry.getValue(), ignoreInternalEntity));
 		}
-		return false;
+		entityFilters = filters;
 	}
 }
@@ -0,0 +1,314 @@
+/*
+ * BinaryReportEncoder.java - compact binary time-series encoding of stat report rows.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Encode samples of a stat type into a compact binary report. A report file
+ * starts with a file header, followed by one block per sample:
+ *
+ * <pre>
+ * file header: magic "BEJMXTS", version, CSV header line, time zone id,
+ *              column count, first reported column, DateTime column
+ * block:       flags (1 = reset all state),
+ *              sample time (full value on reset, delta-of-delta otherwise),
+ *              new dictionary strings,
+ *              row count, rows
+ * row:         dictionary id of entity name,
+ *              changes of value kinds as (column, kind) pairs,
+ *              value of each non-empty column
+ * </pre>
+ *
+ * Entity names and string values are written once per file in a dictionary.
+ * Each column of each entity is a series: integers are written as zig-zag
+ * varints of the delta from the previous value, and floating point numbers
+ * as the XOR with the previous value without its leading and trailing zero
+ * bytes. All numbers are little-endian varints unless specified otherwise.
+ * The DateTime column is not stored, it is rebuilt from the sample time.
+ *
+ */
+public class BinaryReportEncoder {
+
+	static final byte[] MAGIC = { 'B', 'E', 'J', 'M', 'X', 'T', 'S' };
+	static final int VERSION = 1;
+
+	static final int FLAG_RESET = 1;
+
+	// kinds of column values
+	static final byte KIND_NULL = 0;
+	static final byte KIND_LONG = 1;
+	static final byte KIND_DOUBLE = 2;
+	static final byte KIND_FLOAT = 3;
+	static final byte KIND_TRUE = 4;
+	static final byte KIND_FALSE = 5;
+	static final byte KIND_STRING = 6;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private String header;
+	private int columns;
+	private int firstCol;
+	private int dateCol;
+
+	// encoding state, cleared when a new file is started
+	private boolean reset = true;
+	private long prevTime = 0;
+	private long prevDelta = 0;
+	private Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	private int newStrings = 0;
+
+	// previous kind and value bits of each column, indexed by entity id
+	private byte[][] kinds = new byte[64][];
+	private long[][] bits = new long[64][];
+
+	private Buffer block = new Buffer();
+	private Buffer rows = new Buffer();
+	private Buffer strings = new Buffer();
+
+	/**
+	 * Construct encoder of a stat type.
+	 *
+	 * @param header
+	 *            header line of the CSV report
+	 * @param columns
+	 *            number of report columns
+	 * @param firstCol
+	 *            index of the first column written after the entity name
+	 * @param dateCol
+	 *            index of the DateTime column
+	 */
+	public BinaryReportEncoder(String header, int columns, int firstCol, int dateCol) {
+		this.header = header;
+		this.columns = columns;
+		this.firstCol = firstCol;
+		this.dateCol = dateCol;
+	}
+
+	/**
+	 * @return header of a new binary report file
+	 */
+	public byte[] getFileHeader() {
+		Buffer buf = new Buffer();
+		buf.write(MAGIC, 0, MAGIC.length);
+		buf.write(VERSION);
+		buf.writeString(header);
+		buf.writeString(TimeZone.getDefault().getID());
+		buf.writeVarint(columns);
+		buf.writeVarint(firstCol);
+		buf.writeVarint(dateCol);
+		return Arrays.copyOf(buf.data, buf.size);
+	}
+
+	/**
+	 * Clear all encoding state, so the next block can be decoded without data
+	 * written before it. Called when a report file is closed.
+	 */
+	public void reset() {
+		reset = true;
+		dictionary.clear();
+		Arrays.fill(kinds, null);
+		Arrays.fill(bits, null);
+	}
+
+	/**
+	 * Encode a sample as a block, and append it to a buffer.
+	 *
+	 * @param sample
+	 *            rows of one poll
+	 * @param out
+	 *            buffer to append the block to
+	 */
+	public void encode(StatSample sample, CsvEncoder out) {
+		block.size = 0;
+		rows.size = 0;
+		strings.size = 0;
+		newStrings = 0;
+
+		block.write(reset ? FLAG_RESET : 0);
+		if (reset) {
+			block.writeVarlong(zigzag(sample.time));
+			prevDelta = 0;
+		} else {
+			long delta = sample.time - prevTime;
+			block.writeVarlong(zigzag(delta - prevDelta));
+			prevDelta = delta;
+		}
+		prevTime = sample.time;
+		reset = false;
+
+		rows.writeVarint(sample.count);
+		for (int i = 0; i < sample.count; i++) {
+			encodeRow(sample.labels[i], sample.rows[i]);
+		}
+
+		block.writeVarint(newStrings);
+		block.write(strings.data, 0, strings.size);
+		block.write(rows.data, 0, rows.size);
+		out.append(block.data, 0, block.size);
+	}
+
+	private void encodeRow(String label, Object[] row) {
+		int id = lookup(label);
+		if (id >= kinds.length) {
+			kinds = Arrays.copyOf(kinds, 2 * id);
+			bits = Arrays.copyOf(bits, 2 * id);
+		}
+		byte[] prevKinds = kinds[id];
+		long[] prevBits = bits[id];
+		if (null == prevKinds) {
+			prevKinds = new byte[columns];
+			prevBits = new long[columns];
+			kinds[id] = prevKinds;
+			bits[id] = prevBits;
+		}
+		rows.writeVarint(id);
+
+		// kind changes
+		int changes = 0;
+		for (int col = firstCol; col < columns; col++) {
+			if (col != dateCol && kindOf(row[col]) != prevKinds[col]) {
+				changes++;
+			}
+		}
+		rows.writeVarint(changes);
+		for (int col = firstCol; col < columns && changes > 0; col++) {
+			byte kind = kindOf(row[col]);
+			if (col != dateCol && kind != prevKinds[col]) {
+				rows.writeVarint(col);
+				rows.write(kind);
+				prevKinds[col] = kind;
+				prevBits[col] = 0;
+				changes--;
+			}
+		}
+
+		// values
+		for (int col = firstCol; col < columns; col++) {
+			if (col == dateCol) {
+				continue;
+			}
+			Object value = row[col];
+			switch (prevKinds[col]) {
+			case KIND_LONG:
+				long v = ((Number) value).longValue();
+				rows.writeVarlong(zigzag(v - prevBits[col]));
+				prevBits[col] = v;
+				break;
+			case KIND_DOUBLE:
+				long d = Double.doubleToRawLongBits(((Double) value).doubleValue());
+				rows.writeXor(d ^ prevBits[col]);
+				prevBits[col] = d;
+				break;
+			case KIND_FLOAT:
+				long f = Float.floatToRawIntBits(((Float) value).floatValue()) & 0xffffffffL;
+				rows.writeXor(f ^ prevBits[col]);
+				prevBits[col] = f;
+				break;
+			case KIND_STRING:
+				rows.writeVarint(lookup(value.toString()));
+				break;
+			default:
+				// null and boolean values are encoded by their kind
+			}
+		}
+	}
+
+	/**
+	 * Return dictionary id of a string, add it to the dictionary if it is new.
+	 */
+	private int lookup(String str) {
+		Integer id = dictionary.get(str);
+		if (null == id) {
+			id = dictionary.size();
+			dictionary.put(str, id);
+			strings.writeString(str);
+			newStrings++;
+		}
+		return id;
+	}
+
+	static byte kindOf(Object value) {
+		if (null == value) {
+			return KIND_NULL;
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			return KIND_LONG;
+		} else if (value instanceof Double) {
+			return KIND_DOUBLE;
+		} else if (value instanceof Float) {
+			return KIND_FLOAT;
+		} else if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue() ? KIND_TRUE : KIND_FALSE;
+		}
+		return KIND_STRING;
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	/**
+	 * Growable byte buffer with varint encoding.
+	 */
+	private static class Buffer {
+		byte[] data = new byte[4096];
+		int size = 0;
+
+		void write(int b) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, 2 * data.length);
+			}
+			data[size++] = (byte) b;
+		}
+
+		void write(byte[] b, int off, int len) {
+			if (size + len > data.length) {
+				data = Arrays.copyOf(data, Math.max(2 * data.length, size + len));
+			}
+			System.arraycopy(b, off, data, size, len);
+			size += len;
+		}
+
+		void writeVarint(int v) {
+			writeVarlong(v & 0xffffffffL);
+		}
+
+		void writeVarlong(long v) {
+			while ((v & ~0x7fL) != 0) {
+				write((int) ((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			write((int) v);
+		}
+
+		/**
+		 * Write XOR of consecutive values as a control byte with counts of
+		 * leading and trailing zero bytes, followed by the remaining bytes.
+		 */
+		void writeXor(long xor) {
+			if (0 == xor) {
+				write(0);
+				return;
+			}
+			int lead = Long.numberOfLeadingZeros(xor) >>> 3;
+			int trail = Long.numberOfTrailingZeros(xor) >>> 3;
+			write(0x40 | (lead << 3) | trail);
+			for (int i = 7 - lead; i >= trail; i--) {
+				write((int) (xor >>> (i << 3)));
+			}
+		}
+
+		void writeString(String str) {
+			byte[] b = str.getBytes(UTF8);
+			writeVarint(b.length);
+			write(b, 0, b.length);
+		}
+	}
+}
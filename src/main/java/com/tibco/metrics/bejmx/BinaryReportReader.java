@@ -0,0 +1,293 @@
+/*
+ * BinaryReportReader.java - decode binary stat reports, and export them as csv reports.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decode a binary report written by BinaryReportEncoder. The report can be
+ * read sample by sample, or exported as the csv report that would have been
+ * written in csv format.
+ *
+ * <pre>
+ * java -cp bejmx.jar com.tibco.metrics.bejmx.BinaryReportReader report.bin [report.csv]
+ * </pre>
+ *
+ */
+public class BinaryReportReader {
+
+	private DataInputStream in;
+	private String header;
+	private String timeZone;
+	private int columns;
+	private int firstCol;
+	private int dateCol;
+
+	// decoding state, cleared by blocks that reset all state
+	private long prevTime = 0;
+	private long prevDelta = 0;
+	private List<String> dictionary = new ArrayList<String>();
+	private byte[][] kinds = new byte[64][];
+	private long[][] bits = new long[64][];
+
+	/**
+	 * Construct reader, and read the file header.
+	 *
+	 * @param input
+	 *            content of a binary report file
+	 * @throws IOException
+	 *             when the input is not a binary report
+	 */
+	public BinaryReportReader(InputStream input) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(input));
+		byte[] magic = new byte[BinaryReportEncoder.MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, BinaryReportEncoder.MAGIC)) {
+			throw new IOException("Not a binary report");
+		}
+		int version = in.readUnsignedByte();
+		if (version != BinaryReportEncoder.VERSION) {
+			throw new IOException("Unsupported binary report version " + version);
+		}
+		header = readString();
+		timeZone = readString();
+		columns = readVarint();
+		firstCol = readVarint();
+		dateCol = readVarint();
+	}
+
+	/**
+	 * @return header line of the csv report
+	 */
+	public String getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return id of the time zone of the collector that wrote the report
+	 */
+	public String getTimeZone() {
+		return timeZone;
+	}
+
+	/**
+	 * Read the next sample. The DateTime column of the returned rows is null.
+	 *
+	 * @return the next sample, or null at end of the report
+	 * @throws IOException
+	 *             when failed to read the input, or the last block is
+	 *             truncated
+	 */
+	public StatSample next() throws IOException {
+		int flags = in.read();
+		if (flags < 0) {
+			return null;
+		}
+		long time;
+		if ((flags & BinaryReportEncoder.FLAG_RESET) != 0) {
+			dictionary.clear();
+			Arrays.fill(kinds, null);
+			Arrays.fill(bits, null);
+			time = unzigzag(readVarlong());
+			prevDelta = 0;
+		} else {
+			prevDelta += unzigzag(readVarlong());
+			time = prevTime + prevDelta;
+		}
+		prevTime = time;
+
+		int newStrings = readVarint();
+		for (int i = 0; i < newStrings; i++) {
+			dictionary.add(readString());
+		}
+		int count = readVarint();
+		StatSample sample = new StatSample(time, count);
+		for (int i = 0; i < count; i++) {
+			readRow(sample);
+		}
+		return sample;
+	}
+
+	private void readRow(StatSample sample) throws IOException {
+		int id = readVarint();
+		if (id >= kinds.length) {
+			kinds = Arrays.copyOf(kinds, 2 * id);
+			bits = Arrays.copyOf(bits, 2 * id);
+		}
+		byte[] prevKinds = kinds[id];
+		long[] prevBits = bits[id];
+		if (null == prevKinds) {
+			prevKinds = new byte[columns];
+			prevBits = new long[columns];
+			kinds[id] = prevKinds;
+			bits[id] = prevBits;
+		}
+
+		int changes = readVarint();
+		for (int i = 0; i < changes; i++) {
+			int col = readVarint();
+			prevKinds[col] = in.readByte();
+			prevBits[col] = 0;
+		}
+
+		Object[] row = new Object[columns];
+		for (int col = firstCol; col < columns; col++) {
+			if (col == dateCol) {
+				continue;
+			}
+			switch (prevKinds[col]) {
+			case BinaryReportEncoder.KIND_LONG:
+				prevBits[col] += unzigzag(readVarlong());
+				row[col] = Long.valueOf(prevBits[col]);
+				break;
+			case BinaryReportEncoder.KIND_DOUBLE:
+				prevBits[col] ^= readXor();
+				row[col] = Double.valueOf(Double.longBitsToDouble(prevBits[col]));
+				break;
+			case BinaryReportEncoder.KIND_FLOAT:
+				prevBits[col] ^= readXor();
+				row[col] = Float.valueOf(Float.intBitsToFloat((int) prevBits[col]));
+				break;
+			case BinaryReportEncoder.KIND_TRUE:
+				row[col] = Boolean.TRUE;
+				break;
+			case BinaryReportEncoder.KIND_FALSE:
+				row[col] = Boolean.FALSE;
+				break;
+			case BinaryReportEncoder.KIND_STRING:
+				row[col] = dictionary.get(readVarint());
+				break;
+			default:
+				// null value
+			}
+		}
+		sample.add(dictionary.get(id), row);
+	}
+
+	/**
+	 * Write all remaining samples as a csv report, including the header line.
+	 *
+	 * @param out
+	 *            output stream to write the report to
+	 * @return number of exported samples
+	 * @throws IOException
+	 *             when failed to read the input, or to write the output
+	 */
+	public int export(OutputStream out) throws IOException {
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		fmt.setTimeZone(TimeZone.getTimeZone(timeZone));
+		CsvEncoder csv = new CsvEncoder();
+		csv.append(header);
+		int samples = 0;
+		StatSample sample;
+		while ((sample = next()) != null) {
+			String timestamp = fmt.format(new Date(sample.getTime()));
+			for (int i = 0; i < sample.getCount(); i++) {
+				Object[] row = sample.getRow(i);
+				csv.append(sample.getLabel(i));
+				for (int col = firstCol; col < columns; col++) {
+					csv.append(',');
+					csv.appendValue(col == dateCol ? timestamp : row[col]);
+				}
+				csv.append('\n');
+			}
+			csv.writeTo(out);
+			csv.reset();
+			samples++;
+		}
+		csv.writeTo(out);
+		return samples;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readVarint() throws IOException {
+		return (int) readVarlong();
+	}
+
+	private long readVarlong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private long readXor() throws IOException {
+		int ctrl = in.readUnsignedByte();
+		if (0 == ctrl) {
+			return 0;
+		}
+		int lead = (ctrl >>> 3) & 7;
+		int trail = ctrl & 7;
+		long xor = 0;
+		for (int i = 7 - lead; i >= trail; i--) {
+			xor |= (long) in.readUnsignedByte() << (i << 3);
+		}
+		return xor;
+	}
+
+	private String readString() throws IOException {
+		byte[] b = new byte[readVarint()];
+		in.readFully(b);
+		return new String(b, BinaryReportEncoder.UTF8);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Export a binary report, or an archived .gz binary report, as csv.
+	 *
+	 * @param args
+	 *            binary report file, and optional csv file, default to stdout
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: java -cp bejmx.jar com.tibco.metrics.bejmx.BinaryReportReader <report.bin> [<report.csv>]");
+			System.exit(1);
+		}
+		InputStream input = new FileInputStream(args[0]);
+		if (args[0].endsWith(".gz")) {
+			input = new GZIPInputStream(input);
+		}
+		BinaryReportReader reader = new BinaryReportReader(input);
+		OutputStream out = args.length > 1 ? new FileOutputStream(args[1]) : System.out;
+		out = new BufferedOutputStream(out);
+		try {
+			reader.export(out);
+		} catch (EOFException e) {
+			System.err.println("Report is truncated, exported complete samples only");
+		} finally {
+			out.flush();
+			if (args.length > 1) {
+				out.close();
+			}
+			reader.close();
+		}
+	}
+}
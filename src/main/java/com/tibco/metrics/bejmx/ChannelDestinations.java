@@ -0,0 +1,214 @@
+/*
+ * ChannelDestinations.java - destination stats of BE channels, collected by operations of the Channels MBean.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Collect throughput of channel destinations from the Channels MBean of an
+ * engine, com.tibco.be:dir=Methods,Group=Channels. The channel URIs returned
+ * by GetChannels are cached for the life of the JMX connection, and are
+ * re-read only when the cache expires at the discovery rescan, or when a
+ * channel fails, e.g., after hot deployment. Each poll then calls
+ * GetDestinations once per channel, so the cost of a poll scales with the
+ * number of channels.
+ *
+ * Items of the returned composite data are matched to report columns by name
+ * without blanks and case, e.g., "Num Events Received" is reported as
+ * NumEventsReceived.
+ *
+ */
+class ChannelDestinations {
+
+	static final String STAT_TYPE = "BEChannelDestination";
+	static final String OBJECT_NAME = "com.tibco.be:dir=Methods,Group=Channels";
+
+	private static final String[] CHANNELS_SIGNATURE = { String.class.getName() };
+	private static final String[] DESTINATIONS_SIGNATURE = { String.class.getName(), String.class.getName() };
+
+	private ObjectName objName;
+	private int dateCol;
+	private int channelCol;
+	private int rowLength;
+
+	// normalized name of each report column
+	private String[] keys;
+
+	// milliseconds between reads of the channel list, 0 or less to read on
+	// every poll
+	private long rescanMillis;
+
+	private volatile List<String> channels = null;
+	private long lastRead = 0;
+
+	/**
+	 * Construct collector of a JMX connection.
+	 *
+	 * @param columns
+	 *            report columns of the stat type
+	 * @param dateCol
+	 *            index of the DateTime column, which is set by the client
+	 * @param rowLength
+	 *            length of report rows, including derived columns
+	 * @param rescanMillis
+	 *            milliseconds between reads of the channel list
+	 */
+	ChannelDestinations(String[] columns, int dateCol, int rowLength, long rescanMillis) {
+		try {
+			this.objName = new ObjectName(OBJECT_NAME);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		this.dateCol = dateCol;
+		this.rowLength = rowLength;
+		this.rescanMillis = rescanMillis;
+		this.keys = new String[columns.length];
+		this.channelCol = -1;
+		for (int col = 0; col < columns.length; col++) {
+			keys[col] = normalize(columns[col]);
+			if ("channeluri".equals(keys[col])) {
+				channelCol = col;
+			}
+		}
+	}
+
+	/**
+	 * @return object name of the Channels MBean
+	 */
+	ObjectName getObjectName() {
+		return objName;
+	}
+
+	/**
+	 * Return URIs of the channels of the engine, and read them from the
+	 * MBean only if the cached list is expired or invalidated.
+	 *
+	 * @param conn
+	 *            connection to the MBean server
+	 * @param stats
+	 *            collector statistics to count requests
+	 * @return channel URIs
+	 * @throws Exception
+	 *             when the operation fails
+	 */
+	List<String> getChannels(MBeanServerConnection conn, PollStats stats) throws Exception {
+		long now = System.currentTimeMillis();
+		List<String> current = channels;
+		if (current != null && rescanMillis > 0 && now - lastRead < rescanMillis) {
+			return current;
+		}
+		stats.addRoundTrips(1);
+		Object result = conn.invoke(objName, "GetChannels", new Object[] { null }, CHANNELS_SIGNATURE);
+		List<String> uris = new ArrayList<String>();
+		for (CompositeData data : getRows(result)) {
+			String uri = getString(data, "channeluri");
+			if (uri != null) {
+				uris.add(uri);
+			}
+		}
+		if (current != null && !current.equals(uris)) {
+			System.out.println(String.format("Channels changed from %s to %s", current, uris));
+		}
+		channels = Collections.unmodifiableList(uris);
+		lastRead = now;
+		return channels;
+	}
+
+	/**
+	 * Discard the cached channel list, so it is read by the next poll.
+	 */
+	void invalidate() {
+		channels = null;
+	}
+
+	/**
+	 * Return stats of the destinations of a channel as report rows.
+	 *
+	 * @param conn
+	 *            connection to the MBean server
+	 * @param channel
+	 *            URI of the channel
+	 * @param stats
+	 *            collector statistics to count requests
+	 * @return one row per destination, in the order of the report columns
+	 * @throws Exception
+	 *             when the operation fails
+	 */
+	Object[][] getDestinations(MBeanServerConnection conn, String channel, PollStats stats) throws Exception {
+		stats.addRoundTrips(1);
+		Object result = conn.invoke(objName, "GetDestinations", new Object[] { channel, null },
+				DESTINATIONS_SIGNATURE);
+		List<CompositeData> list = getRows(result);
+		Object[][] rows = new Object[list.size()][];
+		int idx = 0;
+		for (CompositeData data : list) {
+			rows[idx++] = toRow(data, channel);
+		}
+		return rows;
+	}
+
+	/**
+	 * Convert composite data of a destination to a report row. Items that
+	 * are not report columns are ignored, and missing columns are null.
+	 */
+	Object[] toRow(CompositeData data, String channel) {
+		Object[] row = new Object[rowLength];
+		for (String item : data.getCompositeType().keySet()) {
+			String key = normalize(item);
+			for (int col = 0; col < keys.length; col++) {
+				if (col != dateCol && keys[col].equals(key)) {
+					row[col] = data.get(item);
+					break;
+				}
+			}
+		}
+		if (channelCol >= 0 && null == row[channelCol]) {
+			row[channelCol] = channel;
+		}
+		return row;
+	}
+
+	/**
+	 * Return the rows of an operation result, which is tabular data, or an
+	 * array of composite data.
+	 */
+	@SuppressWarnings("unchecked")
+	static List<CompositeData> getRows(Object result) {
+		List<CompositeData> rows = new ArrayList<CompositeData>();
+		if (result instanceof TabularData) {
+			rows.addAll((Collection<CompositeData>) ((TabularData) result).values());
+		} else if (result instanceof CompositeData[]) {
+			Collections.addAll(rows, (CompositeData[]) result);
+		} else if (result instanceof CompositeData) {
+			rows.add((CompositeData) result);
+		}
+		return rows;
+	}
+
+	private static String getString(CompositeData data, String key) {
+		for (String item : data.getCompositeType().keySet()) {
+			if (normalize(item).equals(key)) {
+				Object value = data.get(item);
+				return value != null ? value.toString() : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return name in lower case without blanks and punctuation
+	 */
+	static String normalize(String name) {
+		return name.replaceAll("[^A-Za-z0-9]", "").toLowerCase();
+	}
+}
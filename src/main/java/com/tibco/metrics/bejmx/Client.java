@@ -7,14 +7,33 @@
 package com.tibco.metrics.bejmx;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.Attribute;
 import javax.management.AttributeList;
@@ -35,17 +54,129 @@ public class Client {
 	protected JMXConnector jmxc = null;
 	protected MBeanServerConnection mbsc = null;
 
+	// pool of connections used to fetch entity attributes concurrently, the
+	// first one is the main connection mbsc
+	private int connections = 1;
+	private List<JMXConnector> fetchConnectors = new ArrayList<JMXConnector>();
+	private MBeanServerConnection[] fetchConns = null;
+
+	// executor and max number of in-flight requests for concurrent fetch
+	private ExecutorService fetchExecutor = null;
+	private int fetchWindow = 1;
+
+	// global limit of RMI calls in flight, shared by all engines
+	private Semaphore callLimiter = null;
+
+	// timeouts, backoff and circuit breaker of connections, executor of
+	// connection attempts, and state of connection attempts of this engine
+	private ConnectionPolicy connectionPolicy = ConnectionPolicy.getDefault();
+	private ExecutorService connectExecutor = null;
+	private volatile ConnectionManager connectionManager = null;
+
 	private String engineName;
 	private String host;
 	private int port;
 	private int pid = -1;
+	// JMX connector address of a local engine, resolved by discovery
+	private volatile String connectorAddress = null;
 	private String username;
 	private String password;
-	private HashMap<String, FileWriter> writerMap;
-	private HashMap<String, String> fileMap;
+	// statType -> report file
+	private HashMap<String, ReportFile> reportFiles;
+
+	// asynchronous write pipeline, null to write report files in the polling
+	// thread
+	private ReportWriter reportWriter = null;
+
+	// durability, rollover and staleness check settings of report files
+	private ReportPolicy reportPolicy = ReportPolicy.getDefault();
+
+	// in-memory store of recent values, null if not configured, and series of
+	// each stat type of this engine
+	private MetricStore metricStore = null;
+	private HashMap<String, MetricStore.SeriesGroup> storeGroups = new HashMap<String, MetricStore.SeriesGroup>();
+
+	// Prometheus exposition of the latest values, null if not configured,
+	// and sections of each stat type of this engine
+	private PrometheusExporter prometheusExporter = null;
+	private HashMap<String, PrometheusExporter.Section> promSections = new HashMap<String, PrometheusExporter.Section>();
+
+	// exporter to push rows to a metrics collector, null if not configured,
+	// and buffer of lines of the current poll
+	private PushExporter pushExporter = null;
+	private CsvEncoder pushEncoder = new CsvEncoder();
+
+	// append delta and rate columns of counters, and calculators of each stat
+	// type
+	private boolean computeRates = false;
+	private HashMap<String, CounterRates> counterRates = new HashMap<String, CounterRates>();
+
+	// invoke the reset operation of stat types after each poll, so they report
+	// interval values
+	private boolean resetRTCStats = true;
+
+	// polling interval of each stat type in seconds, null to poll every stat
+	// type in every slot, and schedules of each stat type
+	private Map<String, Integer> pollIntervals = null;
+	private int tickSeconds = 0;
+	private boolean adaptiveInterval = false;
+	private int adaptiveMaxFactor = 8;
+	private double adaptiveBudget = 0.5;
+	private ConcurrentHashMap<String, PollSchedule> schedules = new ConcurrentHashMap<String, PollSchedule>();
+
+	// predicates of report rows of each stat type, skip rows that are the
+	// same as the last row written, and filters of each stat type
+	private Map<String, List<String>> rowPredicates = Collections.emptyMap();
+	private boolean suppressUnchanged = false;
+	private int suppressHeartbeat = 0;
+	private HashMap<String, RowFilter> rowFilters = new HashMap<String, RowFilter>();
+
+	// resolutions of rollup reports in seconds, and rollups of each stat type
+	private int[] rollupSeconds = new int[0];
+	private HashMap<String, Rollup[]> rollups = new HashMap<String, Rollup[]>();
+	private CsvEncoder rollupEncoder = new CsvEncoder();
+	private SimpleDateFormat rollupFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+	// reusable buffers for encoding report rows, and for attribute values of
+	// each stat type
+	private CsvEncoder encoder = new CsvEncoder();
+	private HashMap<String, Object[][]> rowBuffers = new HashMap<String, Object[][]>();
+
+	// report attributes exposed by each MBean, cached for the life of the
+	// current JMX connection, or until the MBean is unregistered
+	private Map<ObjectName, AttributePlan> attrNameCache = new ConcurrentHashMap<ObjectName, AttributePlan>();
 
+	// object names of monitored MBeans, kept current by MBean server
+	// notifications
+	private EntityRegistry registry = null;
+
+	// channel list of channel destinations, cached for the life of the
+	// current JMX connection
+	private ChannelDestinations channelDestinations = null;
+
+	// seconds between full rescans of MBean object names
+	private int discoveryRescan = 3600;
+
+	// time of the current poll, in milliseconds and as written in reports
+	private long time;
 	private String timestamp;
 
+	// true while a poll of this engine is scheduled or running
+	private AtomicBoolean polling = new AtomicBoolean(false);
+
+	// number of poll slots skipped because the previous poll was still running
+	private AtomicLong skippedSlots = new AtomicLong(0);
+
+	// number of connection attempts after the first successful connection
+	private AtomicLong reconnects = new AtomicLong(0);
+	private boolean connected = false;
+
+	// collector statistics of each stat type, registered as MBeans and
+	// written to the stats report if configured
+	private ConcurrentHashMap<String, PollStats> pollStats = new ConcurrentHashMap<String, PollStats>();
+	private boolean registerStats = false;
+	private boolean statsReport = false;
+
 	// parameters to set for writing stat files in separate thread
 	private String reportFolder = null;
 	private String[] statTypes = new String[] { "BEAgentEntity", "BEEntityCache", "RTCTxnManagerReport" };
@@ -70,12 +201,19 @@ public class Client {
 			"NumModifiedFromAgents", "NumModifiedFromChannel", "NumRecovered", "NumRetractedFromAgents",
 			"NumRetractedFromChannel" };
 
-	// TODO: add channel destination attributes
-	// com.tibco.be/Methods/Channels GetChannels(null), GetDestinations(channel,
-	// null)
-	// Attributes: Channel URI, Destination URI, Num Events Received, Num Events
-	// Sent, Received Events Rate, Received Events Rate in last stats interval,
-	// Suspended
+	// cumulative counters of each stat type, reported with delta and rate
+	// columns if configured
+	static String[] BEEntityCacheCounters = { "GetCount", "PutCount", "RemoveCount" };
+	static String[] BERTCTxnManagerCounters = { "TotalDBTxnsCompleted", "TotalErrors", "TotalSuccessfulTxns" };
+	static String[] BEAgentEntityCounters = { "NumAssertedFromAgents", "NumAssertedFromChannel", "NumHitsInL1Cache",
+			"NumMissesInL1Cache", "NumModifiedFromAgents", "NumModifiedFromChannel", "NumRecovered",
+			"NumRetractedFromAgents", "NumRetractedFromChannel" };
+
+	// ClassName=BEChannelDestination: com.tibco.be/Methods/Channels
+	// GetChannels(null), GetDestinations(channel, null)
+	static String[] BEChannelDestinationReport = { "DestinationURI", "DateTime", "ChannelURI", "NumEventsReceived",
+			"NumEventsSent", "ReceivedEventsRate", "ReceivedEventsRateInLastStatsInterval", "Suspended" };
+	static String[] BEChannelDestinationCounters = { "NumEventsReceived", "NumEventsSent" };
 
 	/**
 	 * Construct a JMX client to connect to a BE engine. MBean server does not
@@ -113,23 +251,120 @@ public class Client {
 		this.port = port;
 		this.username = username;
 		this.password = password;
-		this.writerMap = new HashMap<String, FileWriter>();
-		this.fileMap = new HashMap<String, String>();
+		this.reportFiles = new HashMap<String, ReportFile>();
 	}
 
 	public Client(int pid) {
 		this.pid = pid;
 		this.engineName = "PID-" + pid;
-		this.writerMap = new HashMap<String, FileWriter>();
-		this.fileMap = new HashMap<String, String>();
+		this.reportFiles = new HashMap<String, ReportFile>();
+	}
+
+	/**
+	 * Construct a JMX client to connect to a local engine by a connector
+	 * address that is already resolved, so the polling thread never attaches
+	 * to the engine.
+	 *
+	 * @param pid
+	 *            process id of the engine
+	 * @param engineName
+	 *            name of the engine, unique per JVM instance
+	 * @param connectorAddress
+	 *            JMX service URL of the local management agent of the engine
+	 */
+	public Client(int pid, String engineName, String connectorAddress) {
+		this(pid);
+		this.engineName = engineName;
+		this.connectorAddress = connectorAddress;
+	}
+
+	/**
+	 * @return connector address resolved by discovery, or null
+	 */
+	public String getConnectorAddress() {
+		return connectorAddress;
+	}
+
+	/**
+	 * Connect by a new address that the engine published, from the next
+	 * connection attempt. May be called by any thread.
+	 *
+	 * @param connectorAddress
+	 *            JMX service URL of the local management agent of the engine
+	 */
+	public void setConnectorAddress(String connectorAddress) {
+		this.connectorAddress = connectorAddress;
+	}
+
+	/**
+	 * @return true if connecting to the engine failed with an error since the
+	 *         last call, may be called by any thread
+	 */
+	public boolean takeConnectFailure() {
+		ConnectionManager manager = connectionManager;
+		return manager != null && manager.takeConnectFailure();
+	}
+
+	/**
+	 * Open the connections of this engine, unless it is backing off after
+	 * failures, or its circuit is open. The polling thread waits at most the
+	 * connect timeout.
+	 *
+	 * @return true if the engine is connected
+	 */
+	private boolean connect() {
+		ConnectionManager manager = getConnectionManager();
+		long attempts = manager.getAttempts();
+		JMXConnector[] connectors = manager.connect(new Callable<JMXConnector[]>() {
+			public JMXConnector[] call() throws IOException {
+				return openConnectors();
+			}
+		}, System.currentTimeMillis());
+		if (connected && manager.getAttempts() > attempts) {
+			reconnects.incrementAndGet();
+		}
+		if (null == connectors) {
+			return false;
+		}
+		jmxc = connectors[0];
+		for (int i = 1; i < connectors.length; i++) {
+			fetchConnectors.add(connectors[i]);
+		}
+		try {
+			mbsc = limit(jmxc.getMBeanServerConnection());
+
+			// additional connections for concurrent attribute fetch
+			fetchConns = new MBeanServerConnection[connectors.length];
+			fetchConns[0] = mbsc;
+			for (int i = 1; i < fetchConns.length; i++) {
+				fetchConns[i] = limit(connectors[i].getMBeanServerConnection());
+			}
+		} catch (IOException e) {
+			dropConnection(e.getMessage());
+			return false;
+		}
+		manager.watch(jmxc);
+		connected = true;
+		return true;
 	}
 
+	/**
+	 * Open the main connection and the additional fetch connections to the
+	 * MBean server of this engine. Called by the connect executor.
+	 *
+	 * @return the connectors, the first one is the main connection
+	 * @throws IOException
+	 *             when a connection fails, all opened connections are closed
+	 */
 	@SuppressWarnings("restriction")
-	private void openConnection() throws IOException {
+	private JMXConnector[] openConnectors() throws IOException {
 		// connect to MBean server
 		String urlStr = null;
-		HashMap<String, String[]> env = null;
-		if (pid != -1) {
+		final HashMap<String, Object> env = new HashMap<String, Object>();
+		if (connectorAddress != null) {
+			// local Java process resolved by discovery
+			urlStr = connectorAddress;
+		} else if (pid != -1) {
 			// local Java process
 			urlStr = sun.management.ConnectorAddressLink.importFrom(pid);
 			if (null == urlStr) {
@@ -140,16 +375,44 @@ public class Client {
 		} else {
 			// remote MBean server
 			if (username != null) {
-				env = new HashMap<String, String[]>();
 				env.put("jmx.remote.credentials", new String[] { username, password });
 			}
 			urlStr = String.format("service:jmx:rmi:///jndi/rmi://%s:%d/jmxrmi", host, port);
 		}
 		System.out.println(
 				String.format("Connect to engine %s on JMX url %s with user %s ", engineName, urlStr, username));
-		JMXServiceURL url = new JMXServiceURL(urlStr);
-		jmxc = JMXConnectorFactory.connect(url, env);
-		mbsc = jmxc.getMBeanServerConnection();
+		if (connectionPolicy.getCallTimeoutMillis() > 0) {
+			// notifications are fetched by long polls, which must return
+			// before the call timeout
+			env.put("jmx.remote.x.notification.fetch.timeout",
+					Math.min(60000L, connectionPolicy.getCallTimeoutMillis() / 2));
+		}
+		final JMXServiceURL url = new JMXServiceURL(urlStr);
+		JMXConnector[] connectors = new JMXConnector[Math.max(1, connections)];
+		try {
+			for (int i = 0; i < connectors.length; i++) {
+				connectors[i] = withPermit(new Callable<JMXConnector>() {
+					public JMXConnector call() throws IOException {
+						return JMXConnectorFactory.connect(url, env);
+					}
+				});
+			}
+		} catch (Exception e) {
+			for (JMXConnector c : connectors) {
+				if (c != null) {
+					try {
+						c.close();
+					} catch (IOException ex) {
+						// do nothing
+					}
+				}
+			}
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw (RuntimeException) e;
+		}
+		return connectors;
 	}
 
 	private void loadAgentJar() throws IOException {
@@ -188,428 +451,1600 @@ public class Client {
 	}
 
 	/**
-	 * Find or create a writer for stat file of a specified type
+	 * Set number of JMX connections to the engine, and executor for fetching
+	 * entity attributes concurrently over the connections.
 	 *
-	 * @param statType
-	 *            type of statistics, currently supports BEAgentEntity,
-	 *            BEEntityCache, RTCTxnManagerReport (default)
-	 * @return
-	 * @throws IOException
-	 *             when failed to create stat file
-	 */
-	private FileWriter getWriter(String statType) throws IOException {
-		FileWriter writer = writerMap.get(statType);
-		if (writer != null) {
-			String filename = fileMap.get(statType);
-			if (statFilename(statType).equals(filename)) {
-				return writer;
-			} else {
-				// start a new day, so close the old writer
-				closeWriter(statType);
-			}
-		}
+	 * @param connections
+	 *            number of JMX connections to open
+	 * @param fetchWindow
+	 *            max number of attribute requests in flight
+	 * @param fetchExecutor
+	 *            executor to run attribute requests, or null to fetch entities
+	 *            one by one. Virtual thread executors fetch concurrently even
+	 *            over a single connection.
+	 */
+	public void setFetchPool(int connections, int fetchWindow, ExecutorService fetchExecutor) {
+		this.connections = connections;
+		this.fetchWindow = Math.max(1, fetchWindow);
+		this.fetchExecutor = fetchExecutor;
+	}
 
-		// return a new file writer
-		return createWriter(statType);
+	/**
+	 * Set timeouts, backoff and circuit breaker of connections to the engine.
+	 *
+	 * @param connectionPolicy
+	 *            connection settings shared by all engines
+	 * @param connectExecutor
+	 *            executor of connection attempts, or null to connect in the
+	 *            polling thread
+	 */
+	public void setConnectionPolicy(ConnectionPolicy connectionPolicy, ExecutorService connectExecutor) {
+		this.connectionPolicy = connectionPolicy;
+		this.connectExecutor = connectExecutor;
+		this.connectionManager = null;
 	}
 
-	public void closeWriter(String statType) {
-		FileWriter writer = writerMap.get(statType);
-		if (writer != null) {
-			try {
-				System.out.println(String.format("Close writer for %s on connection %s:%s", statType, host, port));
-				writer.close();
-			} catch (IOException io) {
-				// do nothing
-			}
+	/**
+	 * @return state of connection attempts of this engine
+	 */
+	ConnectionManager getConnectionManager() {
+		if (null == connectionManager) {
+			String engine = (pid != -1) ? engineName : String.format("%s @ %s:%s", engineName, host, port);
+			connectionManager = new ConnectionManager(engine, connectionPolicy, connectExecutor);
 		}
-		writerMap.remove(statType);
-		fileMap.remove(statType);
+		return connectionManager;
 	}
 
 	/**
-	 * Create a file and pre-configured report folder for writing stat logs of a
-	 * given type
-	 *
-	 * @param statType
-	 *            type of statistics, currently supports BEAgentEntity,
-	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * Set semaphore that limits the number of RMI calls in flight across all
+	 * engines. The limit applies to connects and to every call on the MBean
+	 * server connections, i.e., attribute fetches, name queries, listener
+	 * registration and operations.
 	 *
-	 * @return file writer to append text data
-	 * @throws IOException
+	 * @param callLimiter
+	 *            shared semaphore, or null for no limit
 	 */
-	private FileWriter createWriter(String statType) throws IOException {
-		FileWriter writer = null;
-		File folder = null;
-		if (reportFolder != null) {
-			folder = new File(reportFolder);
-			if (!folder.exists()) {
-				boolean ok = folder.mkdirs();
-				if (!ok) {
-					throw new IOException("Failed to create directory " + reportFolder);
-				}
-			}
-		}
-
-		String filename = statFilename(statType);
-		File statFile = new File(folder, filename);
-		boolean isNew = !statFile.exists();
-		writer = new FileWriter(statFile, true); // file for append
-		if (isNew) {
-			// write header as the first line of new file
-			writer.write(getHeader(statType));
-		}
-
-		// cache the writer for data or cleanup
-		writerMap.put(statType, writer);
-		fileMap.put(statType, filename);
-		return writer;
+	public void setCallLimiter(Semaphore callLimiter) {
+		this.callLimiter = callLimiter;
 	}
 
-	private String statFilename(String statType) {
-		Calendar cal = Calendar.getInstance();
-		if (pid != -1) {
-			return String.format("%s_%s_%3$tm_%3$td.csv", engineName, statType, cal);
-		} else {
-			return String.format("%s_%s_%s_%s_%5$tm_%5$td.csv", engineName, host, port, statType, cal);
-		}
+	/**
+	 * Set period of full rescans of MBean object names. Between rescans, the
+	 * names are updated by MBean registration notifications.
+	 *
+	 * @param discoveryRescan
+	 *            seconds between rescans, 0 or less to query names on every
+	 *            poll
+	 */
+	public void setDiscoveryRescan(int discoveryRescan) {
+		this.discoveryRescan = discoveryRescan;
 	}
 
 	/**
-	 * Query MBean to get list of objects under /Agent/<agent-id>/Entity
+	 * Set asynchronous write pipeline for report files.
 	 *
-	 * @return set of object names for agent entities
-	 *
-	 * @throws Exception
+	 * @param reportWriter
+	 *            write pipeline shared by all engines, or null to write report
+	 *            files in the polling thread
 	 */
-	private Set<ObjectName> getAgentEntityList() throws Exception {
-		return mbsc.queryNames(new ObjectName("com.tibco.be:type=Agent,agentId=*,subType=Entity,entityId=*"), null);
+	public void setReportWriter(ReportWriter reportWriter) {
+		this.reportWriter = reportWriter;
 	}
 
 	/**
-	 * Query MBean to get list of objects under /Cache
+	 * Set durability, rollover and staleness check settings of report files.
 	 *
-	 * @return set of object names for cache entities
+	 * @param reportPolicy
+	 *            settings shared by all report files
+	 */
+	public void setReportPolicy(ReportPolicy reportPolicy) {
+		this.reportPolicy = reportPolicy;
+	}
+
+	/**
+	 * Set the in-memory store to record values of all report rows.
 	 *
-	 * @throws Exception
+	 * @param metricStore
+	 *            store shared by all engines, or null to keep no values in
+	 *            memory
 	 */
-	private Set<ObjectName> getCacheList() throws Exception {
-		return mbsc.queryNames(new ObjectName("com.tibco.be:service=Cache,name=*"), null);
+	public void setMetricStore(MetricStore metricStore) {
+		this.metricStore = metricStore;
 	}
 
 	/**
-	 * Query MBean to get MBean of name RTCTxnManagerReport
+	 * Set the exporter to publish the latest values of all report rows.
 	 *
-	 * @return one object name for RTCTxnManagerReport, wrapped as Set to match
-	 *         other MBean's
+	 * @param prometheusExporter
+	 *            exporter shared by all engines, or null to not publish
+	 */
+	public void setPrometheusExporter(PrometheusExporter prometheusExporter) {
+		this.prometheusExporter = prometheusExporter;
+	}
+
+	/**
+	 * Set how statistics of the collector itself are published.
 	 *
-	 * @throws Exception
+	 * @param registerStats
+	 *            true to register statistics of each stat type as MBeans
+	 * @param statsReport
+	 *            true to write statistics of all stat types to the report of
+	 *            type BEJMXStats after each poll
 	 */
-	private Set<ObjectName> getRTCTxnList() throws Exception {
-		return mbsc.queryNames(new ObjectName("com.tibco.be:service=RTCTxnManagerReport"), null);
+	public void setCollectorStats(boolean registerStats, boolean statsReport) {
+		this.registerStats = registerStats;
+		this.statsReport = statsReport;
 	}
 
 	/**
-	 * reset stats for RTCTxnManagerReport, so the next call returns a delta
-	 * stat
+	 * Return collector statistics of a stat type, and register them as MBean
+	 * when they are created if configured.
 	 *
-	 * @throws IOException
+	 * @param statType
+	 *            type of statistics
+	 * @return statistics of the stat type
 	 */
-	private void resetRTCTxnStats() throws IOException {
-		try {
-			ObjectName mbeanName = new ObjectName("com.tibco.be:service=RTCTxnManagerReport");
-			mbsc.invoke(mbeanName, "resetStats", null, null);
-		} catch (Exception e) {
-			throw new IOException("Failed to reset stats for RTCTxnManagerReport: " + e.getMessage());
+	PollStats getPollStats(String statType) {
+		PollStats stats = pollStats.get(statType);
+		if (null == stats) {
+			stats = new PollStats(getReportPrefix(), statType, reconnects, skippedSlots);
+			pollStats.put(statType, stats);
+			if (registerStats) {
+				stats.register();
+			}
 		}
-		/*
-		 * RTCTxnManagerReportMBean mbeanProxy = JMX.newMBeanProxy(mbsc,
-		 * mbeanName, RTCTxnManagerReportMBean.class, true); // reset the stats
-		 * to prepare for the next call mbeanProxy.resetStats();
-		 */
+		return stats;
 	}
 
 	/**
-	 * Query MBean to collect list of attribute of a specified object name.
-	 *
-	 * @param objName
-	 *            object name of a watched entity
+	 * Set the exporter to push all report rows to a metrics collector.
 	 *
-	 * @return attribute name and value map
+	 * @param pushExporter
+	 *            exporter shared by all engines, or null to not push
+	 */
+	public void setPushExporter(PushExporter pushExporter) {
+		this.pushExporter = pushExporter;
+	}
+
+	/**
+	 * Append delta and rate columns of cumulative counters to reports.
 	 *
-	 * @throws Exception
+	 * @param computeRates
+	 *            true to report deltas and rates of counters
 	 */
-	private Map<String, Object> getMBeanAttributes(ObjectName objName) throws Exception {
-		MBeanInfo info = mbsc.getMBeanInfo(objName);
-		MBeanAttributeInfo[] attrInfo = info.getAttributes();
-		String[] attrNames = new String[attrInfo.length];
+	public void setComputeRates(boolean computeRates) {
+		this.computeRates = computeRates;
+	}
 
-		for (int i = 0; i < attrNames.length; i++) {
-			attrNames[i] = attrInfo[i].getName();
-		}
+	/**
+	 * Invoke the reset operation of stat types that define one, e.g.,
+	 * RTCTxnManagerReport, on the engine after each poll. Without reset, the
+	 * totals of the report are cumulative, and other tools reading the same
+	 * MBean are not affected.
+	 *
+	 * @param resetRTCStats
+	 *            true to reset stats after each poll
+	 */
+	public void setResetRTCStats(boolean resetRTCStats) {
+		this.resetRTCStats = resetRTCStats;
+	}
 
-		AttributeList list = mbsc.getAttributes(objName, attrNames);
-		Map<String, Object> attrMap = new HashMap<String, Object>();
+	/**
+	 * Write rollup reports of each stat type at coarser resolutions.
+	 *
+	 * @param rollupSeconds
+	 *            resolutions of rollup reports in seconds, e.g., 60, 300,
+	 *            3600
+	 */
+	public void setRollups(int[] rollupSeconds) {
+		this.rollupSeconds = rollupSeconds;
+	}
 
-		for (Attribute attr : list.asList()) {
-			attrMap.put(attr.getName(), attr.getValue());
-		}
-		return attrMap;
+	/**
+	 * Poll each stat type at its own interval, and optionally adapt the
+	 * intervals to the poll time and the change rate of this engine.
+	 *
+	 * @param tickSeconds
+	 *            interval of the scheduler slots, which divides all
+	 *            intervals
+	 * @param intervals
+	 *            interval of each stat type in seconds, stat types that are
+	 *            not listed are polled in every slot
+	 * @param adaptive
+	 *            true to stretch the interval of a stat type when its polls
+	 *            are slow or its values are unchanged
+	 * @param maxFactor
+	 *            max adaptive interval as a multiple of the configured
+	 *            interval
+	 * @param budget
+	 *            fraction of the interval that a poll may take before the
+	 *            interval is stretched
+	 */
+	public void setPollIntervals(int tickSeconds, Map<String, Integer> intervals, boolean adaptive, int maxFactor,
+			double budget) {
+		this.tickSeconds = tickSeconds;
+		this.pollIntervals = intervals;
+		this.adaptiveInterval = adaptive;
+		this.adaptiveMaxFactor = maxFactor;
+		this.adaptiveBudget = budget;
+		schedules.clear();
 	}
 
-	public void setTimestamp(String timestamp) {
-		this.timestamp = timestamp;
+	/**
+	 * Write only report rows that match predicates, and optionally only rows
+	 * that changed since the last row written for the entity. Rates, rollups,
+	 * the metric store and exporters still receive every row.
+	 *
+	 * @param predicates
+	 *            expressions of report rows of each stat type, e.g.,
+	 *            CacheSize &gt; 0
+	 * @param suppressUnchanged
+	 *            true to skip rows whose values are unchanged
+	 * @param heartbeat
+	 *            write an unchanged row after this number of polls, 0 to
+	 *            never write unchanged rows
+	 */
+	public void setRowFilters(Map<String, List<String>> predicates, boolean suppressUnchanged, int heartbeat) {
+		this.rowPredicates = predicates;
+		this.suppressUnchanged = suppressUnchanged;
+		this.suppressHeartbeat = heartbeat;
+		rowFilters.clear();
 	}
 
 	/**
-	 * Collect all pre-configured stats, and write them to stat log files. can
-	 * be called by separate worker threads.
+	 * Return the filter of report rows of a stat type.
 	 *
-	 * @throws IOException
-	 *             when failed to write stat file
+	 * @param statType
+	 *            type of statistics
+	 * @return the filter, or null if every row is written
 	 */
-	public void writeAllMetrics() {
-		if (null == timestamp) {
-			// should not be here, just in case.
-			SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-			timestamp = fmt.format(Calendar.getInstance().getTime());
-		}
-		if (statTypes != null) {
-			if (null == jmxc) {
-				try {
-					// reconnect to JMX
-					openConnection();
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.out
-							.println(String.format("Failed to connect to engine %s @ %s:%s ", engineName, host, port));
-					closeConnection();
-					timestamp = null;
-					return;
-				}
-			}
-			for (String statType : statTypes) {
-				try {
-					writeMetrics(statType, timestamp);
-				} catch (IOException e) {
-					// close old file and try again with new writer
-					System.out.println(
-							String.format("Failed to write %s from %s:%s %s", statType, host, port, e.getMessage()));
-					closeWriter(statType);
-					try {
-						writeMetrics(statType, timestamp);
-					} catch (IOException io) {
-						System.out.println(
-								String.format("Exception while writing stat for %s: %s", statType, io.getMessage()));
-						closeWriter(statType);
-					}
+	private RowFilter getRowFilter(String statType) {
+		RowFilter filter = rowFilters.get(statType);
+		if (null == filter) {
+			List<String> predicates = rowPredicates.get(statType);
+			if (null == predicates) {
+				if (!suppressUnchanged) {
+					return null;
 				}
+				predicates = Collections.emptyList();
 			}
+			filter = new RowFilter(getColumns(statType), getReportColumns(statType).length,
+					getDateColumn(statType), predicates, suppressUnchanged, suppressHeartbeat);
+			rowFilters.put(statType, filter);
 		}
-		timestamp = null;
+		return filter;
 	}
 
 	/**
-	 * Collect MBean data of a specified type, and write data to pre-configured
-	 * log file
+	 * Return the polling schedule of a stat type.
 	 *
 	 * @param statType
 	 *            type of statistics, currently supports BEAgentEntity,
 	 *            BEEntityCache, RTCTxnManagerReport (default)
-	 * @throws IOException
-	 *             when failed to write stat data to file
+	 * @return the schedule, or null if every stat type is polled in every
+	 *         slot
 	 */
-	public void writeMetrics(String statType, String timestamp) throws IOException {
-		FileWriter writer = getWriter(statType);
-
-		Set<ObjectName> list = null;
-		// query MBean for list of entities
-		try {
-			if ("BEEntityCache".equals(statType)) {
-				list = getCacheList();
-			} else if ("BEAgentEntity".equals(statType)) {
-				list = getAgentEntityList();
-			} else {
-				list = getRTCTxnList();
+	PollSchedule getSchedule(String statType) {
+		if (null == pollIntervals) {
+			return null;
+		}
+		PollSchedule schedule = schedules.get(statType);
+		if (null == schedule) {
+			Integer seconds = pollIntervals.get(statType);
+			long baseMillis = 1000L * (seconds != null ? seconds : tickSeconds);
+			schedule = new PollSchedule(baseMillis, 1000L * tickSeconds, adaptiveInterval,
+					adaptiveMaxFactor * baseMillis, adaptiveBudget);
+			PollSchedule existing = schedules.putIfAbsent(statType, schedule);
+			if (existing != null) {
+				schedule = existing;
 			}
-		} catch (Exception e) {
-			System.out.println(String.format("Failed to get entity list for %s: %s\n", statType, e.getMessage()));
-			closeConnection();
 		}
+		return schedule;
+	}
 
-		if (null == list || 0 == list.size()) {
-			writer.write(String.format("Entity list for %s is empty", statType));
-			return;
+	/**
+	 * Check whether any stat type of this engine is due in a scheduler slot.
+	 *
+	 * @param slot
+	 *            time of the slot in milliseconds
+	 * @return true if the engine should be polled in the slot
+	 */
+	public boolean isDue(long slot) {
+		if (null == statTypes) {
+			return false;
 		}
-
-		// query MBean for attributes of each entity
-		for (ObjectName on : list) {
-			String name = null;
-			try {
-				if ("BEEntityCache".equals(statType)) {
-					name = on.getKeyProperty("name");
-				} else if ("BEAgentEntity".equals(statType)) {
-					name = on.getKeyProperty("entityId");
-				} else {
-					name = statType;
-				}
-				Map<String, Object> attrMap = getMBeanAttributes(on);
-				attrMap.put("DateTime", timestamp);
-				String row = serializeMetrics(statType, name, attrMap);
-				writer.write(row);
-
-				// reset stats
-				if ("RTCTxnManagerReport".equals(statType)) {
-					resetRTCTxnStats();
-				}
-			} catch (Exception ex) {
-				writer.write(String.format("Failed to get attributes for entity %s: %s\n", name, ex.getMessage()));
+		for (String statType : statTypes) {
+			PollSchedule schedule = getSchedule(statType);
+			if (null == schedule || schedule.isDue(slot)) {
+				return true;
 			}
 		}
-		writer.flush();
+		return false;
+	}
 
-		// throw exception if file becomes stale, so the writer is closed and
-		// re-created
-		checkFile(statType);
+	/**
+	 * @return name of this engine in report file names and in the metric
+	 *         store, e.g., engine_host_port
+	 */
+	public String getReportPrefix() {
+		return (pid != -1) ? engineName : String.format("%s_%s_%s", engineName, host, port);
 	}
 
 	/**
-	 * Check if the file still exists and is writable. Linux allows the system
-	 * to continue to write even if file is deleted. So, this check will throw
-	 * exception, which will lead to closing and re-creating the file writer.
+	 * Find or create the report file of a specified type
 	 *
 	 * @param statType
-	 *            type of the report
-	 * @throws IOException
-	 *             when the report file for the stat type no longer exist or not
-	 *             writable.
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return report file of the stat type
 	 */
-	private void checkFile(String statType) throws IOException {
-		File statFile = new File(reportFolder, statFilename(statType));
-		if (!statFile.exists() || !statFile.canWrite()) {
-			throw new IOException(String.format("File %s no longer exist", statFile.getAbsolutePath()));
+	private ReportFile getReportFile(String statType) {
+		ReportFile file = reportFiles.get(statType);
+		if (null == file) {
+			file = new ReportFile(reportFolder, getReportPrefix(), statType, getHeader(statType), reportPolicy);
+			if (ReportPolicy.FORMAT_BINARY.equals(reportPolicy.getFormat())) {
+				file.setEncoder(new BinaryReportEncoder(getHeader(statType), getColumns(statType).length,
+						getFirstColumn(statType), getDateColumn(statType)));
+			}
+			file.setStats(getPollStats(statType));
+			reportFiles.put(statType, file);
 		}
+		return file;
 	}
 
 	/**
-	 * Write header string for stats of a speciied type into a pre-configured
-	 * stat log file
+	 * Find or create the rollup report file of a stat type, e.g., the report
+	 * of type BEEntityCache_1m.
 	 *
 	 * @param statType
 	 *            type of statistics, currently supports BEAgentEntity,
 	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param rollup
+	 *            rollup of the stat type
+	 * @return report file of the rollup
 	 */
-	public String getHeader(String statType) {
-		StringBuilder str = new StringBuilder();
-		if (statType.equals("BEEntityCache")) {
-			str.append(BEEntityCachereportCols[0]);
-			for (int idx = 1; idx < BEEntityCachereportCols.length; idx++) {
+	private ReportFile getRollupFile(String statType, Rollup rollup) {
+		String rollupType = statType + "_" + rollup.getName();
+		ReportFile file = reportFiles.get(rollupType);
+		if (null == file) {
+			StringBuilder str = new StringBuilder(getStatType(statType).getLabelColumn());
+			for (String col : rollup.getColumns()) {
 				str.append(',');
-				str.append(BEEntityCachereportCols[idx]);
+				str.append(col);
 			}
-		} else if (statType.equals("BEAgentEntity")) {
-			str.append("Object,");
-			str.append(BEAgentEntityReport[0]);
-			for (int idx = 1; idx < BEAgentEntityReport.length; idx++) {
-				str.append(',');
-				str.append(BEAgentEntityReport[idx]);
+			str.append('\n');
+			file = new ReportFile(reportFolder, getReportPrefix(), rollupType, str.toString(), reportPolicy);
+			if (ReportPolicy.FORMAT_BINARY.equals(reportPolicy.getFormat())) {
+				file.setEncoder(new BinaryReportEncoder(str.toString(), rollup.getColumns().length, 0, 0));
 			}
-		} else {
-			str.append("Object,");
-			str.append(BERTCTxnManagerReport[0]);
-			for (int idx = 1; idx < BERTCTxnManagerReport.length; idx++) {
+			file.setStats(getPollStats(statType));
+			reportFiles.put(rollupType, file);
+		}
+		return file;
+	}
+
+	/**
+	 * Find or create the report of collector statistics, with one row per
+	 * stat type of each poll.
+	 *
+	 * @return report file of type BEJMXStats
+	 */
+	private ReportFile getStatsFile() {
+		ReportFile file = reportFiles.get("BEJMXStats");
+		if (null == file) {
+			StringBuilder str = new StringBuilder("StatType");
+			for (String col : PollStats.COLUMNS) {
 				str.append(',');
-				str.append(BERTCTxnManagerReport[idx]);
+				str.append(col);
+			}
+			str.append('\n');
+			file = new ReportFile(reportFolder, getReportPrefix(), "BEJMXStats", str.toString(), reportPolicy);
+			if (ReportPolicy.FORMAT_BINARY.equals(reportPolicy.getFormat())) {
+				file.setEncoder(new BinaryReportEncoder(str.toString(), PollStats.COLUMNS.length, 0, 0));
 			}
+			reportFiles.put("BEJMXStats", file);
 		}
-		str.append('\n');
-		return str.toString();
+		return file;
 	}
 
 	/**
-	 * Convert MBean attributes of a monitored entity into string
+	 * Return rollups of a stat type, one for each configured resolution.
 	 *
 	 * @param statType
 	 *            type of statistics, currently supports BEAgentEntity,
 	 *            BEEntityCache, RTCTxnManagerReport (default)
-	 * @param name
-	 *            name of the monitored entity, e.g., concept of event
-	 * @param attrs
-	 *            statistic data in name-value pairs.
-	 * @return resulting string containing the statistic data
-	 * @throws IOException
+	 * @return rollups of the stat type
 	 */
-	private String serializeMetrics(String statType, String name, Map<String, Object> attrs) throws IOException {
-		StringBuilder rec = new StringBuilder();
-
-		if ("BEAgentEntity".equals(statType)) {
-			String cname = name;
-			if (cname != null && cname.startsWith("be.gen.")) {
-				cname = cname.substring(7);
+	private Rollup[] getRollups(String statType) {
+		Rollup[] statRollups = rollups.get(statType);
+		if (null == statRollups) {
+			statRollups = new Rollup[rollupSeconds.length];
+			for (int i = 0; i < rollupSeconds.length; i++) {
+				statRollups[i] = new Rollup(getColumns(statType), getFirstColumn(statType), getDateColumn(statType),
+						rollupSeconds[i]);
 			}
-			if (!BEJMX.isIgnoredEntity(cname, statType)) {
-				rec.append(cname);
-				for (int idx = 0; idx < BEAgentEntityReport.length; idx++) {
-					rec.append(',');
-					rec.append(attrs.get(BEAgentEntityReport[idx]));
-				}
-				rec.append('\n');
-			}
-		} else if ("BEEntityCache".equals(statType)) {
-			String cname = (String) attrs.get(BEEntityCachereportCols[0]);
-			if (cname != null && cname.startsWith("be.gen.")) {
-				cname = cname.substring(7);
-			}
-			if (cname != null && !BEJMX.isIgnoredEntity(cname, statType)) {
-				rec.append(cname);
-				for (int idx = 1; idx < BEEntityCachereportCols.length; idx++) {
-					rec.append(',');
-					rec.append(attrs.get(BEEntityCachereportCols[idx]));
-				}
-				rec.append('\n');
-			}
-		} else {
-			// default to RTCTxnManagerReport
-			rec.append(name);
-			for (int idx = 0; idx < BERTCTxnManagerReport.length; idx++) {
-				rec.append(',');
-				rec.append(attrs.get(BERTCTxnManagerReport[idx]));
-			}
-			rec.append('\n');
+			rollups.put(statType, statRollups);
 		}
-
-		return rec.toString();
+		return statRollups;
 	}
 
-	private void closeConnection() {
-		if (null == jmxc) {
-			return;
+	public void closeWriter(String statType) {
+		ReportFile file = reportFiles.get(statType);
+		if (file != null) {
+			closeFile(file);
 		}
-		try {
-			jmxc.close();
-		} catch (IOException e) {
-			// do nothing
+		RowFilter filter = rowFilters.get(statType);
+		if (filter != null) {
+			filter.clear();
 		}
-		jmxc = null;
-		mbsc = null;
 	}
 
 	/**
-	 * Close JMX connection, and close log file writers
+	 * Close a report file. With the write pipeline, the file is closed by the
+	 * writer thread after the rows queued before are written.
 	 *
-	 * @throws IOException
+	 * @param file
+	 *            report file to close
 	 */
-	public void cleanup() {
-		closeConnection();
-		for (FileWriter writer : writerMap.values()) {
-			try {
-				writer.close();
-			} catch (IOException e) {
-				// do nothing
-			}
+	private void closeFile(ReportFile file) {
+		if (reportWriter != null) {
+			reportWriter.close(file);
+		} else {
+			file.close();
+		}
+	}
+
+	/**
+	 * Return definition of a stat type.
+	 *
+	 * @param statType
+	 *            name of a stat type defined by configuration or built in,
+	 *            i.e., BEAgentEntity, BEEntityCache, RTCTxnManagerReport
+	 * @return the definition
+	 * @throws IllegalArgumentException
+	 *             when the stat type is not defined
+	 */
+	static StatType getStatType(String statType) {
+		StatType type = StatType.get(statType);
+		if (null == type) {
+			throw new IllegalArgumentException("Undefined stat type " + statType);
+		}
+		return type;
+	}
+
+	/**
+	 * Return object name pattern of the MBeans of a specified stat type.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return pattern of MBean object names
+	 */
+	static String getEntityPattern(String statType) {
+		return getStatType(statType).getPattern();
+	}
+
+	/**
+	 * Get list of MBean objects of a specified stat type from the entity
+	 * registry of the current connection. The MBean server is queried only
+	 * when the registry is created or expired.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param stats
+	 *            collector statistics to count requests
+	 * @return set of object names for the stat type
+	 *
+	 * @throws Exception
+	 */
+	private Set<ObjectName> getEntityList(String statType, PollStats stats) throws Exception {
+		if (null == registry) {
+			registry = new EntityRegistry(mbsc, discoveryRescan * 1000L, attrNameCache);
+			jmxc.addConnectionNotificationListener(registry, null, null);
+		}
+		EntityRegistry current = registry;
+		long requests = current.getRequests();
+		try {
+			return current.getNames(getEntityPattern(statType));
+		} finally {
+			stats.addRoundTrips(current.getRequests() - requests);
+		}
+	}
+
+	/**
+	 * Invoke the reset operation of an MBean, e.g., resetStats of
+	 * RTCTxnManagerReport, so the next call returns a delta stat
+	 *
+	 * @param objName
+	 *            object name of the MBean
+	 * @param operation
+	 *            name of the operation, which takes no parameter
+	 * @throws IOException
+	 */
+	private void resetStats(ObjectName objName, String operation) throws IOException {
+		try {
+			mbsc.invoke(objName, operation, null, null);
+		} catch (Exception e) {
+			throw new IOException(String.format("Failed to reset stats for %s: %s", objName, e.getMessage()));
+		}
+	}
+
+	/**
+	 * Query MBean to collect report attributes of a specified object name. Only
+	 * attributes listed in the report columns of the stat type are requested.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param conn
+	 *            connection to the MBean server
+	 * @param objName
+	 *            object name of a watched entity
+	 * @param row
+	 *            values of the report columns, to be filled with attribute
+	 *            values, and null for missing attributes
+	 * @param stats
+	 *            collector statistics to count requests
+	 *
+	 * @return the row of attribute values
+	 *
+	 * @throws Exception
+	 */
+	private Object[] getMBeanAttributes(String statType, MBeanServerConnection conn, ObjectName objName, Object[] row,
+			PollStats stats) throws Exception {
+		AttributePlan plan = attrNameCache.get(objName);
+		if (null == plan) {
+			stats.addRoundTrips(1);
+			plan = getReportAttributeNames(statType, conn, objName);
+			attrNameCache.put(objName, plan);
+		}
+
+		stats.addRoundTrips(1);
+		AttributeList list = conn.getAttributes(objName, plan.names);
+		Arrays.fill(row, null);
+
+		// attributes are returned in the order of the request, and missing
+		// attributes are skipped, so search forward from the last match
+		int n = 0;
+		for (Object obj : list) {
+			Attribute attr = (Attribute) obj;
+			for (int k = 0; k < plan.names.length; k++) {
+				int i = (n + k) % plan.names.length;
+				if (plan.names[i].equals(attr.getName())) {
+					row[plan.cols[i]] = attr.getValue();
+					n = i + 1;
+					break;
+				}
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Query MBean info of a specified object name, and return names and
+	 * indexes of the report columns that are exposed by the MBean. DateTime
+	 * is set by the client, and so it is never requested.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param conn
+	 *            connection to the MBean server
+	 * @param objName
+	 *            object name of a watched entity
+	 * @return attributes to request for the report
+	 * @throws Exception
+	 */
+	private AttributePlan getReportAttributeNames(String statType, MBeanServerConnection conn, ObjectName objName)
+			throws Exception {
+		MBeanInfo info = conn.getMBeanInfo(objName);
+		Set<String> exposed = new HashSet<String>();
+		for (MBeanAttributeInfo attrInfo : info.getAttributes()) {
+			if (attrInfo.isReadable()) {
+				exposed.add(attrInfo.getName());
+			}
+		}
+
+		String[] cols = getReportColumns(statType);
+		int dateCol = getDateColumn(statType);
+		List<String> attrNames = new ArrayList<String>();
+		List<Integer> attrCols = new ArrayList<Integer>();
+		for (int col = 0; col < cols.length; col++) {
+			if (col != dateCol && exposed.contains(cols[col])) {
+				attrNames.add(cols[col]);
+				attrCols.add(col);
+			}
+		}
+		return new AttributePlan(attrNames, attrCols);
+	}
+
+	/**
+	 * Names of the report attributes exposed by an MBean, and the indexes of
+	 * their report columns.
+	 */
+	private static class AttributePlan {
+		private String[] names;
+		private int[] cols;
+
+		AttributePlan(List<String> names, List<Integer> cols) {
+			this.names = names.toArray(new String[names.size()]);
+			this.cols = new int[cols.size()];
+			for (int i = 0; i < this.cols.length; i++) {
+				this.cols[i] = cols.get(i);
+			}
+		}
+	}
+
+	/**
+	 * Return the report columns of a specified stat type.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return names of the report columns
+	 */
+	static String[] getReportColumns(String statType) {
+		return getStatType(statType).getColumns();
+	}
+
+	/**
+	 * Return names of cumulative counters of a specified stat type. Counters
+	 * of a stat type with a reset operation, e.g., totals of
+	 * RTCTxnManagerReport, are cumulative only if stats are not reset.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return names of counter columns
+	 */
+	String[] getCounterColumns(String statType) {
+		StatType type = getStatType(statType);
+		if (resetRTCStats && type.getResetOperation() != null) {
+			return new String[0];
+		}
+		return type.getCounters();
+	}
+
+	/**
+	 * Return calculator of delta and rate columns of a stat type.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return calculator, or null if the stat type has no derived columns
+	 */
+	private CounterRates getCounterRates(String statType) {
+		if (!computeRates) {
+			return null;
+		}
+		CounterRates rates = counterRates.get(statType);
+		if (null == rates) {
+			String[] counters = getCounterColumns(statType);
+			if (0 == counters.length) {
+				return null;
+			}
+			rates = new CounterRates(getReportColumns(statType), counters);
+			counterRates.put(statType, rates);
+		}
+		return rates;
+	}
+
+	/**
+	 * Return the columns of report rows of a specified stat type, i.e., the
+	 * report columns followed by derived delta and rate columns if configured.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return names of the columns
+	 */
+	String[] getColumns(String statType) {
+		CounterRates rates = getCounterRates(statType);
+		return rates != null ? rates.getColumns() : getReportColumns(statType);
+	}
+
+	/**
+	 * Return index of the first report column written after the entity name.
+	 * The entity column of a stat type, e.g., ClassName of BEEntityCache, is
+	 * written as the entity name.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return index of a report column
+	 */
+	static int getFirstColumn(String statType) {
+		return getStatType(statType).getFirstColumn();
+	}
+
+	/**
+	 * Return index of the DateTime column of a specified stat type.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return index of a report column
+	 */
+	static int getDateColumn(String statType) {
+		return getStatType(statType).getDateColumn();
+	}
+
+	/**
+	 * Set time of the next poll.
+	 *
+	 * @param time
+	 *            poll time in milliseconds
+	 * @param timestamp
+	 *            poll time written in the DateTime column of csv reports
+	 */
+	public void setTimestamp(long time, String timestamp) {
+		this.time = time;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Mark start of a poll of this engine. Only one poll of an engine can be
+	 * scheduled or running at any time.
+	 *
+	 * @return true if the poll can start, false if the previous poll is still
+	 *         running
+	 */
+	public boolean startPoll() {
+		return polling.compareAndSet(false, true);
+	}
+
+	/**
+	 * @return true if a poll of this engine is scheduled or running
+	 */
+	public boolean isPolling() {
+		return polling.get();
+	}
+
+	/**
+	 * Mark end of a poll of this engine, so the next poll can start.
+	 */
+	public void endPoll() {
+		polling.set(false);
+	}
+
+	/**
+	 * Count a poll slot that is skipped because the previous poll of this
+	 * engine is still running.
+	 */
+	public void skipSlot() {
+		long count = skippedSlots.incrementAndGet();
+		System.out.println(String.format("Engine %s @ %s:%s is still busy, skipped %d poll slots", engineName, host,
+				port, count));
+	}
+
+	/**
+	 * @return number of poll slots skipped by this engine
+	 */
+	public long getSkippedSlots() {
+		return skippedSlots.get();
+	}
+
+	/**
+	 * Collect all pre-configured stats, and write them to stat log files. can
+	 * be called by separate worker threads.
+	 *
+	 * @throws IOException
+	 *             when failed to write stat file
+	 */
+	public void writeAllMetrics() {
+		if (null == timestamp) {
+			// should not be here, just in case.
+			SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+			Calendar cal = Calendar.getInstance();
+			time = cal.getTimeInMillis();
+			timestamp = fmt.format(cal.getTime());
+		}
+		if (statTypes != null) {
+			if (jmxc != null && getConnectionManager().isBroken()) {
+				System.out.println(String.format("Connection to engine %s @ %s:%s is lost, reconnect", engineName,
+						host, port));
+				closeConnection();
+			}
+			if (null == jmxc && !connect()) {
+				// engine is down, backing off, or its circuit is open
+				timestamp = null;
+				return;
+			}
+			List<String> polled = new ArrayList<String>(statTypes.length);
+			for (String statType : statTypes) {
+				if (null == jmxc) {
+					// connection failed in this poll, the remaining stat
+					// types are polled after reconnect
+					break;
+				}
+				PollSchedule schedule = getSchedule(statType);
+				if (schedule != null && !schedule.isDue(time)) {
+					continue;
+				}
+				polled.add(statType);
+				long start = System.nanoTime();
+				try {
+					writeMetrics(statType, timestamp);
+				} catch (IOException e) {
+					// close old file and try again with new writer
+					System.out.println(
+							String.format("Failed to write %s from %s:%s %s", statType, host, port, e.getMessage()));
+					closeWriter(statType);
+					try {
+						writeMetrics(statType, timestamp);
+					} catch (IOException io) {
+						System.out.println(
+								String.format("Exception while writing stat for %s: %s", statType, io.getMessage()));
+						closeWriter(statType);
+					}
+				}
+				if (schedule != null) {
+					schedule.next(time, (System.nanoTime() - start) / 1000000L);
+					getPollStats(statType).setIntervalMillis(schedule.getIntervalMillis());
+				}
+			}
+			if (jmxc != null) {
+				getConnectionManager().recordSuccess();
+			}
+			if (statsReport) {
+				writeStats(polled);
+			}
+		}
+		timestamp = null;
+	}
+
+	/**
+	 * Write collector statistics of the stat types polled by the current
+	 * poll of this engine to the stats report.
+	 *
+	 * @param polled
+	 *            stat types polled in the current slot
+	 */
+	private void writeStats(List<String> polled) {
+		StatSample sample = new StatSample(time, polled.size());
+		for (String statType : polled) {
+			sample.add(statType, getPollStats(statType).getRow(new Object[PollStats.COLUMNS.length], timestamp));
+		}
+		writeSummary(getStatsFile(), sample);
+	}
+
+	/**
+	 * Collect MBean data of a specified type, and write data to pre-configured
+	 * log file
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @throws IOException
+	 *             when failed to write stat data to file
+	 */
+	public void writeMetrics(String statType, String timestamp) throws IOException {
+		PollStats stats = getPollStats(statType);
+		long start = System.nanoTime();
+		try {
+			collectMetrics(statType, timestamp, stats);
+		} finally {
+			stats.addPoll(System.nanoTime() - start);
+		}
+	}
+
+	private void collectMetrics(String statType, String timestamp, PollStats stats) throws IOException {
+		ReportFile file = getReportFile(statType);
+		encoder.reset();
+
+		Set<ObjectName> list = null;
+		List<String> channels = null;
+		// query MBean for list of entities, and the cached channel list of
+		// channel destinations
+		long fetchStart = System.nanoTime();
+		try {
+			list = getEntityList(statType, stats);
+			if (ChannelDestinations.STAT_TYPE.equals(statType) && list.size() > 0) {
+				channels = getChannelDestinations(statType).getChannels(mbsc, stats);
+			}
+		} catch (Exception e) {
+			stats.addError();
+			System.out.println(String.format("Failed to get entity list for %s: %s\n", statType, e.getMessage()));
+			dropConnection(e.getMessage());
+		}
+		long fetchNanos = System.nanoTime() - fetchStart;
+
+		// binary reports are written as samples, and messages are printed
+		// only to console
+		boolean binary = ReportPolicy.FORMAT_BINARY.equals(reportPolicy.getFormat());
+		PollSchedule schedule = getSchedule(statType);
+		if (null == list || 0 == list.size() || (channels != null && 0 == channels.size())) {
+			stats.addFetchNanos(fetchNanos);
+			if (schedule != null && list != null) {
+				// no entities, same as the previous empty poll
+				schedule.record(0);
+			}
+			if (binary) {
+				System.out.println(String.format("Entity list for %s is empty", statType));
+				return;
+			}
+			encoder.append("Entity list for ").append(statType).append(" is empty");
+			long writeStart = System.nanoTime();
+			writeReport(file, encoder);
+			stats.addWriteNanos(System.nanoTime() - writeStart);
+			return;
+		}
+
+		// query MBean for attributes of each entity, or destinations of each
+		// channel, and write rows in the order of the list
+		FetchPipeline results = (channels != null) ? fetchDestinations(statType, channels, stats)
+				: fetchAttributes(statType, list, stats);
+		StatSample sample = binary ? new StatSample(time, list.size()) : null;
+		MetricStore.SeriesGroup group = null;
+		if (metricStore != null) {
+			group = storeGroups.get(statType);
+			if (null == group || group.isReleased()) {
+				group = metricStore.getGroup(getReportPrefix(), statType, getColumns(statType));
+				storeGroups.put(statType, group);
+			}
+		}
+		PrometheusExporter.Section section = null;
+		if (prometheusExporter != null) {
+			section = promSections.get(statType);
+			if (null == section) {
+				section = prometheusExporter.addSection(engineName, host, port, statType, getColumns(statType),
+						getFirstColumn(statType), getDateColumn(statType), getCounterColumns(statType));
+				promSections.put(statType, section);
+			}
+			section.begin();
+		}
+		CounterRates rates = getCounterRates(statType);
+		String[] columns = getColumns(statType);
+		int firstCol = getFirstColumn(statType);
+		pushEncoder.reset();
+		Rollup[] statRollups = getRollups(statType);
+		StatSample[] completed = new StatSample[statRollups.length];
+		for (int i = 0; i < statRollups.length; i++) {
+			completed[i] = statRollups[i].roll(time);
+		}
+		StatType type = getStatType(statType);
+		int dateCol = type.getDateColumn();
+		String resetOperation = resetRTCStats ? type.getResetOperation() : null;
+		int reportCols = type.getColumns().length;
+		RowPlan plan = getRowPlan(statType);
+		RowFilter filter = getRowFilter(statType);
+		if (filter != null) {
+			filter.begin(file.getGeneration());
+		}
+		long fingerprint = 0;
+		boolean broken = false;
+		for (int i = 0; i < results.size(); i++) {
+			// submit later requests while the rows of this one are processed
+			fetchStart = System.nanoTime();
+			Fetch fetch = results.get(i);
+			String name = fetch.name;
+			try {
+				Object[][] rows = fetch.rows.get();
+				fetchNanos += System.nanoTime() - fetchStart;
+				stats.addEntitiesFetched(rows.length);
+				for (Object[] row : rows) {
+					row[dateCol] = timestamp;
+					String label = getRowLabel(plan, name, row);
+					if (label != null) {
+						if (schedule != null) {
+							fingerprint = PollSchedule.fingerprint(fingerprint, label, row, reportCols, dateCol);
+						}
+						if (rates != null) {
+							rates.compute(label, time, row);
+						}
+						if (group != null) {
+							group.record(label, time, row);
+						}
+						for (Rollup rollup : statRollups) {
+							rollup.add(label, time, row);
+						}
+						if (section != null) {
+							section.add(label, row);
+						}
+						if (pushExporter != null) {
+							pushExporter.encode(pushEncoder, engineName, host, port, statType, label, columns, firstCol,
+									dateCol, row, time);
+						}
+						if (filter != null && !filter.accept(label, row)) {
+							stats.addRowSuppressed();
+						} else if (sample != null) {
+							// rows are reused by the next poll, so keep a copy
+							sample.add(label, row.clone());
+						} else {
+							appendRow(firstCol, columns.length, label, row, encoder);
+						}
+					} else {
+						stats.addEntityFiltered();
+					}
+				}
+
+				// reset stats
+				if (resetOperation != null) {
+					fetchStart = System.nanoTime();
+					stats.addRoundTrips(1);
+					resetStats(fetch.objName, resetOperation);
+					fetchNanos += System.nanoTime() - fetchStart;
+				}
+			} catch (ExecutionException ex) {
+				stats.addError();
+				if (ex.getCause() instanceof IOException) {
+					// one of the pooled connections failed
+					broken = true;
+				}
+				encoder.append(String.format("Failed to get attributes for entity %s: %s\n", name,
+						ex.getCause().getMessage()));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while fetching attributes for " + statType);
+			} catch (Exception ex) {
+				stats.addError();
+				encoder.append(String.format("Failed to get attributes for entity %s: %s\n", name, ex.getMessage()));
+			}
+		}
+		stats.addFetchNanos(fetchNanos);
+		if (schedule != null) {
+			schedule.record(fingerprint);
+		}
+		if (filter != null) {
+			filter.end();
+		}
+		if (rates != null && !broken) {
+			rates.end();
+		}
+		if (group != null && !broken) {
+			group.endPoll();
+		}
+		if (broken) {
+			// reconnect on the next poll
+			dropConnection("attribute fetch failed");
+		}
+		if (section != null) {
+			section.commit();
+		}
+		if (pushEncoder.size() > 0) {
+			pushExporter.submit(pushEncoder.toByteArray());
+		}
+
+		// write completed rollups first, so they are not lost if the poll is
+		// retried
+		long writeStart = System.nanoTime();
+		try {
+			for (int i = 0; i < statRollups.length; i++) {
+				if (completed[i] != null) {
+					writeSummary(getRollupFile(statType, statRollups[i]), completed[i]);
+				}
+			}
+			if (sample != null) {
+				if (encoder.size() > 0) {
+					System.out.print(new String(encoder.array(), 0, encoder.size(), Charset.defaultCharset()));
+				}
+				writeSample(file, sample);
+			} else {
+				writeReport(file, encoder);
+			}
+		} finally {
+			stats.addWriteNanos(System.nanoTime() - writeStart);
+		}
+	}
+
+	/**
+	 * Write rows of a completed rollup bucket, or of collector statistics.
+	 * The DateTime column is set to the time of the sample. Failures are
+	 * reported, and do not fail the poll.
+	 *
+	 * @param file
+	 *            rollup or stats report file
+	 * @param sample
+	 *            rows with the bucket start time or the poll time
+	 */
+	private void writeSummary(ReportFile file, StatSample sample) {
+		try {
+			if (ReportPolicy.FORMAT_BINARY.equals(reportPolicy.getFormat())) {
+				writeSample(file, sample);
+				return;
+			}
+			String bucket = rollupFormat.format(new Date(sample.getTime()));
+			rollupEncoder.reset();
+			for (int i = 0; i < sample.getCount(); i++) {
+				Object[] row = sample.getRow(i);
+				row[0] = bucket;
+				rollupEncoder.append(sample.getLabel(i));
+				for (Object value : row) {
+					rollupEncoder.append(',');
+					rollupEncoder.appendValue(value);
+				}
+				rollupEncoder.append('\n');
+			}
+			writeReport(file, rollupEncoder);
+		} catch (IOException e) {
+			System.out.println(String.format("Failed to write %s: %s", file.getStatType(), e.getMessage()));
+			closeFile(file);
+		}
+	}
+
+	/**
+	 * Write encoded rows to a report file, or queue them for the write
+	 * pipeline.
+	 *
+	 * @param file
+	 *            report file to write to
+	 * @param out
+	 *            encoded rows
+	 * @throws IOException
+	 *             when failed to write the file, or the file no longer exists
+	 */
+	private void writeReport(ReportFile file, CsvEncoder out) throws IOException {
+		if (reportWriter != null) {
+			try {
+				reportWriter.submit(file, out.toByteArray());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while queuing report " + file.getStatType());
+			}
+			return;
+		}
+		file.write(out.array(), 0, out.size());
+		file.flush();
+
+		// throw exception if file becomes stale, so the writer is closed and
+		// re-created
+		file.check();
+	}
+
+	/**
+	 * Write a sample to a binary report file, or queue it for the write
+	 * pipeline.
+	 *
+	 * @param file
+	 *            report file to write to
+	 * @param sample
+	 *            rows of one poll
+	 * @throws IOException
+	 *             when failed to write the file, or the file no longer exists
+	 */
+	private void writeSample(ReportFile file, StatSample sample) throws IOException {
+		if (reportWriter != null) {
+			try {
+				reportWriter.submit(file, sample);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while queuing report " + file.getStatType());
+			}
+			return;
+		}
+		file.append(sample);
+		file.flush();
+		file.check();
+	}
+
+	/**
+	 * Request attributes of a list of entities. If a fetch executor is set,
+	 * the requests are spread over the connection pool, with at most
+	 * fetchWindow requests in flight, and the first window is submitted
+	 * before this returns; otherwise, entities are fetched one by one over the
+	 * main connection as the caller takes them.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param list
+	 *            object names of entities to fetch
+	 * @param stats
+	 *            collector statistics to count requests
+	 * @return requests in the order of the entity list, each returns one row
+	 */
+	private FetchPipeline fetchAttributes(final String statType, Set<ObjectName> list, final PollStats stats) {
+		StatType type = getStatType(statType);
+		final Object[][] rows = getRowBuffer(statType, list.size());
+		List<Fetch> results = new ArrayList<Fetch>(list.size());
+		int idx = 0;
+		for (final ObjectName on : list) {
+			final MBeanServerConnection conn = fetchConns[idx % fetchConns.length];
+			final Object[] row = rows[idx++];
+			results.add(new Fetch(on, type.getEntityName(on), new Callable<Object[][]>() {
+				public Object[][] call() throws Exception {
+					return new Object[][] { getMBeanAttributes(statType, conn, on, row, stats) };
+				}
+			}));
+		}
+		return new FetchPipeline(statType, results);
+	}
+
+	/**
+	 * Request destinations of a list of channels, spread over the connection
+	 * pool in the same way as attributes of entities. A channel that fails
+	 * invalidates the cached channel list, so it is read again by the next
+	 * poll.
+	 *
+	 * @param statType
+	 *            type of statistics, i.e., BEChannelDestination
+	 * @param channels
+	 *            URIs of the channels
+	 * @param stats
+	 *            collector statistics to count requests
+	 * @return requests in the order of the channel list, each returns one row
+	 *         per destination
+	 */
+	private FetchPipeline fetchDestinations(String statType, List<String> channels, final PollStats stats) {
+		final ChannelDestinations destinations = getChannelDestinations(statType);
+		List<Fetch> results = new ArrayList<Fetch>(channels.size());
+		int idx = 0;
+		for (final String channel : channels) {
+			final MBeanServerConnection conn = fetchConns[idx++ % fetchConns.length];
+			results.add(new Fetch(destinations.getObjectName(), channel, new Callable<Object[][]>() {
+				public Object[][] call() throws Exception {
+					try {
+						return destinations.getDestinations(conn, channel, stats);
+					} catch (Exception e) {
+						destinations.invalidate();
+						throw e;
+					}
+				}
+			}));
+		}
+		return new FetchPipeline(statType, results);
+	}
+
+	/**
+	 * Requests of one poll in the order of the report. A request is submitted
+	 * to the fetch executor when a slot of the fetch window is free, so the
+	 * caller processes the rows of early requests while later ones are
+	 * submitted. Without an executor, a request runs in the calling thread
+	 * when it is taken.
+	 */
+	class FetchPipeline {
+		private String statType;
+		private List<Fetch> fetches;
+		private Semaphore window = new Semaphore(fetchWindow);
+		// number of requests submitted
+		private int submitted = 0;
+
+		FetchPipeline(String statType, List<Fetch> fetches) {
+			this.statType = statType;
+			this.fetches = fetches;
+			submit();
+		}
+
+		int size() {
+			return fetches.size();
+		}
+
+		/**
+		 * Return a submitted request, after submitting the later requests that
+		 * fit in the fetch window.
+		 *
+		 * @param idx
+		 *            position of the request
+		 * @return request whose rows are pending or done
+		 * @throws InterruptedIOException
+		 *             when interrupted while waiting for the fetch window
+		 */
+		Fetch get(int idx) throws InterruptedIOException {
+			while (submitted <= idx) {
+				try {
+					window.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while fetching attributes for " + statType);
+				}
+				start(fetches.get(submitted++));
+			}
+			submit();
+			return fetches.get(idx);
+		}
+
+		// submit later requests without waiting for the window
+		private void submit() {
+			while (fetchExecutor != null && submitted < fetches.size() && window.tryAcquire()) {
+				start(fetches.get(submitted++));
+			}
+		}
+
+		private void start(Fetch fetch) {
+			final Callable<Object[][]> call = fetch.call;
+			FutureTask<Object[][]> task = new FutureTask<Object[][]>(new Callable<Object[][]>() {
+				public Object[][] call() throws Exception {
+					try {
+						return call.call();
+					} finally {
+						window.release();
+					}
+				}
+			});
+			fetch.rows = task;
+			if (fetchExecutor != null) {
+				fetchExecutor.execute(task);
+			} else {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Run a remote call when the limit of RMI calls in flight allows.
+	 *
+	 * @param call
+	 *            remote call
+	 * @return result of the call
+	 * @throws Exception
+	 *             when the call fails, or InterruptedIOException when
+	 *             interrupted while waiting for the limit
+	 */
+	<T> T withPermit(Callable<T> call) throws Exception {
+		if (null == callLimiter) {
+			return call.call();
+		}
+		try {
+			callLimiter.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the limit of RMI calls");
+		}
+		try {
+			return call.call();
+		} finally {
+			callLimiter.release();
+		}
+	}
+
+	/**
+	 * Wrap a connection, so that each call on it waits for the limit of RMI
+	 * calls in flight.
+	 *
+	 * @param conn
+	 *            connection to the MBean server
+	 * @return the limited connection, or conn if there is no limit
+	 */
+	MBeanServerConnection limit(final MBeanServerConnection conn) {
+		if (null == callLimiter) {
+			return conn;
+		}
+		return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+						return withPermit(new Callable<Object>() {
+							public Object call() throws Exception {
+								try {
+									return method.invoke(conn, args);
+								} catch (InvocationTargetException e) {
+									if (e.getCause() instanceof Error) {
+										throw (Error) e.getCause();
+									}
+									throw (Exception) e.getCause();
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Pending request of the rows of one entity, or of the destinations of
+	 * one channel.
+	 */
+	static class Fetch {
+		// MBean of the request, and name of the entity or channel
+		private ObjectName objName;
+		private String name;
+		private Callable<Object[][]> call;
+		// rows of the request, set when it is submitted
+		Future<Object[][]> rows;
+
+		Fetch(ObjectName objName, String name, Callable<Object[][]> call) {
+			this.objName = objName;
+			this.name = name;
+			this.call = call;
+		}
+	}
+
+	/**
+	 * Return collector of channel destinations of the current connection.
+	 *
+	 * @param statType
+	 *            type of statistics, i.e., BEChannelDestination
+	 * @return collector that caches the channel list
+	 */
+	private ChannelDestinations getChannelDestinations(String statType) {
+		if (null == channelDestinations) {
+			channelDestinations = new ChannelDestinations(getReportColumns(statType), getDateColumn(statType),
+					getColumns(statType).length, discoveryRescan * 1000L);
+		}
+		return channelDestinations;
+	}
+
+	/**
+	 * Return reusable rows of attribute values of a stat type, one row per
+	 * entity.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @param count
+	 *            number of entities
+	 * @return array of at least count rows
+	 */
+	private Object[][] getRowBuffer(String statType, int count) {
+		Object[][] rows = rowBuffers.get(statType);
+		if (null == rows || rows.length < count) {
+			int cols = getColumns(statType).length;
+			Object[][] grown = new Object[Math.max(count, rows == null ? 0 : 2 * rows.length)][];
+			for (int i = 0; i < grown.length; i++) {
+				grown[i] = (rows != null && i < rows.length) ? rows[i] : new Object[cols];
+			}
+			rows = grown;
+			rowBuffers.put(statType, rows);
+		}
+		return rows;
+	}
+
+	/**
+	 * Write header string for stats of a speciied type into a pre-configured
+	 * stat log file
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 */
+	public String getHeader(String statType) {
+		return getStatType(statType).getHeader(getColumns(statType));
+	}
+
+	/**
+	 * Resolve the definition, entity filter and row length of a stat type
+	 * once per poll, so that rows are labeled and encoded without lookups.
+	 *
+	 * @param statType
+	 *            type of statistics, currently supports BEAgentEntity,
+	 *            BEEntityCache, RTCTxnManagerReport (default)
+	 * @return row plan of the stat type
+	 */
+	RowPlan getRowPlan(String statType) {
+		return new RowPlan(getStatType(statType), BEJMX.getEntityFilter(statType), getColumns(statType).length);
+	}
+
+	/**
+	 * Return the name of a monitored entity as written in the first column of
+	 * the report, or null if the entity is filtered out.
+	 *
+	 * @param plan
+	 *            row plan of the stat type, returned by getRowPlan
+	 * @param name
+	 *            name of the monitored entity, e.g., concept of event
+	 * @param row
+	 *            statistic data in the order of the report columns.
+	 * @return label of the report row, or null
+	 */
+	static String getRowLabel(RowPlan plan, String name, Object[] row) {
+		String label = plan.type.getLabel(name, row);
+		if (plan.type.hasEntities() && (null == label || plan.filter.isIgnored(label))) {
+			return null;
+		}
+		return label;
+	}
+
+	/**
+	 * Encode MBean attributes of a monitored entity as a row of the report
+	 *
+	 * @param plan
+	 *            row plan of the stat type, returned by getRowPlan
+	 * @param name
+	 *            name of the monitored entity, e.g., concept of event
+	 * @param row
+	 *            statistic data in the order of the report columns.
+	 * @param out
+	 *            encoder to append the resulting row to, nothing is appended if
+	 *            the entity is filtered out
+	 */
+	static void serializeMetrics(RowPlan plan, String name, Object[] row, CsvEncoder out) {
+		String label = getRowLabel(plan, name, row);
+		if (label != null) {
+			appendRow(plan.firstCol, plan.cols, label, row, out);
+		}
+	}
+
+	/**
+	 * Definition, entity filter and row length of a stat type, resolved once
+	 * per poll.
+	 */
+	static class RowPlan {
+		private StatType type;
+		private EntityFilter filter;
+		private int firstCol;
+		private int cols;
+
+		RowPlan(StatType type, EntityFilter filter, int cols) {
+			this.type = type;
+			this.filter = filter;
+			this.firstCol = type.getFirstColumn();
+			this.cols = cols;
+		}
+	}
+
+	private static void appendRow(int firstCol, int cols, String label, Object[] row, CsvEncoder out) {
+		out.append(label);
+		for (int idx = firstCol; idx < cols; idx++) {
+			out.append(',');
+			out.appendValue(row[idx]);
+		}
+		out.append('\n');
+	}
+
+	/**
+	 * Close a failed connection, and count the failure, so a hung engine
+	 * backs off like an engine that refuses connections.
+	 *
+	 * @param reason
+	 *            message of the failure
+	 */
+	private void dropConnection(String reason) {
+		getConnectionManager().recordFailure(System.currentTimeMillis(), reason);
+		closeConnection();
+	}
+
+	private void closeConnection() {
+		if (null == jmxc) {
+			return;
+		}
+		getConnectionManager().unwatch();
+		try {
+			jmxc.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		for (JMXConnector c : fetchConnectors) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+		fetchConnectors.clear();
+		fetchConns = null;
+		jmxc = null;
+		mbsc = null;
+
+		// MBeans may have changed when the engine is reconnected
+		attrNameCache.clear();
+		registry = null;
+		channelDestinations = null;
+
+		// the engine may have been restarted, so counters of the next poll
+		// have no delta
+		for (CounterRates rates : counterRates.values()) {
+			rates.clear();
+		}
+		for (RowFilter filter : rowFilters.values()) {
+			filter.clear();
+		}
+	}
+
+	/**
+	 * Close JMX connection, and close log file writers
+	 *
+	 * @throws IOException
+	 */
+	public void cleanup() {
+		closeConnection();
+		if (connectionManager != null) {
+			connectionManager.close();
+		}
+		for (PollStats stats : pollStats.values()) {
+			stats.unregister();
+		}
+		for (Map.Entry<String, MetricStore.SeriesGroup> entry : storeGroups.entrySet()) {
+			// release memory of an engine that is no longer monitored
+			metricStore.removeGroup(getReportPrefix(), entry.getKey(), entry.getValue());
+		}
+		storeGroups.clear();
+		for (PrometheusExporter.Section section : promSections.values()) {
+			// stop serving the last values of the engine
+			prometheusExporter.removeSection(section);
+		}
+		promSections.clear();
+		for (ReportFile file : reportFiles.values()) {
+			closeFile(file);
 		}
-		writerMap.clear();
-		fileMap.clear();
 	}
 
 	/**
@@ -8,6 +8,11 @@ public class ClientThread implements Runnable {
 	}
 	
 	public void run() {
-		client.writeAllMetrics();
+		try {
+			client.writeAllMetrics();
+		} finally {
+			// allow the next poll of the engine
+			client.endPoll();
+		}
 	}
 }
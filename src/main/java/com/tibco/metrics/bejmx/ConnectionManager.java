@@ -0,0 +1,288 @@
+/*
+ * ConnectionManager.java - connection attempts of one BE engine, with timeouts, backoff and a circuit breaker.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+/**
+ * Decide when the polling thread of an engine may connect, and bound the
+ * time it waits for a connection. A connection is opened by a task of the
+ * connect executor, and the polling thread waits for it at most the connect
+ * timeout. An attempt that does not complete in time is left to finish in
+ * the background, and no other attempt is started for the engine until it
+ * does, so a dead engine holds at most one thread.
+ *
+ * After a failure, the next attempt is delayed by an exponential backoff
+ * with jitter. After consecutive failures, the circuit of the engine is
+ * opened, and polls skip the engine without any network call until the open
+ * period expires and a trial connection is allowed. A failed poll of an open
+ * connection, e.g., a call timeout, counts as a failure as well, and a
+ * complete poll closes the circuit.
+ *
+ * Connection notifications tell the manager about failed or closed
+ * connections, so the next poll reconnects without waiting for a failed
+ * call. Used by the polling thread of one engine, except for notifications.
+ *
+ */
+public class ConnectionManager implements NotificationListener {
+
+	private String engine;
+	private ConnectionPolicy policy;
+	private ExecutorService executor;
+	private Random random = new Random();
+
+	// attempt that timed out and is still running, or completed after the
+	// timeout
+	private Future<JMXConnector[]> pending = null;
+
+	private volatile int failures = 0;
+
+	// an attempt failed with an error, e.g., the address refused the
+	// connection, rather than timed out
+	private AtomicBoolean connectFailed = new AtomicBoolean(false);
+	private boolean circuitOpen = false;
+	private long nextAttempt = 0;
+	private long attempts = 0;
+
+	// connector that is watched for notifications, and whether it failed
+	private volatile JMXConnector watched = null;
+	private volatile boolean broken = false;
+
+	/**
+	 * Construct manager of an engine.
+	 *
+	 * @param engine
+	 *            description of the engine in messages, e.g., name @ host:port
+	 * @param policy
+	 *            timeout, backoff and circuit breaker settings
+	 * @param executor
+	 *            executor of connection attempts, or null to connect in the
+	 *            polling thread, bounded by socket timeouts only
+	 */
+	public ConnectionManager(String engine, ConnectionPolicy policy, ExecutorService executor) {
+		this.engine = engine;
+		this.policy = policy;
+		this.executor = executor;
+	}
+
+	/**
+	 * Open connections unless the engine is backing off or its circuit is
+	 * open.
+	 *
+	 * @param opener
+	 *            task that opens the connections of the engine
+	 * @param now
+	 *            current time in milliseconds
+	 * @return the connections, or null if the engine is not connected
+	 */
+	public JMXConnector[] connect(Callable<JMXConnector[]> opener, long now) {
+		Future<JMXConnector[]> attempt = pending;
+		long wait = 0;
+		if (null == attempt) {
+			if (now < nextAttempt) {
+				return null;
+			}
+			attempts++;
+			FutureTask<JMXConnector[]> task = new FutureTask<JMXConnector[]>(opener);
+			if (executor != null) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					// executor is shut down
+					return null;
+				}
+			} else {
+				task.run();
+			}
+			attempt = task;
+			wait = policy.getConnectTimeoutMillis();
+		} else if (!attempt.isDone()) {
+			// an earlier attempt is still hanging
+			return null;
+		}
+		try {
+			JMXConnector[] connectors = (wait > 0) ? attempt.get(wait, TimeUnit.MILLISECONDS) : attempt.get();
+			pending = null;
+			broken = false;
+			connectFailed.set(false);
+			return connectors;
+		} catch (TimeoutException e) {
+			pending = attempt;
+			recordFailure(now, String.format("no connection in %d ms", wait));
+		} catch (ExecutionException e) {
+			connectFailed.set(true);
+			if (null == pending) {
+				// failure of an attempt that timed out is already counted
+				recordFailure(now, e.getCause().getMessage());
+			}
+			pending = null;
+		} catch (CancellationException e) {
+			pending = null;
+		} catch (InterruptedException e) {
+			pending = attempt;
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Watch a connector for notifications of failed or closed connections.
+	 *
+	 * @param connector
+	 *            the main connector of the engine
+	 */
+	public void watch(JMXConnector connector) {
+		watched = connector;
+		broken = false;
+		connector.addConnectionNotificationListener(this, null, connector);
+	}
+
+	/**
+	 * Stop watching the current connector, e.g., when it is closed by the
+	 * client.
+	 */
+	public void unwatch() {
+		watched = null;
+	}
+
+	/**
+	 * @return true if the watched connection failed or was closed by the
+	 *         server
+	 */
+	public boolean isBroken() {
+		return broken;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		String type = notification.getType();
+		if (handback != null && handback == watched && (JMXConnectionNotification.FAILED.equals(type)
+				|| JMXConnectionNotification.CLOSED.equals(type))) {
+			broken = true;
+		}
+	}
+
+	/**
+	 * Count a failed connection attempt or poll, and delay the next attempt.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @param reason
+	 *            message of the failure
+	 */
+	public void recordFailure(long now, String reason) {
+		failures++;
+		long delay;
+		if (policy.getCircuitFailures() > 0 && failures >= policy.getCircuitFailures()) {
+			delay = policy.getCircuitOpenMillis();
+			if (!circuitOpen) {
+				circuitOpen = true;
+				System.out.println(String.format("Open circuit of engine %s after %d failures: %s, retry in %d seconds",
+						engine, failures, reason, delay / 1000));
+				nextAttempt = now + delay;
+				return;
+			}
+		} else {
+			delay = policy.getBackoffMillis(failures, random.nextDouble());
+		}
+		nextAttempt = now + delay;
+		System.out.println(
+				String.format("Connection to engine %s failed: %s, retry in %d seconds", engine, reason, delay / 1000));
+	}
+
+	/**
+	 * Reset failures after a complete poll, and close the circuit.
+	 */
+	public void recordSuccess() {
+		if (circuitOpen) {
+			System.out.println(String.format("Close circuit of engine %s", engine));
+		}
+		failures = 0;
+		circuitOpen = false;
+		nextAttempt = 0;
+	}
+
+	/**
+	 * @return number of consecutive failures
+	 */
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Return whether a connection attempt failed with an error since the last
+	 * call, and reset it. Attempts that time out, and failed polls of an open
+	 * connection, are not counted. May be called by any thread.
+	 *
+	 * @return true if an attempt failed
+	 */
+	public boolean takeConnectFailure() {
+		return connectFailed.getAndSet(false);
+	}
+
+	/**
+	 * @return true if the engine is skipped until the open period expires
+	 */
+	public boolean isCircuitOpen() {
+		return circuitOpen;
+	}
+
+	/**
+	 * @return time of the next allowed attempt in milliseconds
+	 */
+	public long getNextAttempt() {
+		return nextAttempt;
+	}
+
+	/**
+	 * @return number of connection attempts started
+	 */
+	public long getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Abandon a pending attempt, and close its connections if it completed.
+	 */
+	public void close() {
+		watched = null;
+		Future<JMXConnector[]> attempt = pending;
+		pending = null;
+		if (null == attempt) {
+			return;
+		}
+		if (!attempt.isDone()) {
+			attempt.cancel(true);
+			return;
+		}
+		try {
+			for (JMXConnector c : attempt.get()) {
+				try {
+					c.close();
+				} catch (IOException e) {
+					// do nothing
+				}
+			}
+		} catch (Exception e) {
+			// attempt failed, nothing to close
+		}
+	}
+}
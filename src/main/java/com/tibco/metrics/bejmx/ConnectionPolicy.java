@@ -0,0 +1,155 @@
+/*
+ * ConnectionPolicy.java - timeout, backoff and circuit breaker settings of JMX connections to BE engines.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * Settings shared by the connections of all engines. Connect and call
+ * timeouts are enforced on RMI sockets by a socket factory that is installed
+ * once for the JVM, so neither a dead host nor a hung engine can block a
+ * polling thread indefinitely.
+ *
+ */
+public class ConnectionPolicy {
+
+	private long connectTimeoutMillis;
+	private long callTimeoutMillis;
+	private long backoffMillis;
+	private long maxBackoffMillis;
+	private int circuitFailures;
+	private long circuitOpenMillis;
+
+	/**
+	 * Construct connection settings.
+	 *
+	 * @param connectTimeoutMillis
+	 *            max milliseconds to open a connection, 0 for no limit
+	 * @param callTimeoutMillis
+	 *            max milliseconds to wait for the response of an RMI call, 0
+	 *            for no limit
+	 * @param backoffMillis
+	 *            delay before reconnecting after the first failure, doubled
+	 *            for each consecutive failure
+	 * @param maxBackoffMillis
+	 *            max delay before reconnecting
+	 * @param circuitFailures
+	 *            number of consecutive failures that open the circuit of an
+	 *            engine, 0 to never open it
+	 * @param circuitOpenMillis
+	 *            milliseconds before an open circuit allows a trial
+	 *            connection
+	 */
+	public ConnectionPolicy(long connectTimeoutMillis, long callTimeoutMillis, long backoffMillis,
+			long maxBackoffMillis, int circuitFailures, long circuitOpenMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.callTimeoutMillis = callTimeoutMillis;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.circuitFailures = circuitFailures;
+		this.circuitOpenMillis = circuitOpenMillis;
+	}
+
+	/**
+	 * @return default settings, i.e., connect in 10 seconds, calls in 2
+	 *         minutes, back off from 5 seconds to 5 minutes, and open the
+	 *         circuit for 10 minutes after 5 failures
+	 */
+	public static ConnectionPolicy getDefault() {
+		return new ConnectionPolicy(10000, 120000, 5000, 300000, 5, 600000);
+	}
+
+	public long getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public long getCallTimeoutMillis() {
+		return callTimeoutMillis;
+	}
+
+	public long getBackoffMillis() {
+		return backoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	public int getCircuitFailures() {
+		return circuitFailures;
+	}
+
+	public long getCircuitOpenMillis() {
+		return circuitOpenMillis;
+	}
+
+	/**
+	 * Return the delay before the next connection attempt after consecutive
+	 * failures, with equal jitter, i.e., between half and all of the
+	 * exponential delay, so engines that failed together do not reconnect
+	 * together.
+	 *
+	 * @param failures
+	 *            number of consecutive failures, at least 1
+	 * @param random
+	 *            random number between 0 and 1
+	 * @return delay in milliseconds
+	 */
+	public long getBackoffMillis(int failures, double random) {
+		long delay = backoffMillis << Math.min(Math.max(failures - 1, 0), 30);
+		if (delay <= 0 || delay > maxBackoffMillis) {
+			delay = maxBackoffMillis;
+		}
+		return delay / 2 + (long) (random * (delay - delay / 2));
+	}
+
+	/**
+	 * Install a socket factory for RMI connections of this JVM, which
+	 * enforces the connect and call timeouts. The factory can be installed
+	 * only once.
+	 *
+	 * @throws IOException
+	 *             when a socket factory is already installed
+	 */
+	public void installSocketFactory() throws IOException {
+		RMISocketFactory.setSocketFactory(new TimeoutSocketFactory((int) connectTimeoutMillis, (int) callTimeoutMillis));
+	}
+
+	/**
+	 * RMI socket factory that bounds the time to connect, and the time to
+	 * wait for data of an open connection.
+	 */
+	private static class TimeoutSocketFactory extends RMISocketFactory {
+		private int connectTimeout;
+		private int readTimeout;
+
+		TimeoutSocketFactory(int connectTimeout, int readTimeout) {
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+				socket.setSoTimeout(readTimeout);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+
+		@Override
+		public ServerSocket createServerSocket(int port) throws IOException {
+			return RMISocketFactory.getDefaultSocketFactory().createServerSocket(port);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * CounterRates.java - interval deltas and per-second rates of cumulative BE counters.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compute delta and rate columns of cumulative counters of a stat type. For
+ * each counter column, a delta column, i.e., increment since the previous
+ * poll, and a rate column, i.e., increment per second, are appended to the
+ * report columns. The previous sample of each entity is kept in primitive
+ * arrays indexed by entity.
+ *
+ * A counter that is lower than its previous value has been reset, e.g., by
+ * resetStats or an engine restart, and so its delta is the current value.
+ * The first sample of an entity, and a sample after clear(), have no delta.
+ * An entity without a sample in IDLE_POLLS complete polls is forgotten, and
+ * its slots are reused. Used by the polling thread of one engine only.
+ *
+ */
+public class CounterRates {
+
+	// complete polls without a sample before an entity is forgotten
+	static final int IDLE_POLLS = 3;
+
+	private String[] columns;
+
+	// index of counter columns in the report row
+	private int[] counterCols;
+
+	// index of the first appended column
+	private int firstDerived;
+
+	// entity -> index of its previous sample
+	private Map<String, Integer> entities = new HashMap<String, Integer>();
+
+	// ids of forgotten entities to be reused, and the next id never used
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	private int nextId = 0;
+
+	// number of complete polls, and the last poll of each entity
+	private int poll = 0;
+	private int[] lastPolls = new int[16];
+
+	// previous time of each entity, and previous values of its counters in
+	// slots [entity * counters, (entity + 1) * counters)
+	private long[] prevTimes = new long[16];
+	private long[] prevValues;
+	private boolean[] prevValid;
+
+	/**
+	 * Construct calculator of counters of a stat type.
+	 *
+	 * @param reportColumns
+	 *            names of the report columns
+	 * @param counters
+	 *            names of cumulative counter columns
+	 */
+	public CounterRates(String[] reportColumns, String[] counters) {
+		counterCols = new int[counters.length];
+		firstDerived = reportColumns.length;
+		columns = Arrays.copyOf(reportColumns, reportColumns.length + 2 * counters.length);
+		for (int k = 0; k < counters.length; k++) {
+			counterCols[k] = Arrays.asList(reportColumns).indexOf(counters[k]);
+			columns[firstDerived + 2 * k] = counters[k] + "Delta";
+			columns[firstDerived + 2 * k + 1] = counters[k] + "Rate";
+		}
+		prevValues = new long[prevTimes.length * counters.length];
+		prevValid = new boolean[prevValues.length];
+	}
+
+	/**
+	 * @return report columns followed by delta and rate columns of each
+	 *         counter
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Set delta and rate columns of a report row, and keep counters of the row
+	 * for the next poll.
+	 *
+	 * @param entity
+	 *            name of the entity as written in reports
+	 * @param time
+	 *            poll time in milliseconds
+	 * @param row
+	 *            values in the order of the columns
+	 */
+	public void compute(String entity, long time, Object[] row) {
+		Integer id = entities.get(entity);
+		if (null == id) {
+			id = (freeCount > 0) ? free[--freeCount] : nextId++;
+			entities.put(entity, id);
+			if (id >= prevTimes.length) {
+				int size = 2 * prevTimes.length;
+				free = Arrays.copyOf(free, size);
+				lastPolls = Arrays.copyOf(lastPolls, size);
+				prevTimes = Arrays.copyOf(prevTimes, size);
+				prevValues = Arrays.copyOf(prevValues, size * counterCols.length);
+				prevValid = Arrays.copyOf(prevValid, prevValues.length);
+			}
+			int slot = id * counterCols.length;
+			Arrays.fill(prevValid, slot, slot + counterCols.length, false);
+		}
+		lastPolls[id] = poll;
+		long elapsed = time - prevTimes[id];
+		prevTimes[id] = time;
+
+		int slot = id * counterCols.length;
+		for (int k = 0; k < counterCols.length; k++, slot++) {
+			int deltaCol = firstDerived + 2 * k;
+			row[deltaCol] = null;
+			row[deltaCol + 1] = null;
+			Object value = counterCols[k] >= 0 ? row[counterCols[k]] : null;
+			if (!(value instanceof Number)) {
+				prevValid[slot] = false;
+				continue;
+			}
+			long current = ((Number) value).longValue();
+			if (prevValid[slot] && elapsed > 0) {
+				long delta = current >= prevValues[slot] ? current - prevValues[slot] : current;
+				row[deltaCol] = delta;
+				row[deltaCol + 1] = delta * 1000.0 / elapsed;
+			}
+			prevValues[slot] = current;
+			prevValid[slot] = true;
+		}
+	}
+
+	/**
+	 * Complete a poll, and forget entities without a sample in the last
+	 * IDLE_POLLS complete polls. Not called for a poll that failed, so its
+	 * missing entities are kept.
+	 */
+	public void end() {
+		poll++;
+		for (Iterator<Integer> it = entities.values().iterator(); it.hasNext();) {
+			int id = it.next();
+			if (poll - lastPolls[id] > IDLE_POLLS) {
+				it.remove();
+				free[freeCount++] = id;
+			}
+		}
+	}
+
+	/**
+	 * @return number of entities that are kept
+	 */
+	int size() {
+		return entities.size();
+	}
+
+	/**
+	 * Forget previous samples, e.g., when the engine is reconnected and may
+	 * have been restarted.
+	 */
+	public void clear() {
+		entities.clear();
+		freeCount = 0;
+		nextId = 0;
+		Arrays.fill(prevValid, false);
+	}
+}
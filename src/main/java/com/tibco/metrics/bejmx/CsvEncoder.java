@@ -0,0 +1,199 @@
+/*
+ * CsvEncoder.java - reusable byte buffer for encoding stat report rows.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encode values of stat report rows directly into a reusable byte buffer.
+ * Numbers are written without boxing or creating intermediate strings, and
+ * the output is the same as the text of String.valueOf() encoded in the
+ * default charset, which is what a FileWriter produces.
+ *
+ */
+public class CsvEncoder {
+
+	private static final Charset charset = Charset.defaultCharset();
+
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes(charset);
+
+	private byte[] buf;
+	private int size = 0;
+
+	// scratch space for floating point numbers
+	private StringBuilder digits = new StringBuilder(32);
+
+	public CsvEncoder() {
+		this(8192);
+	}
+
+	public CsvEncoder(int capacity) {
+		buf = new byte[capacity];
+	}
+
+	/**
+	 * Discard content of the buffer, and keep the allocated space.
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+	/**
+	 * @return number of encoded bytes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return internal buffer, valid up to size()
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * @return copy of the encoded bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, size);
+	}
+
+	/**
+	 * Write encoded bytes to an output stream.
+	 *
+	 * @param out
+	 *            output stream to write to
+	 * @throws IOException
+	 *             when failed to write
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, size);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (size + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + extra));
+		}
+	}
+
+	/**
+	 * Append an ASCII character.
+	 */
+	public CsvEncoder append(char c) {
+		ensureCapacity(1);
+		buf[size++] = (byte) c;
+		return this;
+	}
+
+	private CsvEncoder append(byte[] bytes) {
+		return append(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Append encoded bytes.
+	 */
+	public CsvEncoder append(byte[] bytes, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(bytes, off, buf, size, len);
+		size += len;
+		return this;
+	}
+
+	/**
+	 * Append a string. ASCII strings are copied byte by byte, other strings are
+	 * encoded with the default charset.
+	 */
+	public CsvEncoder append(CharSequence str) {
+		if (null == str) {
+			return append(NULL);
+		}
+		int len = str.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				// rare non-ASCII text, drop the ASCII prefix and encode the
+				// whole string
+				size -= i;
+				return append(str.toString().getBytes(charset));
+			}
+			buf[size++] = (byte) c;
+		}
+		return this;
+	}
+
+	/**
+	 * Append decimal digits of a long value.
+	 */
+	public CsvEncoder append(long value) {
+		if (value == Long.MIN_VALUE) {
+			return append(MIN_LONG);
+		}
+		ensureCapacity(20);
+		if (value < 0) {
+			buf[size++] = '-';
+			value = -value;
+		}
+		int start = size;
+		do {
+			buf[size++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value > 0);
+
+		// reverse the digits
+		for (int i = start, j = size - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+		return this;
+	}
+
+	/**
+	 * Append a double value in the format of Double.toString().
+	 */
+	public CsvEncoder append(double value) {
+		digits.setLength(0);
+		digits.append(value);
+		return append(digits);
+	}
+
+	/**
+	 * Append a float value in the format of Float.toString().
+	 */
+	public CsvEncoder append(float value) {
+		digits.setLength(0);
+		digits.append(value);
+		return append(digits);
+	}
+
+	/**
+	 * Append an attribute value in the format of String.valueOf().
+	 */
+	public CsvEncoder appendValue(Object value) {
+		if (null == value) {
+			return append(NULL);
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			return append(((Number) value).longValue());
+		} else if (value instanceof Double) {
+			return append(((Double) value).doubleValue());
+		} else if (value instanceof Float) {
+			return append(((Float) value).floatValue());
+		} else if (value instanceof Boolean) {
+			return append(((Boolean) value).booleanValue() ? TRUE : FALSE);
+		} else if (value instanceof CharSequence) {
+			return append((CharSequence) value);
+		}
+		return append(value.toString());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * EntityFilter.java - include/ignore rules for entities of one stat type.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Filter of entities reported for a stat type. Configured include patterns
+ * are compiled once into a single alternation, and the decision for each
+ * entity name is memoized, since entity names rarely change between polls.
+ *
+ */
+class EntityFilter {
+
+	// max number of memoized entity names, the cache is cleared when it is full
+	static final int MAX_CACHED_NAMES = 10000;
+
+	private boolean ignoreInternalEntity;
+
+	// alternation of all include patterns, null to include all entities
+	private Pattern includes;
+
+	// entity name -> true if the entity is ignored
+	private Map<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Construct filter of a stat type.
+	 *
+	 * @param includedPatterns
+	 *            regex of entity names to include, null or empty to include all
+	 *            entities
+	 * @param ignoreInternalEntity
+	 *            true to ignore BE internal entities
+	 */
+	EntityFilter(Set<String> includedPatterns, boolean ignoreInternalEntity) {
+		this.ignoreInternalEntity = ignoreInternalEntity;
+		if (includedPatterns != null && includedPatterns.size() > 0) {
+			StringBuilder regex = new StringBuilder();
+			for (String pattern : includedPatterns) {
+				if (regex.length() > 0) {
+					regex.append('|');
+				}
+				regex.append("(?:").append(pattern).append(')');
+			}
+			includes = Pattern.compile(regex.toString());
+		}
+	}
+
+	/**
+	 * @param name
+	 *            name of an entity to be evaluated for stat reporting.
+	 * @return true if the entity is filtered out, and thus not tracked, false
+	 *         otherwise.
+	 */
+	boolean isIgnored(String name) {
+		Boolean ignored = decisions.get(name);
+		if (null == ignored) {
+			ignored = evaluate(name);
+			if (decisions.size() >= MAX_CACHED_NAMES) {
+				decisions.clear();
+			}
+			decisions.put(name, ignored);
+		}
+		return ignored;
+	}
+
+	private boolean evaluate(String name) {
+		// ignore ObjectTableIds
+		if (name.endsWith("--ObjectTableIds")) {
+			return true;
+		} else if (ignoreInternalEntity && name.contains("com.tibco.cep.runtime.model")) {
+			return true;
+		}
+		return includes != null && !includes.matcher(name).matches();
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * EntityRegistry.java - live registry of MBean object names monitored by one JMX client.
+ * Names are seeded by a wildcard query, and then kept current by MBean server registration notifications.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+
+/**
+ * Registry of object names that match the MBean patterns of the monitored
+ * stat types. The registry is bound to one JMX connection, and is discarded
+ * when the connection is closed. Names of MBeans that are unregistered, or
+ * no longer found by a rescan, are evicted from the attribute cache of the
+ * client.
+ *
+ */
+class EntityRegistry implements NotificationListener {
+
+	private MBeanServerConnection mbsc;
+
+	// milliseconds between full rescans, 0 or less to query on every call
+	private long rescanMillis;
+
+	// true if MBean registration notifications are received
+	private boolean listening = false;
+
+	// set to true when notifications may have been lost
+	private volatile boolean stale = false;
+
+	private long lastScan = 0;
+
+	// number of requests sent to the MBean server
+	private AtomicLong requests = new AtomicLong(0);
+
+	// pattern string -> object name pattern
+	private Map<String, ObjectName> patterns = new ConcurrentHashMap<String, ObjectName>();
+
+	// object name pattern -> matching object names in sorted order. Sets are
+	// never modified, but replaced by updated copies, so a poll iterates a
+	// consistent snapshot while MBeans are registered or unregistered
+	private Map<ObjectName, Set<ObjectName>> names = new ConcurrentHashMap<ObjectName, Set<ObjectName>>();
+
+	// cache keyed by object names of the registry, or null
+	private Map<ObjectName, ?> cache;
+
+	/**
+	 * Construct a registry for a JMX connection.
+	 *
+	 * @param mbsc
+	 *            connection to the MBean server of a BE engine
+	 * @param rescanMillis
+	 *            milliseconds between full rescans of MBean names, 0 or less
+	 *            to query MBean names on every call
+	 */
+	EntityRegistry(MBeanServerConnection mbsc, long rescanMillis) {
+		this(mbsc, rescanMillis, null);
+	}
+
+	/**
+	 * Construct a registry for a JMX connection, which evicts names of removed
+	 * MBeans from a cache.
+	 *
+	 * @param mbsc
+	 *            connection to the MBean server of a BE engine
+	 * @param rescanMillis
+	 *            milliseconds between full rescans of MBean names, 0 or less
+	 *            to query MBean names on every call
+	 * @param cache
+	 *            thread-safe map keyed by object name, e.g., attributes of
+	 *            each MBean
+	 */
+	EntityRegistry(MBeanServerConnection mbsc, long rescanMillis, Map<ObjectName, ?> cache) {
+		this.mbsc = mbsc;
+		this.rescanMillis = rescanMillis;
+		this.cache = cache;
+	}
+
+	/**
+	 * Return object names that match a specified pattern. Names are queried
+	 * from the MBean server when the pattern is used for the first time, or
+	 * when the rescan period is expired.
+	 *
+	 * @param pattern
+	 *            object name pattern, e.g., com.tibco.be:service=Cache,name=*
+	 * @return sorted set of matching object names, which is not changed by
+	 *         later MBean registration
+	 * @throws Exception
+	 *             when failed to query the MBean server
+	 */
+	synchronized Set<ObjectName> getNames(String pattern) throws Exception {
+		ObjectName on = patterns.get(pattern);
+		if (null == on) {
+			on = new ObjectName(pattern);
+			patterns.put(pattern, on);
+		}
+
+		if (rescanMillis > 0 && !listening) {
+			startListening();
+		}
+
+		long now = System.currentTimeMillis();
+		if (!listening || stale || now - lastScan >= rescanMillis) {
+			// full rescan of all known patterns
+			stale = false;
+			lastScan = now;
+			for (ObjectName p : patterns.values()) {
+				scan(p);
+			}
+		} else if (!names.containsKey(on)) {
+			scan(on);
+		}
+		return names.get(on);
+	}
+
+	/**
+	 * @return number of requests sent to the MBean server
+	 */
+	long getRequests() {
+		return requests.get();
+	}
+
+	// called under the registry lock, so a notification received while the
+	// query is in flight is applied after the queried names are stored
+	private void scan(ObjectName pattern) throws IOException {
+		requests.incrementAndGet();
+		Set<ObjectName> matched = new TreeSet<ObjectName>(mbsc.queryNames(pattern, null));
+		Set<ObjectName> previous = names.put(pattern, Collections.unmodifiableSet(matched));
+		if (previous != null && cache != null) {
+			// MBeans unregistered without notification
+			for (ObjectName name : previous) {
+				if (!matched.contains(name)) {
+					cache.remove(name);
+				}
+			}
+		}
+	}
+
+	private void startListening() {
+		MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+		filter.enableAllObjectNames();
+		requests.incrementAndGet();
+		try {
+			mbsc.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+			listening = true;
+		} catch (Exception e) {
+			// fall back to query on every call
+			System.out.println(String.format("Failed to listen for MBean registration, query on every poll: %s",
+					e.getMessage()));
+			rescanMillis = 0;
+		}
+	}
+
+	/**
+	 * Update matching object names on MBean registration and unregistration.
+	 * Schedule a full rescan if notifications are lost by the JMX connector.
+	 */
+	public synchronized void handleNotification(Notification notification, Object handback) {
+		if (notification instanceof MBeanServerNotification) {
+			ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+			boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType());
+			if (!registered && cache != null) {
+				cache.remove(name);
+			}
+			for (Map.Entry<ObjectName, Set<ObjectName>> entry : names.entrySet()) {
+				if (entry.getKey().apply(name)) {
+					Set<ObjectName> updated = new TreeSet<ObjectName>(entry.getValue());
+					if (registered) {
+						updated.add(name);
+					} else {
+						updated.remove(name);
+					}
+					entry.setValue(Collections.unmodifiableSet(updated));
+				}
+			}
+		} else if (JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+			stale = true;
+		}
+	}
+}
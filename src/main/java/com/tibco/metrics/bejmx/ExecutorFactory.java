@@ -0,0 +1,80 @@
+/*
+ * ExecutorFactory.java - create executors for polling BE engines on platform or virtual threads.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory of executors used to poll engines and to fetch entity attributes.
+ * Virtual threads are looked up by reflection, so the utility still runs on
+ * JVMs that do not support them.
+ *
+ */
+public class ExecutorFactory {
+
+	// run tasks on a bounded pool of platform threads
+	public static final String PLATFORM = "platform";
+
+	// run each task on a new virtual thread
+	public static final String VIRTUAL = "virtual";
+
+	private ExecutorFactory() {
+	}
+
+	/**
+	 * Create a pool of platform threads.
+	 *
+	 * @param threads
+	 *            max number of threads in the pool
+	 * @param keepAliveSeconds
+	 *            seconds to keep idle threads
+	 * @return the thread pool
+	 */
+	public static ThreadPoolExecutor newPlatformPool(int threads, long keepAliveSeconds) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, keepAliveSeconds, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualSupported() {
+		return getVirtualFactoryMethod() != null;
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for each task.
+	 *
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *             when the JVM does not support virtual threads
+	 */
+	public static ExecutorService newVirtualExecutor() {
+		Method factory = getVirtualFactoryMethod();
+		if (null == factory) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not supported by Java " + System.getProperty("java.version"));
+		}
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Failed to create virtual thread executor: " + e.getMessage());
+		}
+	}
+
+	private static Method getVirtualFactoryMethod() {
+		try {
+			return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * LocalDiscovery.java - find BE engines among the JVMs of the local host, and cache their JMX connector addresses.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+/**
+ * Discovery of BE engines running on the local host. Each scan lists the
+ * local JVMs by the Attach API, which reads only the process list, and
+ * selects engines by main class, or by a system property.
+ *
+ * The connector address of an engine is resolved once per JVM lifetime, and
+ * cached by PID and display name, so a reused PID of a different command is
+ * resolved again. An address that the JVM already published is read without
+ * attaching. Otherwise the JVM is attached once to read its agent properties
+ * and start the local management agent. JVMs that are not engines are
+ * remembered as well, so they are not attached again. A cached address is
+ * dropped when connecting to it fails, and resolved again by the next scan,
+ * without reading the system properties of the JVM again. A JVM is resolved
+ * at most MAX_ATTEMPTS times in its lifetime.
+ * Addresses are resolved by the discovery thread only, never by a polling
+ * thread.
+ *
+ * An engine is named by its PID and start time, e.g., PID-1234-20150724093000,
+ * so reports of a JVM that reuses the PID of an exited engine are kept apart.
+ *
+ */
+public class LocalDiscovery {
+
+	static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+	// attempts to resolve the address of a JVM before it is ignored for its
+	// lifetime
+	static final int MAX_ATTEMPTS = 3;
+
+	private Pattern mainClass;
+	private String property;
+	private String self;
+
+	// PID -> resolved JVM, cached until the JVM exits, or the PID is reused
+	// by a JVM of another display name
+	private Map<Integer, Entry> known = new HashMap<Integer, Entry>();
+
+	/**
+	 * Construct discovery of local engines.
+	 *
+	 * @param mainClass
+	 *            pattern of the main class of engines, e.g., .*\.BEMain
+	 * @param property
+	 *            name of a system property that marks other JVMs as engines,
+	 *            or null to select engines by main class only. JVMs that do
+	 *            not match the main class are attached once to read their
+	 *            system properties.
+	 */
+	public LocalDiscovery(Pattern mainClass, String property) {
+		this.mainClass = mainClass;
+		this.property = property;
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		this.self = name.substring(0, Math.max(name.indexOf('@'), 0));
+	}
+
+	/**
+	 * List local JVMs, and resolve the connector addresses of new engines.
+	 *
+	 * @return connector address of each running engine by PID
+	 */
+	public synchronized Map<Integer, String> discover() {
+		Map<Integer, String> running = new HashMap<Integer, String>();
+		for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+			if (!vmd.id().equals(self)) {
+				try {
+					running.put(Integer.valueOf(vmd.id()), vmd.displayName());
+				} catch (NumberFormatException e) {
+					// not a process id
+				}
+			}
+		}
+		return update(running);
+	}
+
+	/**
+	 * Forget exited JVMs, and resolve JVMs that are new or failed before.
+	 *
+	 * @param running
+	 *            display name, i.e., main class and arguments, of each
+	 *            running JVM by PID
+	 * @return connector address of each running engine by PID
+	 */
+	synchronized Map<Integer, String> update(Map<Integer, String> running) {
+		known.keySet().retainAll(running.keySet());
+		Map<Integer, String> engines = new TreeMap<Integer, String>();
+		for (Map.Entry<Integer, String> jvm : running.entrySet()) {
+			Entry entry = known.get(jvm.getKey());
+			if (null == entry || !entry.displayName.equals(jvm.getValue())) {
+				entry = new Entry();
+				entry.displayName = jvm.getValue();
+				entry.startTime = getStartTime(jvm.getKey());
+				entry.matched = mainClass.matcher(getMainClass(jvm.getValue())).matches();
+				entry.candidate = entry.matched || property != null;
+				known.put(jvm.getKey(), entry);
+			}
+			if (null == entry.address && entry.candidate && entry.attempts < MAX_ATTEMPTS) {
+				entry.attempts++;
+				try {
+					entry.address = resolve(jvm.getKey(), entry.matched || entry.engine);
+					entry.candidate = entry.address != null;
+					entry.engine = entry.candidate;
+				} catch (Exception e) {
+					System.out.println(
+							String.format("Failed to resolve JMX address of pid %s: %s", jvm.getKey(), e.getMessage()));
+				}
+			}
+			if (entry.address != null) {
+				engines.put(jvm.getKey(), entry.address);
+			}
+		}
+		return engines;
+	}
+
+	/**
+	 * Drop the cached address of a JVM after connecting to it failed, so it is
+	 * resolved again by the next scan, e.g., when the engine restarted its
+	 * agent. The address is kept if the JVM is out of attempts.
+	 *
+	 * @param pid
+	 *            process id of the JVM
+	 * @param address
+	 *            address that failed, ignored if it is no longer cached
+	 */
+	synchronized void invalidate(int pid, String address) {
+		Entry entry = known.get(pid);
+		if (entry != null && address.equals(entry.address) && entry.attempts < MAX_ATTEMPTS) {
+			entry.address = null;
+		}
+	}
+
+	/**
+	 * Return the name of an engine, which is unique per JVM instance.
+	 *
+	 * @param pid
+	 *            process id of the JVM
+	 * @return PID and start time of the JVM, or null if it is not listed
+	 */
+	synchronized String getEngineName(int pid) {
+		Entry entry = known.get(pid);
+		if (null == entry) {
+			return null;
+		}
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(entry.startTime);
+		return String.format("PID-%d-%2$tY%2$tm%2$td%2$tH%2$tM%2$tS", pid, cal);
+	}
+
+	/**
+	 * Return the start time of a process by ProcessHandle of Java 9 and later,
+	 * without attaching to it. On older JVMs, or when the process is not
+	 * visible, it is the time the JVM is first listed.
+	 *
+	 * @param pid
+	 *            process id of the JVM
+	 * @return start time in milliseconds
+	 */
+	protected long getStartTime(int pid) {
+		try {
+			Class<?> handle = Class.forName("java.lang.ProcessHandle");
+			Object process = handle.getMethod("of", long.class).invoke(null, (long) pid);
+			if ((Boolean) process.getClass().getMethod("isPresent").invoke(process)) {
+				Object info = handle.getMethod("info").invoke(process.getClass().getMethod("get").invoke(process));
+				Object start = Class.forName("java.lang.ProcessHandle$Info").getMethod("startInstant").invoke(info);
+				if ((Boolean) start.getClass().getMethod("isPresent").invoke(start)) {
+					Object instant = start.getClass().getMethod("get").invoke(start);
+					return (Long) Class.forName("java.time.Instant").getMethod("toEpochMilli").invoke(instant);
+				}
+			}
+		} catch (Exception e) {
+			// ProcessHandle is not available
+		}
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * @return number of JVMs that are cached
+	 */
+	synchronized int size() {
+		return known.size();
+	}
+
+	/**
+	 * Return the connector address of a JVM, attaching to it only if it did
+	 * not publish an address.
+	 *
+	 * @param pid
+	 *            process id of the JVM
+	 * @param matched
+	 *            true if the main class matches, false to check the system
+	 *            property first
+	 * @return connector address, or null if the JVM is not an engine
+	 * @throws Exception
+	 *             when the JVM cannot be attached
+	 */
+	protected String resolve(int pid, boolean matched) throws Exception {
+		String address = importAddress(pid);
+		if (matched && address != null) {
+			return address;
+		}
+		VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+		try {
+			if (!matched) {
+				Properties props = vm.getSystemProperties();
+				if (null == props.getProperty(property)) {
+					return null;
+				}
+			}
+			if (null == address) {
+				address = vm.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+			}
+			if (null == address) {
+				System.out.println(String.format("No JMX address for pid %s, start management agent", pid));
+				address = startAgent(vm);
+			}
+			return address;
+		} finally {
+			vm.detach();
+		}
+	}
+
+	/**
+	 * Return the connector address published by a JVM in its performance
+	 * counters, without attaching to it.
+	 *
+	 * @return the address, or null if it is not published, or the JVM does
+	 *         not export sun.management, e.g., Java 9 and later without
+	 *         --add-exports
+	 */
+	@SuppressWarnings("restriction")
+	private static String importAddress(int pid) {
+		try {
+			return sun.management.ConnectorAddressLink.importFrom(pid);
+		} catch (Exception e) {
+			// performance counters are not readable
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Start the local management agent of an attached JVM, by the agent jar
+	 * of older JVMs, or by startLocalManagementAgent of Java 8 and later.
+	 */
+	private static String startAgent(VirtualMachine vm) throws Exception {
+		File agentJar = new File(System.getProperty("java.home") + File.separator + "lib" + File.separator
+				+ "management-agent.jar");
+		if (agentJar.exists()) {
+			vm.loadAgent(agentJar.getCanonicalPath());
+			return vm.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+		}
+		Method start = VirtualMachine.class.getMethod("startLocalManagementAgent");
+		return (String) start.invoke(vm);
+	}
+
+	/**
+	 * @return main class or jar in the display name of a JVM
+	 */
+	static String getMainClass(String displayName) {
+		String name = displayName.trim();
+		int end = name.indexOf(' ');
+		return (end < 0) ? name : name.substring(0, end);
+	}
+
+	private static class Entry {
+		private String displayName;
+		private long startTime;
+		private String address;
+		private boolean matched;
+		private boolean candidate;
+		// verdict of the system property, so it is read only once
+		private boolean engine;
+		private int attempts;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * MetricQueryServer.java - HTTP queries of recent stat values in the metric store.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve queries of the metric store over HTTP as csv text:
+ *
+ * <pre>
+ * GET /series
+ *     engine,statType,entity,column of all stored series
+ * GET /query?engine=e&amp;type=t&amp;entity=n&amp;column=c&amp;last=20
+ * GET /query?engine=e&amp;type=t&amp;entity=n&amp;column=c&amp;minutes=15
+ * GET /query?engine=e&amp;type=t&amp;entity=n&amp;column=c&amp;from=ms&amp;to=ms
+ *     DateTime,value of points of a series
+ * </pre>
+ *
+ * e.g., curl "http://localhost:9800/query?engine=BE_localhost_5555&amp;type=RTCTxnManagerReport&amp;entity=RTCTxnManagerReport&amp;column=PendingDBWrites&amp;minutes=15"
+ *
+ */
+public class MetricQueryServer implements HttpHandler {
+
+	private MetricStore store;
+	private HttpServer server;
+
+	/**
+	 * Construct query server of a store.
+	 *
+	 * @param store
+	 *            store to query
+	 * @param port
+	 *            HTTP port to listen on
+	 * @throws IOException
+	 *             when failed to bind the port
+	 */
+	public MetricQueryServer(MetricStore store, int port) throws IOException {
+		this.store = store;
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/series", this);
+		server.createContext("/query", this);
+	}
+
+	public void start() {
+		server.start();
+		System.out.println(String.format("Metric queries are served at http://localhost:%d/query",
+				server.getAddress().getPort()));
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		CsvEncoder out = new CsvEncoder();
+		int status = 200;
+		try {
+			if ("/series".equals(exchange.getRequestURI().getPath())) {
+				out.append("engine,statType,entity,column\n");
+				for (String[] key : store.listSeries()) {
+					out.append(key[0]).append(',').append(key[1]).append(',').append(key[2]).append(',')
+							.append(key[3]).append('\n');
+				}
+			} else {
+				status = query(parseQuery(exchange.getRequestURI().getRawQuery()), out);
+			}
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			out.reset();
+			out.append(e.getMessage()).append('\n');
+		}
+		exchange.getResponseHeaders().set("Content-Type", "text/csv");
+		exchange.sendResponseHeaders(status, out.size());
+		OutputStream body = exchange.getResponseBody();
+		try {
+			out.writeTo(body);
+		} finally {
+			body.close();
+		}
+	}
+
+	private int query(Map<String, String> params, CsvEncoder out) {
+		String engine = require(params, "engine");
+		String statType = require(params, "type");
+		String entity = require(params, "entity");
+		String column = require(params, "column");
+
+		MetricStore.Points points;
+		try {
+			if (params.containsKey("last")) {
+				points = store.last(engine, statType, entity, column, Integer.parseInt(params.get("last")));
+			} else if (params.containsKey("minutes")) {
+				long to = System.currentTimeMillis();
+				long from = to - Long.parseLong(params.get("minutes")) * 60000L;
+				points = store.range(engine, statType, entity, column, from, to);
+			} else {
+				long from = params.containsKey("from") ? Long.parseLong(params.get("from")) : 0;
+				long to = params.containsKey("to") ? Long.parseLong(params.get("to")) : Long.MAX_VALUE;
+				points = store.range(engine, statType, entity, column, from, to);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+		}
+		if (null == points) {
+			out.append("Series not found\n");
+			return 404;
+		}
+
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		out.append("DateTime,").append(column).append('\n');
+		for (int i = 0; i < points.size(); i++) {
+			out.append(fmt.format(new Date(points.getTime(i)))).append(',').append(points.getValue(i)).append('\n');
+		}
+		return 200;
+	}
+
+	private static String require(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (null == value) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value;
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> params = new HashMap<String, String>();
+		if (null == query) {
+			return params;
+		}
+		try {
+			for (String param : query.split("&")) {
+				int idx = param.indexOf('=');
+				if (idx > 0) {
+					params.put(URLDecoder.decode(param.substring(0, idx), "UTF-8"),
+							URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+		}
+		return params;
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * MetricStore.java - in-memory ring buffers of recent stat values.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recent values of numeric report columns, held in memory with a fixed
+ * budget. There is one ring buffer per engine, stat type, entity and column,
+ * and each buffer keeps the latest points in primitive arrays of times and
+ * values. A buffer is allocated when a column first reports a number, and no
+ * more buffers are allocated once the memory budget is used up. Buffers of an
+ * entity are released when the entity is not reported for a number of polls,
+ * or when the engine is no longer monitored, so that new entities can use the
+ * memory.
+ *
+ * Values are recorded by the polling thread of an engine, and can be queried
+ * by any thread.
+ *
+ */
+public class MetricStore {
+
+	// bytes of one point, i.e., a long time and a double value
+	private static final int POINT_BYTES = 16;
+
+	private long maxBytes;
+	private int capacity;
+	private int idlePolls;
+	private AtomicLong usedBytes = new AtomicLong(0);
+	private AtomicLong droppedValues = new AtomicLong(0);
+
+	// engine -> stat type -> series of the stat type
+	private ConcurrentMap<String, ConcurrentMap<String, SeriesGroup>> engines = new ConcurrentHashMap<String, ConcurrentMap<String, SeriesGroup>>();
+
+	/**
+	 * Construct a store.
+	 *
+	 * @param maxBytes
+	 *            max bytes of all ring buffers
+	 * @param capacity
+	 *            number of points kept by each ring buffer
+	 */
+	public MetricStore(long maxBytes, int capacity) {
+		this(maxBytes, capacity, 3);
+	}
+
+	/**
+	 * Construct a store.
+	 *
+	 * @param maxBytes
+	 *            max bytes of all ring buffers
+	 * @param capacity
+	 *            number of points kept by each ring buffer
+	 * @param idlePolls
+	 *            number of polls without a point after which the ring
+	 *            buffers of an entity are released
+	 */
+	public MetricStore(long maxBytes, int capacity, int idlePolls) {
+		this.maxBytes = maxBytes;
+		this.capacity = capacity;
+		this.idlePolls = Math.max(idlePolls, 1);
+	}
+
+	/**
+	 * Find or create the series of a stat type of an engine.
+	 *
+	 * @param engine
+	 *            name of the engine, as used in report file names
+	 * @param statType
+	 *            type of statistics
+	 * @param columns
+	 *            names of the report columns
+	 * @return series of all entities of the stat type
+	 */
+	public SeriesGroup getGroup(String engine, String statType, String[] columns) {
+		ConcurrentMap<String, SeriesGroup> groups = engines.get(engine);
+		if (null == groups) {
+			engines.putIfAbsent(engine, new ConcurrentHashMap<String, SeriesGroup>());
+			groups = engines.get(engine);
+		}
+		SeriesGroup group = groups.get(statType);
+		if (null == group) {
+			groups.putIfAbsent(statType, new SeriesGroup(columns));
+			group = groups.get(statType);
+		}
+		return group;
+	}
+
+	/**
+	 * Remove the series of a stat type of an engine that is no longer
+	 * monitored, and release their memory.
+	 *
+	 * @param engine
+	 *            name of the engine
+	 * @param statType
+	 *            type of statistics
+	 * @param group
+	 *            series returned by getGroup, which is not removed if it has
+	 *            already been replaced
+	 */
+	public void removeGroup(String engine, String statType, SeriesGroup group) {
+		ConcurrentMap<String, SeriesGroup> groups = engines.get(engine);
+		if (groups != null) {
+			groups.remove(statType, group);
+		}
+		group.release();
+	}
+
+	/**
+	 * @return bytes allocated by ring buffers
+	 */
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return number of values not stored because the memory budget is used
+	 *         up
+	 */
+	public long getDroppedValues() {
+		return droppedValues.get();
+	}
+
+	/**
+	 * List all stored series.
+	 *
+	 * @return engine, stat type, entity and column of each series
+	 */
+	public List<String[]> listSeries() {
+		List<String[]> keys = new ArrayList<String[]>();
+		for (Map.Entry<String, ConcurrentMap<String, SeriesGroup>> engine : engines.entrySet()) {
+			for (Map.Entry<String, SeriesGroup> group : engine.getValue().entrySet()) {
+				String[] columns = group.getValue().columns;
+				for (Map.Entry<String, EntitySeries> entity : group.getValue().entities.entrySet()) {
+					Series[] series = entity.getValue().series;
+					for (int col = 0; col < series.length; col++) {
+						if (series[col] != null) {
+							keys.add(new String[] { engine.getKey(), group.getKey(), entity.getKey(), columns[col] });
+						}
+					}
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Return points of a series in a time range.
+	 *
+	 * @param engine
+	 *            name of the engine
+	 * @param statType
+	 *            type of statistics
+	 * @param entity
+	 *            name of the entity as written in reports
+	 * @param column
+	 *            name of the report column
+	 * @param from
+	 *            start time in milliseconds, inclusive
+	 * @param to
+	 *            end time in milliseconds, inclusive
+	 * @return points in the order of time, or null if the series does not
+	 *         exist
+	 */
+	public Points range(String engine, String statType, String entity, String column, long from, long to) {
+		Series series = find(engine, statType, entity, column);
+		return series != null ? series.range(from, to) : null;
+	}
+
+	/**
+	 * Return the latest points of a series.
+	 *
+	 * @param engine
+	 *            name of the engine
+	 * @param statType
+	 *            type of statistics
+	 * @param entity
+	 *            name of the entity as written in reports
+	 * @param column
+	 *            name of the report column
+	 * @param n
+	 *            max number of points
+	 * @return points in the order of time, or null if the series does not
+	 *         exist
+	 */
+	public Points last(String engine, String statType, String entity, String column, int n) {
+		Series series = find(engine, statType, entity, column);
+		return series != null ? series.last(n) : null;
+	}
+
+	private Series find(String engine, String statType, String entity, String column) {
+		Map<String, SeriesGroup> groups = engines.get(engine);
+		SeriesGroup group = groups != null ? groups.get(statType) : null;
+		if (null == group) {
+			return null;
+		}
+		EntitySeries series = group.entities.get(entity);
+		int col = group.indexOf(column);
+		return (series != null && col >= 0) ? series.series[col] : null;
+	}
+
+	private Series allocate() {
+		long bytes = (long) capacity * POINT_BYTES;
+		while (true) {
+			long used = usedBytes.get();
+			if (used + bytes > maxBytes) {
+				if (droppedValues.getAndIncrement() == 0) {
+					System.out.println(String.format("Metric store is full with %d bytes, new series are not stored",
+							used));
+				}
+				return null;
+			}
+			if (usedBytes.compareAndSet(used, used + bytes)) {
+				return new Series(capacity);
+			}
+		}
+	}
+
+	private void free(Series[] series) {
+		long bytes = 0;
+		for (Series s : series) {
+			if (s != null) {
+				bytes += (long) capacity * POINT_BYTES;
+			}
+		}
+		usedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * Series of all entities of a stat type of an engine. Values are recorded
+	 * by one thread at a time.
+	 */
+	public class SeriesGroup {
+		private String[] columns;
+
+		// entity -> series of the entity
+		private ConcurrentMap<String, EntitySeries> entities = new ConcurrentHashMap<String, EntitySeries>();
+
+		// number of completed polls, and set when the group is removed
+		private long polls = 0;
+		private volatile boolean released = false;
+
+		SeriesGroup(String[] columns) {
+			this.columns = columns;
+		}
+
+		int indexOf(String column) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].equals(column)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Record numeric values of a report row.
+		 *
+		 * @param entity
+		 *            name of the entity as written in reports
+		 * @param time
+		 *            poll time in milliseconds
+		 * @param row
+		 *            values in the order of the report columns
+		 */
+		public void record(String entity, long time, Object[] row) {
+			if (released) {
+				return;
+			}
+			EntitySeries es = entities.get(entity);
+			if (null == es) {
+				es = new EntitySeries(columns.length);
+				entities.put(entity, es);
+			}
+			es.lastPoll = polls;
+			Series[] series = es.series;
+			for (int col = 0; col < row.length; col++) {
+				Object value = row[col];
+				if (value instanceof Number) {
+					if (null == series[col]) {
+						series[col] = allocate();
+						if (null == series[col]) {
+							continue;
+						}
+					}
+					series[col].add(time, ((Number) value).doubleValue());
+				}
+			}
+		}
+
+		/**
+		 * Complete a poll, and release the series of entities that are not
+		 * recorded for the configured number of polls.
+		 */
+		public void endPoll() {
+			for (Iterator<EntitySeries> it = entities.values().iterator(); it.hasNext();) {
+				EntitySeries es = it.next();
+				if (polls - es.lastPoll >= idlePolls) {
+					it.remove();
+					free(es.series);
+				}
+			}
+			polls++;
+		}
+
+		/**
+		 * @return true if the group is removed from the store, and no longer
+		 *         records values
+		 */
+		public boolean isReleased() {
+			return released;
+		}
+
+		void release() {
+			released = true;
+			for (Iterator<EntitySeries> it = entities.values().iterator(); it.hasNext();) {
+				EntitySeries es = it.next();
+				it.remove();
+				free(es.series);
+			}
+		}
+	}
+
+	/**
+	 * Series of an entity, indexed by report column, null for columns that
+	 * never reported a number.
+	 */
+	static class EntitySeries {
+		private final Series[] series;
+
+		// poll that last recorded a value of the entity
+		private long lastPoll;
+
+		EntitySeries(int columns) {
+			series = new Series[columns];
+		}
+	}
+
+	/**
+	 * Ring buffer of the latest points of one series.
+	 */
+	static class Series {
+		private final long[] times;
+		private final double[] values;
+
+		// index of the next point to write, and number of points kept
+		private int head = 0;
+		private int count = 0;
+
+		Series(int capacity) {
+			times = new long[capacity];
+			values = new double[capacity];
+		}
+
+		synchronized void add(long time, double value) {
+			times[head] = time;
+			values[head] = value;
+			head = (head + 1) % times.length;
+			if (count < times.length) {
+				count++;
+			}
+		}
+
+		synchronized Points last(int n) {
+			int len = Math.min(Math.max(n, 0), count);
+			return copy(count - len, len);
+		}
+
+		synchronized Points range(long from, long to) {
+			int start = 0;
+			while (start < count && times[index(start)] < from) {
+				start++;
+			}
+			int end = start;
+			while (end < count && times[index(end)] <= to) {
+				end++;
+			}
+			return copy(start, end - start);
+		}
+
+		// physical index of the i-th oldest point
+		private int index(int i) {
+			return (head - count + i + times.length) % times.length;
+		}
+
+		private Points copy(int start, int len) {
+			Points points = new Points(len);
+			for (int i = 0; i < len; i++) {
+				int idx = index(start + i);
+				points.times[i] = times[idx];
+				points.values[i] = values[idx];
+			}
+			return points;
+		}
+	}
+
+	/**
+	 * Points of a series returned by a query.
+	 */
+	public static class Points {
+		private long[] times;
+		private double[] values;
+
+		Points(int size) {
+			times = new long[size];
+			values = new double[size];
+		}
+
+		public int size() {
+			return times.length;
+		}
+
+		public long getTime(int idx) {
+			return times[idx];
+		}
+
+		public double getValue(int idx) {
+			return values[idx];
+		}
+	}
+}
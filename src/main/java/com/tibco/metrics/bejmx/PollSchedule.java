@@ -0,0 +1,155 @@
+/*
+ * PollSchedule.java - polling interval of one stat type of one BE engine, optionally adapted to poll time and change rate.
+ */
+
+package com.tibco.metrics.bejmx;
+
+/**
+ * Schedule of the polls of one stat type of one BE engine. The scheduler
+ * offers every slot of the tick, i.e., the greatest common divisor of all
+ * configured intervals, and the stat type is polled only in slots that are
+ * wall-clock multiples of its interval.
+ *
+ * In adaptive mode, the interval is doubled, up to the max interval, when a
+ * poll takes more than the budget fraction of the interval, or when the
+ * values of a poll are the same as the previous poll. The interval returns to
+ * the configured interval when values change again and the poll takes less
+ * than half of the budget, and is halved when values change but the poll is
+ * still close to the budget.
+ *
+ */
+public class PollSchedule {
+
+	private long baseMillis;
+	private long maxMillis;
+	private long tickMillis;
+	private boolean adaptive;
+	private double budget;
+
+	private long intervalMillis;
+	private volatile long nextDue = 0;
+
+	// fingerprint of the values of the last poll, and whether values changed
+	// in the current poll, null if unknown because the poll failed
+	private long fingerprint = 0;
+	private boolean hasFingerprint = false;
+	private Boolean changed = null;
+
+	/**
+	 * Construct schedule of a stat type.
+	 *
+	 * @param baseMillis
+	 *            configured interval of the stat type, a multiple of the tick
+	 * @param tickMillis
+	 *            interval of the scheduler slots
+	 * @param adaptive
+	 *            true to adapt the interval to poll time and change rate
+	 * @param maxMillis
+	 *            max interval in adaptive mode
+	 * @param budget
+	 *            fraction of the interval that a poll may take before the
+	 *            interval is stretched
+	 */
+	public PollSchedule(long baseMillis, long tickMillis, boolean adaptive, long maxMillis, double budget) {
+		this.tickMillis = tickMillis;
+		this.baseMillis = align(baseMillis);
+		this.maxMillis = Math.max(align(maxMillis), this.baseMillis);
+		this.adaptive = adaptive;
+		this.budget = budget;
+		this.intervalMillis = this.baseMillis;
+	}
+
+	private long align(long millis) {
+		return Math.max((millis + tickMillis - 1) / tickMillis, 1) * tickMillis;
+	}
+
+	/**
+	 * @param slot
+	 *            time of a scheduler slot in milliseconds
+	 * @return true if the stat type should be polled in the slot
+	 */
+	public boolean isDue(long slot) {
+		return slot >= nextDue;
+	}
+
+	/**
+	 * @return current interval in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * Record the fingerprint of the values collected by the current poll.
+	 *
+	 * @param value
+	 *            hash of the labels and values of all rows of the poll
+	 */
+	public void record(long value) {
+		changed = !hasFingerprint || value != fingerprint;
+		fingerprint = value;
+		hasFingerprint = true;
+	}
+
+	/**
+	 * Complete a poll, adapt the interval, and schedule the next poll at the
+	 * next wall-clock multiple of the interval.
+	 *
+	 * @param slot
+	 *            time of the slot of the poll in milliseconds
+	 * @param pollMillis
+	 *            wall time of the poll in milliseconds
+	 */
+	public void next(long slot, long pollMillis) {
+		if (adaptive) {
+			double limit = budget * intervalMillis;
+			if (pollMillis > limit || Boolean.FALSE.equals(changed)) {
+				// engine is slow, or values are unchanged
+				intervalMillis = Math.min(2 * intervalMillis, maxMillis);
+			} else if (Boolean.TRUE.equals(changed)) {
+				intervalMillis = (pollMillis < limit / 2) ? baseMillis
+						: Math.max(align(intervalMillis / 2), baseMillis);
+			}
+		}
+		changed = null;
+		nextDue = (slot / intervalMillis + 1) * intervalMillis;
+	}
+
+	/**
+	 * Add the values of a report row to a fingerprint of a poll.
+	 *
+	 * @param hash
+	 *            fingerprint of the previous rows of the poll
+	 * @param label
+	 *            entity name of the row
+	 * @param row
+	 *            values in the order of the columns
+	 * @param cols
+	 *            number of columns to include
+	 * @param dateCol
+	 *            index of the DateTime column, which is excluded
+	 * @return the updated fingerprint
+	 */
+	public static long fingerprint(long hash, String label, Object[] row, int cols, int dateCol) {
+		long h = 31 * hash + label.hashCode();
+		for (int col = 0; col < cols; col++) {
+			if (col != dateCol) {
+				Object value = row[col];
+				h = 31 * h + (value != null ? value.hashCode() : 0);
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * @return greatest common divisor of two positive numbers
+	 */
+	public static int gcd(int a, int b) {
+		while (b > 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * PollSlots.java - wall-clock slots of the poll scheduler.
+ */
+
+package com.tibco.metrics.bejmx;
+
+/**
+ * Wall-clock slots of the poll scheduler. Slots are multiples of the tick, so
+ * that reports of all engines and collector instances line up. When the
+ * scheduler overruns, i.e., the next slot has already passed when a poll
+ * round is done, the missed slots are skipped rather than replayed, and the
+ * scheduler continues at the next slot after the current time.
+ *
+ */
+public class PollSlots {
+
+	private long intervalMillis;
+	private long slot;
+	private int missed = 0;
+
+	/**
+	 * Construct slots of the scheduler.
+	 *
+	 * @param intervalMillis
+	 *            interval between slots, i.e., the tick
+	 * @param now
+	 *            current time, the first slot is the next multiple of the
+	 *            interval after it
+	 */
+	public PollSlots(long intervalMillis, long now) {
+		this.intervalMillis = intervalMillis;
+		this.slot = align(now);
+	}
+
+	/**
+	 * @return time of the current slot
+	 */
+	public long getSlot() {
+		return slot;
+	}
+
+	/**
+	 * Move to the slot after the current one, or to the next slot after the
+	 * current time if that slot has already passed.
+	 *
+	 * @param now
+	 *            current time
+	 * @return time of the next slot
+	 */
+	public long next(long now) {
+		long next = slot + intervalMillis;
+		if (next <= now) {
+			slot = align(now);
+			missed = (int) ((slot - next) / intervalMillis);
+		} else {
+			slot = next;
+			missed = 0;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return number of slots skipped by the last call of next
+	 */
+	public int getMissed() {
+		return missed;
+	}
+
+	/**
+	 * @return the first multiple of the interval after a time
+	 */
+	long align(long time) {
+		return (time / intervalMillis + 1) * intervalMillis;
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * PollStats.java - statistics of the collector itself for one stat type of one BE engine.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the polls of one stat type of one BE engine, i.e., wall time
+ * of polls as a histogram, time spent in JMX calls and in writing reports,
+ * RMI round trips, entities fetched and filtered, rows suppressed, bytes
+ * written and errors.
+ * Reconnects and skipped poll slots are counted per engine, and shared by
+ * all stat types of the engine.
+ *
+ * Counters are updated by the polling thread of the engine, and by the fetch
+ * threads of the connection pool, with lock-free atomic increments only. The
+ * histogram uses buckets of powers of 2 milliseconds, so a poll is recorded
+ * without search or allocation. Percentiles are the upper bounds of the
+ * buckets.
+ *
+ */
+public class PollStats implements PollStatsMBean {
+
+	// bucket 0 counts polls under 1 ms, bucket i polls in [2^(i-1), 2^i) ms,
+	// and the last bucket polls of 2^16 ms or longer
+	static final int BUCKETS = 18;
+
+	// columns of the stats report, after the stat type
+	static final String[] COLUMNS = { "DateTime", "Polls", "LastPollMillis", "MeanPollMillis", "P50PollMillis",
+			"P90PollMillis", "P99PollMillis", "MaxPollMillis", "MeanFetchMillis", "MeanWriteMillis", "RoundTrips",
+			"EntitiesFetched", "EntitiesFiltered", "BytesWritten", "Errors", "Reconnects", "SkippedSlots",
+			"IntervalMillis", "RowsSuppressed" };
+
+	private String engine;
+	private String statType;
+
+	private AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+	private AtomicLong polls = new AtomicLong(0);
+	private AtomicLong pollNanos = new AtomicLong(0);
+	private AtomicLong fetchNanos = new AtomicLong(0);
+	private AtomicLong writeNanos = new AtomicLong(0);
+	private volatile long lastPollMillis = 0;
+	private volatile long maxPollMillis = 0;
+
+	private AtomicLong roundTrips = new AtomicLong(0);
+	private AtomicLong entitiesFetched = new AtomicLong(0);
+	private AtomicLong entitiesFiltered = new AtomicLong(0);
+	private AtomicLong bytesWritten = new AtomicLong(0);
+	private AtomicLong errors = new AtomicLong(0);
+	private AtomicLong rowsSuppressed = new AtomicLong(0);
+
+	// current polling interval, which varies in adaptive mode
+	private volatile long intervalMillis = 0;
+
+	// counters of the engine
+	private AtomicLong reconnects;
+	private AtomicLong skippedSlots;
+
+	private ObjectName objectName = null;
+
+	/**
+	 * Construct statistics of a stat type of an engine.
+	 *
+	 * @param engine
+	 *            name of the engine as used in report file names
+	 * @param statType
+	 *            type of statistics
+	 * @param reconnects
+	 *            reconnect counter of the engine
+	 * @param skippedSlots
+	 *            skipped poll slot counter of the engine
+	 */
+	public PollStats(String engine, String statType, AtomicLong reconnects, AtomicLong skippedSlots) {
+		this.engine = engine;
+		this.statType = statType;
+		this.reconnects = reconnects;
+		this.skippedSlots = skippedSlots;
+	}
+
+	/**
+	 * Record a completed poll.
+	 *
+	 * @param nanos
+	 *            wall time of the poll in nanoseconds
+	 */
+	public void addPoll(long nanos) {
+		long millis = nanos / 1000000L;
+		histogram.incrementAndGet(getBucket(millis));
+		polls.incrementAndGet();
+		pollNanos.addAndGet(nanos);
+		lastPollMillis = millis;
+		if (millis > maxPollMillis) {
+			// updated only by the polling thread of the engine
+			maxPollMillis = millis;
+		}
+	}
+
+	static int getBucket(long millis) {
+		return Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1);
+	}
+
+	public void addFetchNanos(long nanos) {
+		fetchNanos.addAndGet(nanos);
+	}
+
+	public void addWriteNanos(long nanos) {
+		writeNanos.addAndGet(nanos);
+	}
+
+	public void addRoundTrips(long count) {
+		roundTrips.addAndGet(count);
+	}
+
+	public void addEntitiesFetched(long count) {
+		entitiesFetched.addAndGet(count);
+	}
+
+	public void addEntityFiltered() {
+		entitiesFiltered.incrementAndGet();
+	}
+
+	public void addBytesWritten(long count) {
+		bytesWritten.addAndGet(count);
+	}
+
+	public void addError() {
+		errors.incrementAndGet();
+	}
+
+	public void addRowSuppressed() {
+		rowsSuppressed.incrementAndGet();
+	}
+
+	public void setIntervalMillis(long millis) {
+		intervalMillis = millis;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public String getStatType() {
+		return statType;
+	}
+
+	public long getPolls() {
+		return polls.get();
+	}
+
+	public long getLastPollMillis() {
+		return lastPollMillis;
+	}
+
+	public double getMeanPollMillis() {
+		long n = polls.get();
+		return n > 0 ? pollNanos.get() / 1000000.0 / n : 0;
+	}
+
+	public long getMaxPollMillis() {
+		return maxPollMillis;
+	}
+
+	public long getP50PollMillis() {
+		return getPercentile(0.5);
+	}
+
+	public long getP90PollMillis() {
+		return getPercentile(0.9);
+	}
+
+	public long getP99PollMillis() {
+		return getPercentile(0.99);
+	}
+
+	/**
+	 * Return upper bound of the histogram bucket that contains a percentile
+	 * of poll times. The max poll time is returned if it is smaller, or if
+	 * the percentile is in the last bucket.
+	 *
+	 * @param fraction
+	 *            percentile as a fraction, e.g., 0.99
+	 * @return poll time in milliseconds
+	 */
+	long getPercentile(double fraction) {
+		long[] counts = getPollMillisHistogram();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (0 == total) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(1L << i, maxPollMillis);
+			}
+		}
+		return maxPollMillis;
+	}
+
+	public long[] getPollMillisHistogram() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = histogram.get(i);
+		}
+		return counts;
+	}
+
+	public double getMeanFetchMillis() {
+		long n = polls.get();
+		return n > 0 ? fetchNanos.get() / 1000000.0 / n : 0;
+	}
+
+	public double getMeanWriteMillis() {
+		long n = polls.get();
+		return n > 0 ? writeNanos.get() / 1000000.0 / n : 0;
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.get();
+	}
+
+	public long getEntitiesFetched() {
+		return entitiesFetched.get();
+	}
+
+	public long getEntitiesFiltered() {
+		return entitiesFiltered.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	public long getSkippedSlots() {
+		return skippedSlots.get();
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public long getRowsSuppressed() {
+		return rowsSuppressed.get();
+	}
+
+	/**
+	 * Fill a row of the stats report, in the order of the report columns.
+	 *
+	 * @param row
+	 *            values of the columns to fill
+	 * @param timestamp
+	 *            time written in the DateTime column
+	 * @return the row
+	 */
+	public Object[] getRow(Object[] row, String timestamp) {
+		row[0] = timestamp;
+		row[1] = getPolls();
+		row[2] = getLastPollMillis();
+		row[3] = getMeanPollMillis();
+		row[4] = getP50PollMillis();
+		row[5] = getP90PollMillis();
+		row[6] = getP99PollMillis();
+		row[7] = getMaxPollMillis();
+		row[8] = getMeanFetchMillis();
+		row[9] = getMeanWriteMillis();
+		row[10] = getRoundTrips();
+		row[11] = getEntitiesFetched();
+		row[12] = getEntitiesFiltered();
+		row[13] = getBytesWritten();
+		row[14] = getErrors();
+		row[15] = getReconnects();
+		row[16] = getSkippedSlots();
+		row[17] = getIntervalMillis();
+		row[18] = getRowsSuppressed();
+		return row;
+	}
+
+	/**
+	 * Register the statistics in the platform MBean server.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(String.format("com.tibco.metrics.bejmx:type=PollStats,engine=%s,statType=%s",
+					quote(engine), quote(statType)));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+			}
+		} catch (Exception e) {
+			System.out.println(String.format("Failed to register collector stats of %s %s: %s", engine, statType,
+					e.getMessage()));
+			objectName = null;
+		}
+	}
+
+	private static String quote(String value) {
+		return value.matches("[^,=:\"*?\\n]*") ? value : ObjectName.quote(value);
+	}
+
+	/**
+	 * Remove the statistics from the platform MBean server.
+	 */
+	public void unregister() {
+		if (null == objectName) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			// do nothing
+		}
+		objectName = null;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * PollStatsMBean.java - management interface of the collector statistics of one stat type of one engine.
+ */
+
+package com.tibco.metrics.bejmx;
+
+/**
+ * Collector statistics of one stat type of one BE engine, registered as
+ * com.tibco.metrics.bejmx:type=PollStats,engine=&lt;engine&gt;,statType=&lt;statType&gt;.
+ * Times are in milliseconds, and counts are cumulative since start.
+ *
+ */
+public interface PollStatsMBean {
+
+	String getEngine();
+
+	String getStatType();
+
+	long getPolls();
+
+	long getLastPollMillis();
+
+	double getMeanPollMillis();
+
+	long getMaxPollMillis();
+
+	long getP50PollMillis();
+
+	long getP90PollMillis();
+
+	long getP99PollMillis();
+
+	long[] getPollMillisHistogram();
+
+	double getMeanFetchMillis();
+
+	double getMeanWriteMillis();
+
+	long getRoundTrips();
+
+	long getEntitiesFetched();
+
+	long getEntitiesFiltered();
+
+	long getBytesWritten();
+
+	long getErrors();
+
+	long getReconnects();
+
+	long getSkippedSlots();
+
+	long getIntervalMillis();
+
+	long getRowsSuppressed();
+}
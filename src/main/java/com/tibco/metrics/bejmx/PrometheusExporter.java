@@ -0,0 +1,307 @@
+/*
+ * PrometheusExporter.java - Prometheus text exposition of the latest stat values.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve the latest values of all engines at /metrics in the Prometheus text
+ * format. Each report column is a metric family named
+ * bejmx_&lt;statType&gt;_&lt;column&gt;, labelled by engine, host, port and
+ * entity. Cumulative counters are exposed as counters with suffix _total, and
+ * other numeric columns as gauges.
+ *
+ * Lines of each column are rendered by the polling thread of an engine when
+ * a poll completes. A scrape only concatenates the rendered lines of all
+ * engines when any of them has changed, and otherwise returns the cached
+ * response, so scrapes never cause JMX calls or number formatting.
+ *
+ */
+public class PrometheusExporter implements HttpHandler {
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private HttpServer server;
+
+	// sections of each stat type, in the order of registration
+	private Map<String, List<Section>> sections = new LinkedHashMap<String, List<Section>>();
+
+	// cached response, re-assembled after any section is updated
+	private volatile byte[] body = new byte[0];
+	private volatile boolean dirty = false;
+
+	/**
+	 * Construct exporter that listens on a port.
+	 *
+	 * @param port
+	 *            HTTP port to listen on
+	 * @param threads
+	 *            number of threads to serve concurrent scrapes
+	 * @throws IOException
+	 *             when failed to bind the port
+	 */
+	public PrometheusExporter(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this);
+		server.setExecutor(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bejmx-prometheus");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	}
+
+	public void start() {
+		server.start();
+		System.out.println(String.format("Prometheus metrics are served at http://localhost:%d/metrics",
+				server.getAddress().getPort()));
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/**
+	 * @return port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Create the section of a stat type of an engine.
+	 *
+	 * @param engine
+	 *            name of the engine
+	 * @param host
+	 *            host of the engine
+	 * @param port
+	 *            JMX port of the engine
+	 * @param statType
+	 *            type of statistics
+	 * @param columns
+	 *            names of the columns of report rows
+	 * @param firstCol
+	 *            index of the first column after the entity name
+	 * @param dateCol
+	 *            index of the DateTime column, which is not exposed
+	 * @param counters
+	 *            names of cumulative counter columns
+	 * @return section to be updated by each poll
+	 */
+	public synchronized Section addSection(String engine, String host, int port, String statType, String[] columns,
+			int firstCol, int dateCol, String[] counters) {
+		Section section = new Section(engine, host, port, statType, columns, firstCol, dateCol, counters);
+		List<Section> list = sections.get(statType);
+		if (null == list) {
+			list = new ArrayList<Section>();
+			sections.put(statType, list);
+		}
+		list.add(section);
+		return section;
+	}
+
+	/**
+	 * Remove the section of an engine that is no longer monitored, so its last
+	 * values are no longer served.
+	 *
+	 * @param section
+	 *            section returned by addSection
+	 */
+	public synchronized void removeSection(Section section) {
+		List<Section> list = sections.get(section.statType);
+		if (list != null && list.remove(section)) {
+			if (list.isEmpty()) {
+				sections.remove(section.statType);
+			}
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Return the response of a scrape, and re-assemble it if any section has
+	 * changed since the last scrape.
+	 *
+	 * @return body of the response
+	 */
+	public byte[] getBody() {
+		if (dirty) {
+			synchronized (this) {
+				if (dirty) {
+					// clear the flag first, so a concurrent update triggers
+					// another assembly
+					dirty = false;
+					body = assemble();
+				}
+			}
+		}
+		return body;
+	}
+
+	private byte[] assemble() {
+		CsvEncoder out = new CsvEncoder(body.length + 1024);
+		for (List<Section> list : sections.values()) {
+			Section first = list.get(0);
+			for (int col = 0; col < first.families.length; col++) {
+				if (null == first.families[col]) {
+					continue;
+				}
+				out.append(first.families[col]);
+				for (Section section : list) {
+					byte[][] lines = section.lines;
+					if (lines != null && col < lines.length) {
+						out.append(lines[col], 0, lines[col].length);
+					}
+				}
+			}
+		}
+		return out.toByteArray();
+	}
+
+	public void handle(HttpExchange exchange) throws IOException {
+		byte[] data = getBody();
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(200, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(200, data.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(data);
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Rendered lines of a stat type of one engine. Updated by the polling
+	 * thread of the engine only.
+	 */
+	public class Section {
+		private String statType;
+
+		// TYPE line of each column, null for columns that are not exposed
+		private String[] families;
+
+		// metric name and engine labels of each column, e.g.,
+		// bejmx_BEEntityCache_CacheSize{engine="e1",host="h",port="9899",entity="
+		private String[] prefixes;
+
+		private CsvEncoder[] buffers;
+
+		// latest rendered lines of each column, replaced by each commit
+		private volatile byte[][] lines = null;
+
+		Section(String engine, String host, int port, String statType, String[] columns, int firstCol, int dateCol,
+				String[] counters) {
+			this.statType = statType;
+			families = new String[columns.length];
+			prefixes = new String[columns.length];
+			buffers = new CsvEncoder[columns.length];
+			String labels = String.format("{engine=\"%s\",host=\"%s\",port=\"%d\",entity=\"", escape(engine),
+					escape(host), port);
+			for (int col = firstCol; col < columns.length; col++) {
+				if (col == dateCol) {
+					continue;
+				}
+				String name = sanitize("bejmx_" + statType + "_" + columns[col]);
+				if (Arrays.asList(counters).contains(columns[col])) {
+					families[col] = String.format("# TYPE %s_total counter\n", name);
+					prefixes[col] = name + "_total" + labels;
+				} else {
+					families[col] = String.format("# TYPE %s gauge\n", name);
+					prefixes[col] = name + labels;
+				}
+				buffers[col] = new CsvEncoder(1024);
+			}
+		}
+
+		/**
+		 * Start rendering rows of a poll.
+		 */
+		public void begin() {
+			for (CsvEncoder buf : buffers) {
+				if (buf != null) {
+					buf.reset();
+				}
+			}
+		}
+
+		/**
+		 * Render numeric values of a report row.
+		 *
+		 * @param entity
+		 *            name of the entity as written in reports
+		 * @param row
+		 *            values in the order of the columns
+		 */
+		public void add(String entity, Object[] row) {
+			String label = null;
+			for (int col = 0; col < buffers.length; col++) {
+				CsvEncoder buf = buffers[col];
+				Object value = row[col];
+				if (null == buf || !(value instanceof Number || value instanceof Boolean)) {
+					continue;
+				}
+				if (null == label) {
+					label = escape(entity);
+				}
+				buf.append(prefixes[col]).append(label).append("\"} ");
+				if (value instanceof Boolean) {
+					buf.append(((Boolean) value).booleanValue() ? '1' : '0');
+				} else if (value instanceof Double || value instanceof Float) {
+					double v = ((Number) value).doubleValue();
+					if (Double.isInfinite(v)) {
+						buf.append(v > 0 ? "+Inf" : "-Inf");
+					} else {
+						buf.appendValue(value);
+					}
+				} else {
+					buf.appendValue(value);
+				}
+				buf.append('\n');
+			}
+		}
+
+		/**
+		 * Publish the rendered rows of the poll for the next scrape.
+		 */
+		public void commit() {
+			byte[][] snapshot = new byte[buffers.length][];
+			for (int col = 0; col < buffers.length; col++) {
+				snapshot[col] = buffers[col] != null ? buffers[col].toByteArray() : new byte[0];
+			}
+			lines = snapshot;
+			dirty = true;
+		}
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^a-zA-Z0-9_:]", "_");
+	}
+
+	private static String escape(String value) {
+		if (null == value) {
+			return "";
+		}
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
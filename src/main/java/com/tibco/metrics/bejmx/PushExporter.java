@@ -0,0 +1,425 @@
+/*
+ * PushExporter.java - push stat rows to Graphite, StatsD or InfluxDB over UDP or TCP.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Export report rows to a metrics collector in a line protocol, i.e.,
+ * Graphite plaintext, StatsD gauges, or Influx line protocol. Polling threads
+ * encode rows of a poll into a batch of lines, and a sender thread writes
+ * batches to a non-blocking NIO channel. Over UDP, lines are packed into
+ * datagrams of at most MTU bytes; over TCP, batches are written as a stream,
+ * and the connection is re-established with back-off when it fails. Data
+ * that cannot be buffered within the limit are dropped and counted.
+ *
+ */
+public class PushExporter implements Runnable {
+
+	public static final String GRAPHITE = "graphite";
+	public static final String STATSD = "statsd";
+	public static final String INFLUX = "influx";
+
+	public static final String UDP = "udp";
+	public static final String TCP = "tcp";
+
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 30000;
+
+	private String protocol;
+	private String transport;
+	private InetSocketAddress address;
+	private int mtu;
+	private int maxBuffer;
+	private String prefix;
+
+	private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(10000);
+	private AtomicLong queuedBytes = new AtomicLong(0);
+
+	private AtomicLong droppedBytes = new AtomicLong(0);
+	private AtomicLong sentBytes = new AtomicLong(0);
+	private AtomicLong sentPackets = new AtomicLong(0);
+	private long reportedDrops = 0;
+
+	// state of the sender thread
+	private DatagramChannel udpChannel = null;
+	private ByteBuffer packet;
+	private SocketChannel tcpChannel = null;
+	private ByteBuffer pending;
+	private long nextConnect = 0;
+	private long backoff = MIN_BACKOFF;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// queued by shutdown to wake up the sender thread. The thread is not
+	// interrupted, because an interrupt closes the channel being written
+	private static final byte[] STOP = new byte[0];
+
+	// time until which pending TCP data are sent after shutdown
+	private volatile long stopDeadline = 0;
+
+	/**
+	 * Construct exporter.
+	 *
+	 * @param protocol
+	 *            line protocol, i.e., graphite, statsd, or influx
+	 * @param transport
+	 *            udp or tcp
+	 * @param host
+	 *            host of the metrics collector
+	 * @param port
+	 *            port of the metrics collector
+	 * @param mtu
+	 *            max bytes of a UDP datagram
+	 * @param maxBuffer
+	 *            max bytes buffered for sending, data beyond the limit are
+	 *            dropped
+	 * @param prefix
+	 *            prefix of metric paths of graphite and statsd
+	 */
+	public PushExporter(String protocol, String transport, String host, int port, int mtu, int maxBuffer,
+			String prefix) {
+		this.protocol = protocol;
+		this.transport = transport;
+		this.address = new InetSocketAddress(host, port);
+		this.mtu = mtu;
+		this.maxBuffer = maxBuffer;
+		this.prefix = prefix;
+		this.packet = ByteBuffer.allocate(mtu);
+		this.pending = ByteBuffer.allocate(TCP.equals(transport) ? maxBuffer : 0);
+	}
+
+	/**
+	 * Start the sender thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "bejmx-push");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Encode numeric values of a report row as lines of the configured
+	 * protocol.
+	 *
+	 * @param out
+	 *            buffer to append lines to
+	 * @param engine
+	 *            name of the engine
+	 * @param host
+	 *            host of the engine
+	 * @param port
+	 *            JMX port of the engine
+	 * @param statType
+	 *            type of statistics
+	 * @param entity
+	 *            name of the entity as written in reports
+	 * @param columns
+	 *            names of the columns of report rows
+	 * @param firstCol
+	 *            index of the first column after the entity name
+	 * @param dateCol
+	 *            index of the DateTime column
+	 * @param row
+	 *            values in the order of the columns
+	 * @param time
+	 *            poll time in milliseconds
+	 */
+	public void encode(CsvEncoder out, String engine, String host, int port, String statType, String entity,
+			String[] columns, int firstCol, int dateCol, Object[] row, long time) {
+		if (INFLUX.equals(protocol)) {
+			// one line per row: measurement,tags fields timestamp
+			if (!hasNumber(row, firstCol, dateCol)) {
+				return;
+			}
+			out.append(prefix).append('_').append(escapeInflux(statType)).append(",engine=")
+					.append(escapeInflux(engine)).append(",host=").append(escapeInflux(String.valueOf(host)))
+					.append(",port=").append((long) port).append(",entity=").append(escapeInflux(entity));
+			char sep = ' ';
+			for (int col = firstCol; col < columns.length; col++) {
+				Object value = row[col];
+				if (col == dateCol || !(value instanceof Number || value instanceof Boolean)) {
+					continue;
+				}
+				out.append(sep).append(escapeInflux(columns[col])).append('=');
+				if (value instanceof Double || value instanceof Float) {
+					out.appendValue(value);
+				} else if (value instanceof Boolean) {
+					out.appendValue(value);
+				} else {
+					out.appendValue(value).append('i');
+				}
+				sep = ',';
+			}
+			out.append(' ').append(time).append("000000\n");
+			return;
+		}
+
+		// one line per value: prefix.engine.statType.entity.column
+		String path = prefix + '.' + escapePath(engine) + '.' + escapePath(statType) + '.' + escapePath(entity) + '.';
+		for (int col = firstCol; col < columns.length; col++) {
+			Object value = row[col];
+			if (col == dateCol || !(value instanceof Number || value instanceof Boolean)) {
+				continue;
+			}
+			if (value instanceof Boolean) {
+				value = ((Boolean) value).booleanValue() ? 1L : 0L;
+			}
+			out.append(path).append(columns[col]);
+			if (STATSD.equals(protocol)) {
+				out.append(':').appendValue(value).append("|g\n");
+			} else {
+				out.append(' ').appendValue(value).append(' ').append(time / 1000).append('\n');
+			}
+		}
+	}
+
+	private static boolean hasNumber(Object[] row, int firstCol, int dateCol) {
+		for (int col = firstCol; col < row.length; col++) {
+			if (col != dateCol && (row[col] instanceof Number || row[col] instanceof Boolean)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Queue encoded lines of a poll for sending. The lines are dropped if the
+	 * buffer limit is reached.
+	 *
+	 * @param lines
+	 *            encoded lines, owned by the exporter after the call
+	 */
+	public void submit(byte[] lines) {
+		if (queuedBytes.addAndGet(lines.length) > maxBuffer || !queue.offer(lines)) {
+			queuedBytes.addAndGet(-lines.length);
+			droppedBytes.addAndGet(lines.length);
+		}
+	}
+
+	/**
+	 * @return number of bytes dropped because of full buffer or send failures
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+	/**
+	 * @return number of bytes sent
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * @return number of UDP datagrams or TCP writes
+	 */
+	public long getSentPackets() {
+		return sentPackets.get();
+	}
+
+	public void run() {
+		List<byte[]> batches = new ArrayList<byte[]>();
+		while (running || !queue.isEmpty()) {
+			try {
+				// retry pending TCP data soon, otherwise wait for the next poll
+				long wait = (pending.position() > 0) ? 100 : 1000;
+				byte[] batch = queue.poll(wait, TimeUnit.MILLISECONDS);
+				if (batch != null) {
+					batches.add(batch);
+					queue.drainTo(batches);
+				}
+			} catch (InterruptedException e) {
+				running = false;
+			}
+			for (byte[] b : batches) {
+				if (b == STOP) {
+					continue;
+				}
+				queuedBytes.addAndGet(-b.length);
+				if (UDP.equals(transport)) {
+					sendDatagrams(b);
+				} else if (pending.remaining() >= b.length) {
+					pending.put(b);
+				} else {
+					droppedBytes.addAndGet(b.length);
+				}
+			}
+			batches.clear();
+			if (UDP.equals(transport)) {
+				flushPacket();
+			} else {
+				flushStream();
+			}
+			reportDrops();
+		}
+
+		// send pending TCP data, e.g., while the connection is completed
+		while (pending.position() > 0 && System.currentTimeMillis() < stopDeadline) {
+			flushStream();
+			if (pending.position() > 0) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+
+		// data not sent before shutdown
+		droppedBytes.addAndGet(pending.position());
+		closeChannels();
+	}
+
+	/**
+	 * Pack lines into datagrams of at most MTU bytes, without splitting lines.
+	 */
+	private void sendDatagrams(byte[] lines) {
+		int start = 0;
+		while (start < lines.length) {
+			int end = start;
+			while (end < lines.length && lines[end] != '\n') {
+				end++;
+			}
+			int len = Math.min(end + 1, lines.length) - start;
+			if (len > mtu) {
+				// line does not fit in any datagram
+				droppedBytes.addAndGet(len);
+			} else {
+				if (len > packet.remaining()) {
+					flushPacket();
+				}
+				packet.put(lines, start, len);
+			}
+			start += len;
+		}
+	}
+
+	private void flushPacket() {
+		if (0 == packet.position()) {
+			return;
+		}
+		packet.flip();
+		int len = packet.remaining();
+		try {
+			if (null == udpChannel) {
+				udpChannel = DatagramChannel.open();
+				udpChannel.configureBlocking(false);
+				udpChannel.connect(address);
+			}
+			if (udpChannel.write(packet) > 0) {
+				sentBytes.addAndGet(len);
+				sentPackets.incrementAndGet();
+			} else {
+				// socket buffer is full
+				droppedBytes.addAndGet(len);
+			}
+		} catch (IOException e) {
+			droppedBytes.addAndGet(len);
+			closeChannels();
+		}
+		packet.clear();
+	}
+
+	/**
+	 * Write pending data to the TCP connection, and connect if necessary.
+	 */
+	private void flushStream() {
+		if (0 == pending.position()) {
+			return;
+		}
+		try {
+			if (null == tcpChannel) {
+				long now = System.currentTimeMillis();
+				if (now < nextConnect) {
+					return;
+				}
+				tcpChannel = SocketChannel.open();
+				tcpChannel.configureBlocking(false);
+				tcpChannel.connect(address);
+			}
+			if (tcpChannel.isConnectionPending() && !tcpChannel.finishConnect()) {
+				return;
+			}
+			pending.flip();
+			int written = tcpChannel.write(pending);
+			pending.compact();
+			if (written > 0) {
+				sentBytes.addAndGet(written);
+				sentPackets.incrementAndGet();
+				backoff = MIN_BACKOFF;
+			}
+		} catch (IOException e) {
+			System.out.println(String.format("Failed to push metrics to %s: %s, retry in %d ms", address,
+					e.getMessage(), backoff));
+			closeChannels();
+			nextConnect = System.currentTimeMillis() + backoff;
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+	private void reportDrops() {
+		long drops = droppedBytes.get();
+		if (drops > reportedDrops) {
+			System.out.println(String.format("Push exporter dropped %d bytes in total", drops));
+			reportedDrops = drops;
+		}
+	}
+
+	private void closeChannels() {
+		try {
+			if (udpChannel != null) {
+				udpChannel.close();
+			}
+			if (tcpChannel != null) {
+				tcpChannel.close();
+			}
+		} catch (IOException e) {
+			// do nothing
+		}
+		udpChannel = null;
+		tcpChannel = null;
+	}
+
+	/**
+	 * Stop the sender thread after queued data are sent.
+	 *
+	 * @param timeoutMillis
+	 *            max milliseconds to wait for the sender thread
+	 */
+	public void shutdown(long timeoutMillis) {
+		stopDeadline = System.currentTimeMillis() + timeoutMillis;
+		running = false;
+		if (thread != null) {
+			// if the queue is full, the thread is busy and sees the flag after
+			// it sends queued data
+			queue.offer(STOP);
+			try {
+				thread.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static String escapePath(String name) {
+		return String.valueOf(name).replaceAll("[\\s.:|@]", "_");
+	}
+
+	private static String escapeInflux(String name) {
+		return name.replace(",", "\\,").replace("=", "\\=").replace(" ", "\\ ");
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * ReportArchiver.java - compress rolled report files, and prune old archives.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archival stage of report files. When a report file is rolled over by day
+ * or by size, it is compressed to a .gz file by a background thread, and
+ * archives are pruned by age and by total size. Files are compressed as
+ * streams, so memory use does not grow with file size.
+ *
+ */
+public class ReportArchiver {
+
+	// report files written by this utility, e.g., e1_host_9899_BEEntityCache_2015_07_24.1.csv
+	private static final Pattern REPORT_FILE = Pattern.compile(".*_\\d{4}_\\d{2}_\\d{2}(\\.\\d+)?\\.(csv|bin)");
+
+	private static final String SUFFIX = ".gz";
+
+	private String reportFolder;
+	private int maxDays;
+	private long maxTotalSize;
+	private ExecutorService executor;
+
+	/**
+	 * Construct archiver of report files.
+	 *
+	 * @param reportFolder
+	 *            folder of report files, null for current working directory
+	 * @param maxDays
+	 *            days to keep archives, 0 to keep archives forever
+	 * @param maxTotalSize
+	 *            max bytes of all archives, 0 for no limit
+	 */
+	public ReportArchiver(String reportFolder, int maxDays, long maxTotalSize) {
+		this.reportFolder = reportFolder;
+		this.maxDays = maxDays;
+		this.maxTotalSize = maxTotalSize;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bejmx-archiver");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Compress report files that were left by a previous run, i.e., files last
+	 * modified before the current day.
+	 */
+	public void archiveStale() {
+		Calendar cal = Calendar.getInstance();
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		long today = cal.getTimeInMillis();
+		for (File file : listFiles()) {
+			if (REPORT_FILE.matcher(file.getName()).matches() && file.lastModified() < today) {
+				archive(file);
+			}
+		}
+	}
+
+	/**
+	 * Queue a closed report file to be compressed and removed, then prune old
+	 * archives.
+	 *
+	 * @param file
+	 *            report file that will no longer be written
+	 */
+	public void archive(final File file) {
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					compress(file);
+				} catch (IOException e) {
+					System.out.println(String.format("Failed to archive %s: %s", file.getName(), e.getMessage()));
+				}
+				prune();
+			}
+		});
+	}
+
+	private void compress(File file) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		File tmp = new File(file.getParentFile(), file.getName() + SUFFIX + ".tmp");
+		byte[] buf = new byte[64 * 1024];
+		InputStream in = new FileInputStream(file);
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), buf.length);
+			try {
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		// never replace an existing archive, the file is kept for a later retry
+		File gz = new File(file.getParentFile(), file.getName() + SUFFIX);
+		try {
+			Files.move(tmp.toPath(), gz.toPath());
+		} catch (FileAlreadyExistsException e) {
+			tmp.delete();
+			throw new IOException(String.format("Archive %s already exists", gz.getName()));
+		} catch (IOException e) {
+			tmp.delete();
+			throw new IOException("Failed to rename " + tmp.getName());
+		}
+		gz.setLastModified(file.lastModified());
+		if (!file.delete()) {
+			throw new IOException("Failed to delete " + file.getName());
+		}
+		System.out.println(String.format("Archived %s to %s", file.getName(), gz.getName()));
+	}
+
+	/**
+	 * Delete archives older than max days, then delete the oldest archives
+	 * until total size is below the limit.
+	 */
+	private void prune() {
+		List<File> archives = new ArrayList<File>();
+		for (File file : listFiles()) {
+			if (file.getName().endsWith(".csv" + SUFFIX) || file.getName().endsWith(".bin" + SUFFIX)) {
+				archives.add(file);
+			}
+		}
+		File[] sorted = archives.toArray(new File[archives.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+			}
+		});
+
+		long expiry = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxDays);
+		long total = 0;
+		for (File file : sorted) {
+			total += file.length();
+		}
+		for (File file : sorted) {
+			boolean expired = maxDays > 0 && file.lastModified() < expiry;
+			boolean oversize = maxTotalSize > 0 && total > maxTotalSize;
+			if (!expired && !oversize) {
+				break;
+			}
+			long len = file.length();
+			if (file.delete()) {
+				System.out.println(String.format("Deleted archive %s", file.getName()));
+				total -= len;
+			}
+		}
+	}
+
+	private File[] listFiles() {
+		File folder = new File(reportFolder != null ? reportFolder : ".");
+		File[] files = folder.listFiles();
+		return files != null ? files : new File[0];
+	}
+
+	/**
+	 * Finish queued archival tasks.
+	 *
+	 * @param timeoutMillis
+	 *            max milliseconds to wait
+	 */
+	public void shutdown(long timeoutMillis) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*
+ * ReportFile.java - daily report file of one stat type of one BE engine.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Report file of a stat type. A new file is started every day, or when the
+ * file exceeds the configured size limit, and the header is written as the
+ * first line of a new file. Files that are rolled over are handed to the
+ * archiver if it is configured. Data are appended to a FileChannel directly
+ * from byte buffers. A report file is used by one thread at a time, i.e., the
+ * polling thread of the engine, or the writer thread of the asynchronous
+ * write pipeline. Binary reports are written by BinaryReportEncoder instead
+ * of the csv encoding of the caller.
+ *
+ */
+public class ReportFile {
+
+	private String reportFolder;
+	private String prefix;
+	private String statType;
+	private byte[] header;
+	private ReportPolicy policy;
+
+	// name of the file of the current day, re-generated at start of next day
+	private String filename = null;
+	private long nextDay = 0;
+
+	private FileChannel channel = null;
+	private Path openPath = null;
+	private Object openFileKey = null;
+	private long size = 0;
+	private long nextCheck = 0;
+	private long nextSync = 0;
+	private long syncs = 0;
+
+	// number of files started after the first one, read by polling threads
+	// while the writer thread opens files
+	private volatile int generation = 0;
+	private boolean opened = false;
+
+	// data appended but not yet written
+	private CsvEncoder pending = new CsvEncoder();
+
+	// encoder of binary reports, null for csv reports
+	private BinaryReportEncoder encoder = null;
+	private List<StatSample> pendingSamples = new ArrayList<StatSample>();
+	private int pendingRows = 0;
+
+	// channel that the encoder state belongs to, and the last encoded block
+	private FileChannel encodedChannel = null;
+	private CsvEncoder block = null;
+
+	// collector statistics to count bytes written, null if not counted
+	private PollStats stats = null;
+
+	/**
+	 * Construct report file of a stat type.
+	 *
+	 * @param reportFolder
+	 *            folder of report files, null for current working directory
+	 * @param prefix
+	 *            prefix of file names that identifies the BE engine
+	 * @param statType
+	 *            type of statistics in the report
+	 * @param header
+	 *            header line of the report
+	 * @param policy
+	 *            settings of durability, rollover, archival and staleness
+	 *            check
+	 */
+	public ReportFile(String reportFolder, String prefix, String statType, String header, ReportPolicy policy) {
+		this.reportFolder = reportFolder;
+		this.prefix = prefix;
+		this.statType = statType;
+		this.header = header.getBytes(Charset.defaultCharset());
+		this.policy = policy;
+	}
+
+	/**
+	 * Write the report in binary format. The file header of the encoder
+	 * replaces the header line of csv reports.
+	 *
+	 * @param encoder
+	 *            encoder of the stat type
+	 */
+	public void setEncoder(BinaryReportEncoder encoder) {
+		this.encoder = encoder;
+		this.header = encoder.getFileHeader();
+		this.block = new CsvEncoder();
+	}
+
+	/**
+	 * Count bytes written to the report in collector statistics.
+	 *
+	 * @param stats
+	 *            statistics of the stat type
+	 */
+	public void setStats(PollStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return type of statistics in the report
+	 */
+	public String getStatType() {
+		return statType;
+	}
+
+	/**
+	 * Return name of the report file for the current day. The name is
+	 * re-generated only when the day changes.
+	 *
+	 * @return name of the report file
+	 */
+	public String getFilename() {
+		long now = System.currentTimeMillis();
+		if (now >= nextDay) {
+			// start a new day
+			Calendar cal = Calendar.getInstance();
+			cal.setTimeInMillis(now);
+			filename = String.format("%s_%s_%3$tY_%3$tm_%3$td%4$s", prefix, statType, cal, policy.getExtension());
+			cal.set(Calendar.HOUR_OF_DAY, 0);
+			cal.set(Calendar.MINUTE, 0);
+			cal.set(Calendar.SECOND, 0);
+			cal.set(Calendar.MILLISECOND, 0);
+			cal.add(Calendar.DATE, 1);
+			nextDay = cal.getTimeInMillis();
+		}
+		return filename;
+	}
+
+	/**
+	 * Buffer data to be written by the next flush.
+	 *
+	 * @param data
+	 *            encoded report rows
+	 * @param off
+	 *            start offset in data
+	 * @param len
+	 *            number of bytes to append
+	 */
+	public void append(byte[] data, int off, int len) {
+		pending.append(data, off, len);
+	}
+
+	/**
+	 * Buffer a sample to be encoded and written by the next flush of a binary
+	 * report. Samples are encoded when they are written, so that encoding
+	 * state is reset when a new file is started.
+	 *
+	 * @param sample
+	 *            rows of one poll, owned by the report file after the call
+	 */
+	public void append(StatSample sample) {
+		pendingSamples.add(sample);
+		pendingRows += sample.getCount();
+	}
+
+	/**
+	 * @return number of bytes buffered by append, estimated for samples not
+	 *         yet encoded
+	 */
+	public int pendingSize() {
+		return pending.size() + 16 * pendingRows;
+	}
+
+	/**
+	 * Write data to the report file of the current day.
+	 *
+	 * @param data
+	 *            encoded report rows
+	 * @param off
+	 *            start offset in data
+	 * @param len
+	 *            number of bytes to write
+	 * @throws IOException
+	 *             when failed to create or write the file
+	 */
+	public void write(byte[] data, int off, int len) throws IOException {
+		writeFully(getChannel(len), ByteBuffer.wrap(data, off, len));
+	}
+
+	/**
+	 * Write buffered data, and force data to disk as configured by the sync
+	 * policy.
+	 *
+	 * @throws IOException
+	 *             when failed to create or write the file
+	 */
+	public void flush() throws IOException {
+		if (pending.size() > 0) {
+			try {
+				write(pending.array(), 0, pending.size());
+			} finally {
+				pending.reset();
+			}
+		}
+		if (pendingSamples.size() > 0) {
+			try {
+				for (StatSample sample : pendingSamples) {
+					writeSample(sample);
+				}
+			} finally {
+				pendingSamples.clear();
+				pendingRows = 0;
+			}
+		}
+		if (channel != null) {
+			if (ReportPolicy.SYNC_FLUSH.equals(policy.getSync())) {
+				channel.force(false);
+				syncs++;
+			} else if (ReportPolicy.SYNC_INTERVAL.equals(policy.getSync())) {
+				long now = System.currentTimeMillis();
+				if (now >= nextSync) {
+					channel.force(false);
+					syncs++;
+					nextSync = now + policy.getSyncMillis();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the generation of the file, which changes whenever a new file is
+	 * started, e.g., by day, by size, or re-created after it was deleted. May
+	 * be called by any thread.
+	 *
+	 * @return number of files started after the first one
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return number of times data were forced to disk
+	 */
+	long getSyncs() {
+		return syncs;
+	}
+
+	/**
+	 * Encode a sample as a block of the binary report, and write the block.
+	 * If the block starts a new file, it is encoded again from a reset state,
+	 * so that each file can be decoded on its own.
+	 *
+	 * @param sample
+	 *            rows of one poll
+	 * @throws IOException
+	 *             when failed to create or write the file
+	 */
+	private void writeSample(StatSample sample) throws IOException {
+		block.reset();
+		encoder.encode(sample, block);
+		FileChannel ch = getChannel(block.size());
+		if (ch != encodedChannel) {
+			encoder.reset();
+			block.reset();
+			encoder.encode(sample, block);
+			encodedChannel = ch;
+		}
+		writeFully(ch, ByteBuffer.wrap(block.array(), 0, block.size()));
+	}
+
+	private void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+		int len = buf.remaining();
+		while (buf.hasRemaining()) {
+			size += ch.write(buf);
+		}
+		if (stats != null) {
+			stats.addBytesWritten(len);
+		}
+	}
+
+	/**
+	 * Find or create a channel for the file of the current day, and roll over
+	 * the file if it would exceed the size limit.
+	 *
+	 * @param len
+	 *            number of bytes to be written
+	 * @return channel to append data
+	 * @throws IOException
+	 *             when failed to create stat file
+	 */
+	private FileChannel getChannel(int len) throws IOException {
+		if (channel != null && !openPath.getFileName().toString().equals(getFilename())) {
+			// start a new day, so close and archive the old file
+			Path path = openPath;
+			close();
+			if (policy.getArchiver() != null) {
+				policy.getArchiver().archive(path.toFile());
+			}
+		}
+		if (null == channel) {
+			createChannel();
+		}
+		if (policy.getMaxSize() > 0 && size > header.length && size + len > policy.getMaxSize()) {
+			// also checked for a file re-opened after restart
+			rollover();
+			createChannel();
+		}
+		return channel;
+	}
+
+	/**
+	 * Create a file and pre-configured report folder for writing stat logs
+	 *
+	 * @throws IOException
+	 */
+	private void createChannel() throws IOException {
+		Path path = (reportFolder != null) ? Paths.get(reportFolder, getFilename()) : Paths.get(getFilename());
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		openPath = path;
+		if (opened) {
+			generation++;
+		}
+		opened = true;
+		size = channel.size();
+		openFileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		nextCheck = System.currentTimeMillis() + policy.getCheckMillis();
+		if (0 == size) {
+			// write header as the first line of new file
+			writeFully(channel, ByteBuffer.wrap(header));
+		}
+	}
+
+	/**
+	 * Close the current file, and rename it with the next free sequence
+	 * number, e.g., engine_host_port_statType_YYYY_MM_DD.1.csv. A sequence
+	 * number is not free if its file is already archived, or being archived.
+	 *
+	 * @throws IOException
+	 *             when failed to rename the file
+	 */
+	private void rollover() throws IOException {
+		Path path = openPath;
+		close();
+		String name = path.getFileName().toString();
+		String ext = policy.getExtension();
+		String base = name.substring(0, name.length() - ext.length());
+		Path rolled;
+		int seq = 1;
+		do {
+			rolled = path.resolveSibling(String.format("%s.%d%s", base, seq++, ext));
+		} while (Files.exists(rolled) || Files.exists(rolled.resolveSibling(rolled.getFileName() + ".gz"))
+				|| Files.exists(rolled.resolveSibling(rolled.getFileName() + ".gz.tmp")));
+		Files.move(path, rolled);
+		System.out.println(String.format("Roll over %s to %s", name, rolled.getFileName()));
+		if (policy.getArchiver() != null) {
+			policy.getArchiver().archive(rolled.toFile());
+		}
+	}
+
+	/**
+	 * Check if the file is still the one being written. Linux allows the
+	 * system to continue to write even if file is deleted or replaced. So,
+	 * this check will throw exception, which will lead to closing and
+	 * re-creating the file. The check is done at most once per configured
+	 * check interval.
+	 *
+	 * @throws IOException
+	 *             when the report file no longer exist or is replaced.
+	 */
+	public void check() throws IOException {
+		long now = System.currentTimeMillis();
+		if (null == channel || now < nextCheck) {
+			return;
+		}
+		nextCheck = now + policy.getCheckMillis();
+		try {
+			Object fileKey = Files.readAttributes(openPath, BasicFileAttributes.class).fileKey();
+			if (openFileKey != null && !openFileKey.equals(fileKey)) {
+				throw new IOException(String.format("File %s is replaced", openPath.toAbsolutePath()));
+			}
+		} catch (NoSuchFileException e) {
+			throw new IOException(String.format("File %s no longer exist", openPath.toAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Close the current file. A new file is created by the next write.
+	 */
+	public void close() {
+		if (channel != null) {
+			try {
+				System.out.println(String.format("Close writer for %s", openPath.getFileName()));
+				channel.close();
+			} catch (IOException io) {
+				// do nothing
+			}
+		}
+		channel = null;
+		openPath = null;
+		openFileKey = null;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * ReportPolicy.java - format, durability, rollover, archival and staleness check settings of report files.
+ */
+
+package com.tibco.metrics.bejmx;
+
+/**
+ * Settings shared by all report files.
+ *
+ */
+public class ReportPolicy {
+
+	// let the OS decide when to write data to disk
+	public static final String SYNC_NONE = "none";
+
+	// force data to disk on every flush
+	public static final String SYNC_FLUSH = "flush";
+
+	// force data to disk at most once per sync interval
+	public static final String SYNC_INTERVAL = "interval";
+
+	// text report, one line per entity
+	public static final String FORMAT_CSV = "csv";
+
+	// compact time-series report, see BinaryReportEncoder
+	public static final String FORMAT_BINARY = "binary";
+
+	private long maxSize;
+	private String sync;
+	private long syncMillis;
+	private long checkMillis;
+
+	// archiver of rolled over files, null to keep rolled files uncompressed
+	private ReportArchiver archiver = null;
+
+	// format of report files, i.e., csv or binary
+	private String format = FORMAT_CSV;
+
+	/**
+	 * Construct report file settings.
+	 *
+	 * @param maxSize
+	 *            max bytes of a report file before it is rolled over, 0 for no
+	 *            limit
+	 * @param sync
+	 *            policy to force data to disk, i.e., none, flush, or interval
+	 * @param syncMillis
+	 *            milliseconds between forced writes for the interval policy
+	 * @param checkMillis
+	 *            milliseconds between checks for deleted or replaced files
+	 */
+	public ReportPolicy(long maxSize, String sync, long syncMillis, long checkMillis) {
+		this.maxSize = maxSize;
+		this.sync = sync;
+		this.syncMillis = syncMillis;
+		this.checkMillis = checkMillis;
+	}
+
+	/**
+	 * @return default settings, no size limit, no forced writes, and check
+	 *         files every minute
+	 */
+	public static ReportPolicy getDefault() {
+		return new ReportPolicy(0, SYNC_NONE, 0, 60000);
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public String getSync() {
+		return sync;
+	}
+
+	public long getSyncMillis() {
+		return syncMillis;
+	}
+
+	public long getCheckMillis() {
+		return checkMillis;
+	}
+
+	public ReportArchiver getArchiver() {
+		return archiver;
+	}
+
+	public void setArchiver(ReportArchiver archiver) {
+		this.archiver = archiver;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public void setFormat(String format) {
+		this.format = format;
+	}
+
+	/**
+	 * @return file extension of report files, i.e., .csv or .bin
+	 */
+	public String getExtension() {
+		return FORMAT_BINARY.equals(format) ? ".bin" : ".csv";
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * ReportWriter.java - asynchronous write pipeline between stat collection and report files.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of encoded report rows, drained by a dedicated writer thread.
+ * Rows from all engines and stat types are buffered per report file, and
+ * written in batches when the flush interval expires or when the buffered
+ * bytes exceed a threshold. Polling threads never touch the file system.
+ *
+ */
+public class ReportWriter implements Runnable {
+
+	// wait for space when the queue is full
+	public static final String BLOCK = "block";
+
+	// discard the oldest queued rows when the queue is full
+	public static final String DROP_OLDEST = "dropOldest";
+
+	// discard the new rows when the queue is full
+	public static final String DROP = "drop";
+
+	private BlockingQueue<ReportBatch> queue;
+	private String overflow;
+	private long flushMillis;
+	private int flushBytes;
+
+	// report files with buffered data, in the order of first append
+	private Set<ReportFile> dirtyFiles = new LinkedHashSet<ReportFile>();
+
+	// all report files written by this writer
+	private Set<ReportFile> files = new LinkedHashSet<ReportFile>();
+	private int pendingBytes = 0;
+
+	private AtomicLong droppedBatches = new AtomicLong(0);
+	private AtomicLong droppedBytes = new AtomicLong(0);
+	private long reportedDrops = 0;
+
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// closes displaced from the queue by the dropOldest policy, done by the
+	// writer thread after it writes the next batches
+	private Queue<ReportFile> closing = new ConcurrentLinkedQueue<ReportFile>();
+
+	// rows of one stat type from one poll, encoded as csv, or as a sample of
+	// a binary report, or a request to close the file if both are null
+	private static class ReportBatch {
+		ReportFile file;
+		byte[] data;
+		StatSample sample;
+
+		ReportBatch(ReportFile file, byte[] data, StatSample sample) {
+			this.file = file;
+			this.data = data;
+			this.sample = sample;
+		}
+
+		boolean isClose() {
+			return null == data && null == sample;
+		}
+
+		int size() {
+			if (isClose()) {
+				return 0;
+			}
+			return data != null ? data.length : 16 * sample.getCount();
+		}
+	}
+
+	// queued by shutdown to wake up the writer thread. The thread is not
+	// interrupted, because an interrupt closes the FileChannel being written
+	private static final ReportBatch STOP = new ReportBatch(null, new byte[0], null);
+
+	/**
+	 * Construct write pipeline.
+	 *
+	 * @param queueSize
+	 *            max number of batches in the queue
+	 * @param overflow
+	 *            policy when the queue is full, i.e., block, dropOldest, or
+	 *            drop
+	 * @param flushMillis
+	 *            max milliseconds to buffer data before writing to files
+	 * @param flushBytes
+	 *            max bytes to buffer before writing to files
+	 */
+	public ReportWriter(int queueSize, String overflow, long flushMillis, int flushBytes) {
+		this.queue = new ArrayBlockingQueue<ReportBatch>(queueSize);
+		this.overflow = overflow;
+		this.flushMillis = flushMillis;
+		this.flushBytes = flushBytes;
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void start() {
+		thread = new Thread(this, "bejmx-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue encoded rows to be written to a report file. Apply the overflow
+	 * policy if the queue is full.
+	 *
+	 * @param file
+	 *            report file to write to
+	 * @param data
+	 *            encoded report rows, owned by the writer after the call
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for space in the queue
+	 */
+	public void submit(ReportFile file, byte[] data) throws InterruptedException {
+		submit(new ReportBatch(file, data, null));
+	}
+
+	/**
+	 * Queue a sample to be written to a binary report file. Apply the overflow
+	 * policy if the queue is full.
+	 *
+	 * @param file
+	 *            report file to write to
+	 * @param sample
+	 *            rows of one poll, owned by the writer after the call
+	 * @throws InterruptedException
+	 *             when interrupted while waiting for space in the queue
+	 */
+	public void submit(ReportFile file, StatSample sample) throws InterruptedException {
+		submit(new ReportBatch(file, null, sample));
+	}
+
+	private void submit(ReportBatch batch) throws InterruptedException {
+		if (BLOCK.equals(overflow)) {
+			queue.put(batch);
+		} else if (DROP_OLDEST.equals(overflow)) {
+			while (!queue.offer(batch)) {
+				ReportBatch oldest = queue.poll();
+				if (oldest != null && oldest.isClose()) {
+					// a file is never left open, it is closed a bit later
+					closing.add(oldest.file);
+				} else if (oldest != null) {
+					countDrop(oldest);
+				}
+			}
+		} else if (!queue.offer(batch)) {
+			countDrop(batch);
+		}
+	}
+
+	/**
+	 * Queue a request to close a report file after the rows queued before it
+	 * are written. The request is not dropped by the overflow policy. A file
+	 * written again after it is closed is re-created by the writer thread.
+	 * After shutdown, the request is ignored, because all files are closed by
+	 * the writer thread when it stops.
+	 *
+	 * @param file
+	 *            report file to close
+	 */
+	public void close(ReportFile file) {
+		if (!running) {
+			return;
+		}
+		try {
+			queue.put(new ReportBatch(file, null, null));
+		} catch (InterruptedException e) {
+			// the file is closed when the writer stops
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void countDrop(ReportBatch batch) {
+		droppedBatches.incrementAndGet();
+		droppedBytes.addAndGet(batch.size());
+	}
+
+	/**
+	 * @return number of batches discarded by the overflow policy
+	 */
+	public long getDroppedBatches() {
+		return droppedBatches.get();
+	}
+
+	/**
+	 * @return number of bytes discarded by the overflow policy, estimated for
+	 *         samples of binary reports
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+	/**
+	 * Drain the queue, and write buffered data when the flush policy is
+	 * triggered.
+	 */
+	public void run() {
+		List<ReportBatch> batches = new ArrayList<ReportBatch>();
+		long nextFlush = System.currentTimeMillis() + flushMillis;
+		while (running || !queue.isEmpty()) {
+			try {
+				long wait = nextFlush - System.currentTimeMillis();
+				ReportBatch batch = queue.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+				if (batch != null) {
+					batches.add(batch);
+					queue.drainTo(batches);
+					for (ReportBatch b : batches) {
+						if (b == STOP) {
+							continue;
+						}
+						if (b.isClose()) {
+							closeFile(b.file);
+							continue;
+						}
+						if (b.sample != null) {
+							b.file.append(b.sample);
+						} else {
+							b.file.append(b.data, 0, b.data.length);
+						}
+						pendingBytes += b.size();
+						dirtyFiles.add(b.file);
+						files.add(b.file);
+					}
+					batches.clear();
+				}
+			} catch (InterruptedException e) {
+				// stop after writing queued data
+				running = false;
+			}
+			if (pendingBytes >= flushBytes || System.currentTimeMillis() >= nextFlush || !running) {
+				flushAll();
+				nextFlush = System.currentTimeMillis() + flushMillis;
+			}
+			ReportFile file;
+			while ((file = closing.poll()) != null) {
+				closeFile(file);
+			}
+		}
+		flushAll();
+		for (ReportFile file : closing) {
+			file.close();
+		}
+		for (ReportFile file : files) {
+			file.close();
+		}
+	}
+
+	/**
+	 * Write buffered data of a report file, and close it.
+	 *
+	 * @param file
+	 *            report file to close
+	 */
+	private void closeFile(ReportFile file) {
+		if (dirtyFiles.remove(file)) {
+			try {
+				file.flush();
+			} catch (IOException e) {
+				System.out.println(String.format("Failed to write %s: %s", file.getFilename(), e.getMessage()));
+			}
+		}
+		file.close();
+		files.remove(file);
+	}
+
+	/**
+	 * Write buffered data of all report files.
+	 */
+	private void flushAll() {
+		for (ReportFile file : dirtyFiles) {
+			try {
+				file.flush();
+				file.check();
+			} catch (IOException e) {
+				// close the file, so it is re-created by the next write
+				System.out.println(String.format("Failed to write %s: %s", file.getFilename(), e.getMessage()));
+				file.close();
+			}
+		}
+		dirtyFiles.clear();
+		pendingBytes = 0;
+
+		long drops = droppedBatches.get();
+		if (drops > reportedDrops) {
+			System.out.println(String.format("Write queue is full, dropped %d batches of %d bytes in total", drops,
+					droppedBytes.get()));
+			reportedDrops = drops;
+		}
+	}
+
+	/**
+	 * Stop the writer thread after all queued data are written, and close all
+	 * report files.
+	 *
+	 * @param timeoutMillis
+	 *            max milliseconds to wait for the writer thread
+	 */
+	public void shutdown(long timeoutMillis) {
+		running = false;
+		if (thread != null) {
+			// if the queue is full, the thread is busy and sees the flag after
+			// it writes queued data
+			queue.offer(STOP);
+			try {
+				thread.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Rollup.java - incremental aggregation of report rows at a coarser resolution.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Aggregate report rows of a stat type into buckets of a fixed resolution,
+ * e.g., 1 minute. For each numeric column of each entity, the min, max,
+ * mean, last value and sum of all samples in a bucket are kept in primitive
+ * arrays, so memory does not grow with the number of samples. When a poll
+ * falls into a new bucket, the completed bucket is returned as a sample with
+ * one rollup row per entity, and the time of the bucket start. Buckets are
+ * aligned to the local time zone, e.g., buckets of 1 day start at local
+ * midnight, to match the local times printed in rollup reports. Entities that
+ * have no sample in a completed bucket are dropped, and their slots are
+ * reused by new entities.
+ *
+ * The rollup columns are DateTime, Samples, and for each column of the
+ * report except DateTime, the columns Min, Max, Mean, Last and Sum. Used by
+ * the polling thread of one engine only.
+ *
+ */
+public class Rollup {
+
+	private static final String[] AGGREGATES = { "Min", "Max", "Mean", "Last", "Sum" };
+
+	private long resolution;
+	private String name;
+	private TimeZone zone;
+
+	// report columns that are aggregated, and names of rollup columns
+	private int[] sourceCols;
+	private String[] columns;
+
+	// start and end of the current bucket, -1 if no sample yet
+	private long bucket = -1;
+	private long bucketEnd = -1;
+
+	// entity -> id, and the entities of the current bucket in the order of
+	// first sample
+	private Map<String, Integer> entities = new HashMap<String, Integer>();
+	private String[] labels = new String[16];
+	private int[] active = new int[16];
+	private int activeCount = 0;
+
+	// ids of dropped entities to be reused, and the next id never used
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	private int nextId = 0;
+
+	// per entity: poll time of last sample, and number of samples in bucket
+	private long[] lastTimes = new long[16];
+	private int[] samples = new int[16];
+
+	// per entity and source column, in slots [id * n, (id + 1) * n)
+	private double[] min;
+	private double[] max;
+	private double[] sum;
+	private int[] counts;
+	private boolean[] integral;
+	private Object[] last;
+
+	/**
+	 * Construct rollup of a stat type.
+	 *
+	 * @param reportColumns
+	 *            names of the columns of report rows
+	 * @param firstCol
+	 *            index of the first report column written after the entity
+	 *            name
+	 * @param dateCol
+	 *            index of the DateTime column
+	 * @param resolutionSeconds
+	 *            length of a bucket in seconds
+	 */
+	public Rollup(String[] reportColumns, int firstCol, int dateCol, int resolutionSeconds) {
+		this(reportColumns, firstCol, dateCol, resolutionSeconds, TimeZone.getDefault());
+	}
+
+	/**
+	 * Construct rollup of a stat type.
+	 *
+	 * @param reportColumns
+	 *            names of the columns of report rows
+	 * @param firstCol
+	 *            index of the first report column written after the entity
+	 *            name
+	 * @param dateCol
+	 *            index of the DateTime column
+	 * @param resolutionSeconds
+	 *            length of a bucket in seconds
+	 * @param zone
+	 *            time zone that buckets are aligned to
+	 */
+	public Rollup(String[] reportColumns, int firstCol, int dateCol, int resolutionSeconds, TimeZone zone) {
+		this.resolution = resolutionSeconds * 1000L;
+		this.name = getName(resolutionSeconds);
+		this.zone = zone;
+
+		int n = 0;
+		sourceCols = new int[reportColumns.length];
+		for (int col = firstCol; col < reportColumns.length; col++) {
+			if (col != dateCol) {
+				sourceCols[n++] = col;
+			}
+		}
+		sourceCols = Arrays.copyOf(sourceCols, n);
+		columns = new String[2 + AGGREGATES.length * n];
+		columns[0] = "DateTime";
+		columns[1] = "Samples";
+		for (int k = 0; k < n; k++) {
+			for (int a = 0; a < AGGREGATES.length; a++) {
+				columns[2 + k * AGGREGATES.length + a] = reportColumns[sourceCols[k]] + AGGREGATES[a];
+			}
+		}
+
+		int slots = labels.length * n;
+		min = new double[slots];
+		max = new double[slots];
+		sum = new double[slots];
+		counts = new int[slots];
+		integral = new boolean[slots];
+		last = new Object[slots];
+	}
+
+	/**
+	 * Return name of a resolution used as suffix of rollup reports, e.g., 1m,
+	 * 5m, 1h.
+	 *
+	 * @param seconds
+	 *            length of a bucket in seconds
+	 * @return name of the resolution
+	 */
+	static String getName(int seconds) {
+		if (seconds % 86400 == 0) {
+			return (seconds / 86400) + "d";
+		} else if (seconds % 3600 == 0) {
+			return (seconds / 3600) + "h";
+		} else if (seconds % 60 == 0) {
+			return (seconds / 60) + "m";
+		}
+		return seconds + "s";
+	}
+
+	/**
+	 * @return name of the resolution, e.g., 1m
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return names of the rollup columns, starting with DateTime
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Start a poll. If the poll falls into a new bucket, return the completed
+	 * bucket, and start the new bucket.
+	 *
+	 * @param time
+	 *            poll time in milliseconds
+	 * @return rollup rows of the completed bucket, or null if the bucket is
+	 *         not complete
+	 */
+	public StatSample roll(long time) {
+		if (time >= bucket && time < bucketEnd) {
+			return null;
+		}
+		long offset = zone.getOffset(time);
+		long start = time - (time + offset) % resolution;
+		StatSample sample = null;
+		if (bucket >= 0 && activeCount > 0) {
+			sample = new StatSample(bucket, activeCount);
+			for (int i = 0; i < activeCount; i++) {
+				sample.add(labels[active[i]], getRow(active[i]));
+			}
+		}
+
+		// drop entities without a sample in the completed bucket
+		for (Iterator<Integer> it = entities.values().iterator(); it.hasNext();) {
+			int id = it.next();
+			if (0 == samples[id]) {
+				it.remove();
+				labels[id] = null;
+				free[freeCount++] = id;
+			}
+		}
+
+		// reset the aggregates of all entities of the completed bucket
+		for (int i = 0; i < activeCount; i++) {
+			int id = active[i];
+			samples[id] = 0;
+			int slot = id * sourceCols.length;
+			Arrays.fill(counts, slot, slot + sourceCols.length, 0);
+			Arrays.fill(last, slot, slot + sourceCols.length, null);
+		}
+		activeCount = 0;
+		bucket = start;
+
+		// a bucket that spans a daylight saving change ends at the local
+		// boundary, e.g., a day of 23 or 25 hours
+		bucketEnd = start + resolution + offset - zone.getOffset(start + resolution);
+		return sample;
+	}
+
+	/**
+	 * Add a report row to the current bucket. A row of the same poll time is
+	 * added only once, so rows of a poll that is retried are not counted
+	 * twice.
+	 *
+	 * @param label
+	 *            name of the entity as written in reports
+	 * @param time
+	 *            poll time in milliseconds
+	 * @param row
+	 *            values in the order of the report columns
+	 */
+	public void add(String label, long time, Object[] row) {
+		int id = getId(label);
+		if (samples[id] > 0 && lastTimes[id] == time) {
+			return;
+		}
+		if (0 == samples[id]) {
+			active[activeCount++] = id;
+		}
+		lastTimes[id] = time;
+		samples[id]++;
+
+		int slot = id * sourceCols.length;
+		for (int k = 0; k < sourceCols.length; k++, slot++) {
+			Object value = row[sourceCols[k]];
+			if (!(value instanceof Number)) {
+				continue;
+			}
+			double v = ((Number) value).doubleValue();
+			boolean isIntegral = !(value instanceof Double || value instanceof Float);
+			if (0 == counts[slot]) {
+				min[slot] = v;
+				max[slot] = v;
+				sum[slot] = v;
+				integral[slot] = isIntegral;
+			} else {
+				min[slot] = Math.min(min[slot], v);
+				max[slot] = Math.max(max[slot], v);
+				sum[slot] += v;
+				integral[slot] &= isIntegral;
+			}
+			counts[slot]++;
+			last[slot] = value;
+		}
+	}
+
+	private int getId(String label) {
+		Integer id = entities.get(label);
+		if (null == id) {
+			id = (freeCount > 0) ? free[--freeCount] : nextId++;
+			entities.put(label, id);
+			if (id >= labels.length) {
+				int size = 2 * labels.length;
+				labels = Arrays.copyOf(labels, size);
+				active = Arrays.copyOf(active, size);
+				free = Arrays.copyOf(free, size);
+				lastTimes = Arrays.copyOf(lastTimes, size);
+				samples = Arrays.copyOf(samples, size);
+				int slots = size * sourceCols.length;
+				min = Arrays.copyOf(min, slots);
+				max = Arrays.copyOf(max, slots);
+				sum = Arrays.copyOf(sum, slots);
+				counts = Arrays.copyOf(counts, slots);
+				integral = Arrays.copyOf(integral, slots);
+				last = Arrays.copyOf(last, slots);
+			}
+			labels[id] = label;
+		}
+		return id;
+	}
+
+	/**
+	 * @return number of entities that are kept
+	 */
+	int size() {
+		return entities.size();
+	}
+
+	private Object[] getRow(int id) {
+		Object[] row = new Object[columns.length];
+		row[1] = Long.valueOf(samples[id]);
+		int slot = id * sourceCols.length;
+		for (int k = 0; k < sourceCols.length; k++, slot++) {
+			if (0 == counts[slot]) {
+				continue;
+			}
+			int col = 2 + k * AGGREGATES.length;
+			row[col] = number(min[slot], integral[slot]);
+			row[col + 1] = number(max[slot], integral[slot]);
+			row[col + 2] = Double.valueOf(sum[slot] / counts[slot]);
+			row[col + 3] = last[slot];
+			row[col + 4] = number(sum[slot], integral[slot]);
+		}
+		return row;
+	}
+
+	private static Object number(double value, boolean integral) {
+		return integral ? (Object) Long.valueOf((long) value) : (Object) Double.valueOf(value);
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * RowFilter.java - write only report rows that match predicates, and optionally only rows that changed.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Select the report rows of a stat type that are written. A row is written
+ * only if it matches all predicates of the stat type, e.g., CacheSize &gt; 0.
+ * In change-suppression mode, a row is also skipped if its values are the
+ * same as the last row written for the entity, unless the entity has not
+ * been written for heartbeat polls.
+ *
+ * A written row is remembered by a 64-bit fingerprint of its values,
+ * excluding the DateTime column and derived columns, so the state is a few
+ * words per entity. Entities that are not seen by a poll are forgotten.
+ * Used by the polling thread of one engine only.
+ *
+ */
+public class RowFilter {
+
+	private static final Pattern PREDICATE = Pattern.compile("\\s*(\\w+)\\s*(>=|<=|==|!=|>|<)\\s*(\\S+)\\s*");
+
+	private Predicate[] predicates;
+	private boolean suppressUnchanged;
+	private int heartbeat;
+	private int cols;
+	private int dateCol;
+
+	// entity name -> state of the last written row
+	private Map<String, Entry> entries = new HashMap<String, Entry>();
+	private int poll = 0;
+	private int generation = 0;
+
+	/**
+	 * Construct filter of a stat type.
+	 *
+	 * @param columns
+	 *            columns of report rows, including derived columns
+	 * @param cols
+	 *            number of report columns without derived columns, which
+	 *            are included in fingerprints
+	 * @param dateCol
+	 *            index of the DateTime column
+	 * @param predicates
+	 *            expressions of the form &lt;column&gt; &lt;op&gt;
+	 *            &lt;value&gt;, where op is one of &gt;, &gt;=, &lt;, &lt;=,
+	 *            ==, !=
+	 * @param suppressUnchanged
+	 *            true to skip rows whose values are unchanged
+	 * @param heartbeat
+	 *            write an unchanged row after this number of polls, 0 to
+	 *            never write unchanged rows
+	 * @throws IllegalArgumentException
+	 *             when a predicate is invalid
+	 */
+	public RowFilter(String[] columns, int cols, int dateCol, List<String> predicates, boolean suppressUnchanged,
+			int heartbeat) {
+		this.cols = cols;
+		this.dateCol = dateCol;
+		this.suppressUnchanged = suppressUnchanged;
+		this.heartbeat = heartbeat;
+		this.predicates = new Predicate[predicates.size()];
+		for (int i = 0; i < this.predicates.length; i++) {
+			this.predicates[i] = new Predicate(predicates.get(i), columns);
+		}
+	}
+
+	/**
+	 * Start the rows of a poll. All entities are written again by the first
+	 * poll after a new report file is started, by day, by size, or because
+	 * the old file was deleted or replaced.
+	 *
+	 * @param fileGeneration
+	 *            generation of the report file, see ReportFile.getGeneration
+	 */
+	public void begin(int fileGeneration) {
+		if (fileGeneration != generation) {
+			entries.clear();
+			generation = fileGeneration;
+		}
+		poll++;
+	}
+
+	/**
+	 * Check whether a row is written to the report, and remember it if it
+	 * is.
+	 *
+	 * @param label
+	 *            entity name of the row
+	 * @param row
+	 *            values in the order of the columns
+	 * @return true if the row is written
+	 */
+	public boolean accept(String label, Object[] row) {
+		for (Predicate p : predicates) {
+			if (!p.matches(row)) {
+				return false;
+			}
+		}
+		if (!suppressUnchanged) {
+			return true;
+		}
+		long hash = fingerprint(row, cols, dateCol);
+		Entry entry = entries.get(label);
+		if (null == entry) {
+			entry = new Entry();
+			entries.put(label, entry);
+		} else if (entry.hash == hash && (0 == heartbeat || entry.skipped + 1 < heartbeat)) {
+			entry.poll = poll;
+			entry.skipped++;
+			return false;
+		}
+		entry.hash = hash;
+		entry.poll = poll;
+		entry.skipped = 0;
+		return true;
+	}
+
+	/**
+	 * Complete a poll, and forget entities that are not seen by the poll.
+	 */
+	public void end() {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			if (it.next().poll != poll) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget all rows, e.g., when the report file is closed, so the next poll
+	 * writes every entity.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Return 64-bit fingerprint of the values of a row. Numbers are mixed by
+	 * their bits, so small changes are not lost to 32-bit hash codes.
+	 *
+	 * @param row
+	 *            values in the order of the columns
+	 * @param cols
+	 *            number of columns to include
+	 * @param dateCol
+	 *            index of the DateTime column, which is excluded
+	 * @return the fingerprint
+	 */
+	static long fingerprint(Object[] row, int cols, int dateCol) {
+		long h = 1;
+		for (int col = 0; col < cols; col++) {
+			if (col == dateCol) {
+				continue;
+			}
+			Object value = row[col];
+			long bits;
+			if (null == value) {
+				bits = 0;
+			} else if (value instanceof Double || value instanceof Float) {
+				bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			} else if (value instanceof Number) {
+				bits = ((Number) value).longValue();
+			} else {
+				bits = value.hashCode();
+			}
+			h = (h ^ bits) * 0x9E3779B97F4A7C15L;
+			h ^= h >>> 29;
+		}
+		return h;
+	}
+
+	/**
+	 * Check syntax and columns of a predicate.
+	 *
+	 * @param expr
+	 *            expression of the form &lt;column&gt; &lt;op&gt; &lt;value&gt;
+	 * @param columns
+	 *            report columns of the stat type
+	 * @throws IllegalArgumentException
+	 *             when the predicate is invalid
+	 */
+	public static void validate(String expr, String[] columns) {
+		new Predicate(expr, columns);
+	}
+
+	private static class Entry {
+		private long hash;
+		private int poll;
+		private int skipped;
+	}
+
+	/**
+	 * Comparison of a column with a constant. Numbers are compared by value,
+	 * other values by their string with == and != only. A null value never
+	 * matches.
+	 */
+	private static class Predicate {
+		private int col;
+		private String op;
+		private String text;
+		private double number;
+		private boolean numeric;
+
+		Predicate(String expr, String[] columns) {
+			Matcher m = PREDICATE.matcher(expr);
+			if (!m.matches()) {
+				throw new IllegalArgumentException("Invalid filter " + expr);
+			}
+			col = Arrays.asList(columns).indexOf(m.group(1));
+			if (col < 0) {
+				throw new IllegalArgumentException(String.format("Unknown column %s in filter %s", m.group(1), expr));
+			}
+			op = m.group(2);
+			text = m.group(3);
+			try {
+				number = Double.parseDouble(text);
+				numeric = true;
+			} catch (NumberFormatException e) {
+				if (!"==".equals(op) && !"!=".equals(op)) {
+					throw new IllegalArgumentException("Filter compares a number with text " + expr);
+				}
+			}
+		}
+
+		boolean matches(Object[] row) {
+			Object value = row[col];
+			if (null == value) {
+				return false;
+			}
+			if (numeric && value instanceof Number) {
+				int c = Double.compare(((Number) value).doubleValue(), number);
+				if (">".equals(op)) {
+					return c > 0;
+				} else if (">=".equals(op)) {
+					return c >= 0;
+				} else if ("<".equals(op)) {
+					return c < 0;
+				} else if ("<=".equals(op)) {
+					return c <= 0;
+				} else if ("==".equals(op)) {
+					return 0 == c;
+				}
+				return c != 0;
+			}
+			if ("==".equals(op)) {
+				return text.equals(value.toString());
+			} else if ("!=".equals(op)) {
+				return !text.equals(value.toString());
+			}
+			return false;
+		}
+	}
+}
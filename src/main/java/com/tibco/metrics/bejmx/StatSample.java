@@ -0,0 +1,76 @@
+/*
+ * StatSample.java - rows of one stat type collected by one poll of a BE engine.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+
+/**
+ * Rows of one stat type collected by one poll. Each row is labelled by the
+ * entity name written in the first column of the report, and holds attribute
+ * values in the order of the report columns.
+ *
+ */
+public class StatSample {
+
+	// sample time in milliseconds
+	long time;
+
+	// number of rows
+	int count;
+
+	// entity name of each row
+	String[] labels;
+
+	// attribute values of each row
+	Object[][] rows;
+
+	/**
+	 * Construct an empty sample.
+	 *
+	 * @param time
+	 *            sample time in milliseconds
+	 * @param capacity
+	 *            expected number of rows, the sample grows when more rows
+	 *            are added
+	 */
+	public StatSample(long time, int capacity) {
+		this.time = time;
+		this.labels = new String[Math.max(capacity, 1)];
+		this.rows = new Object[labels.length][];
+	}
+
+	/**
+	 * Add a row to the sample.
+	 *
+	 * @param label
+	 *            entity name of the row
+	 * @param row
+	 *            attribute values in the order of the report columns
+	 */
+	public void add(String label, Object[] row) {
+		if (count == labels.length) {
+			labels = Arrays.copyOf(labels, 2 * count);
+			rows = Arrays.copyOf(rows, 2 * count);
+		}
+		labels[count] = label;
+		rows[count++] = row;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public String getLabel(int idx) {
+		return labels[idx];
+	}
+
+	public Object[] getRow(int idx) {
+		return rows[idx];
+	}
+}
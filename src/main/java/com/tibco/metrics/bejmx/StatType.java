@@ -0,0 +1,284 @@
+/*
+ * StatType.java - definition of a type of statistics, i.e., the MBeans to poll and the columns of the report.
+ */
+
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
+
+/**
+ * Definition of a stat type, compiled once into the column indexes used for
+ * every report row. The built-in types BEEntityCache, BEAgentEntity,
+ * RTCTxnManagerReport and BEChannelDestination are always defined, and more
+ * types can be defined in the configuration file with properties of the form
+ * statType.&lt;name&gt;.&lt;field&gt;, e.g.,
+ *
+ * <pre>
+ * statType.BEChannel.pattern com.tibco.be:type=Channel,name=*
+ * statType.BEChannel.entity name
+ * statType.BEChannel.columns DateTime,NumEventsReceived,ReceivedEventsRate
+ * statType.BEChannel.counters NumEventsReceived
+ * statType.BEChannel.strip be.gen.
+ * statType.BEChannel.reset resetStats
+ * </pre>
+ *
+ * The name of an entity is the value of the key property of its object name
+ * given by entity, or the value of the first report column given by
+ * entityColumn, e.g., ClassName of BEEntityCache. Without either, the type
+ * reports a single row named by the type. The prefix given by strip is
+ * removed from entity names, and the operation given by reset is invoked
+ * on each MBean after it is polled.
+ *
+ */
+public class StatType {
+
+	// stat type name -> definition
+	private static Map<String, StatType> types = new ConcurrentHashMap<String, StatType>();
+
+	static {
+		define(new StatType("BEEntityCache", "com.tibco.be:service=Cache,name=*", null, "ClassName",
+				Client.BEEntityCachereportCols, Client.BEEntityCacheCounters, "be.gen.", null));
+		define(new StatType("BEAgentEntity", "com.tibco.be:type=Agent,agentId=*,subType=Entity,entityId=*",
+				"entityId", null, Client.BEAgentEntityReport, Client.BEAgentEntityCounters, "be.gen.", null));
+		define(new StatType("RTCTxnManagerReport", "com.tibco.be:service=RTCTxnManagerReport", null, null,
+				Client.BERTCTxnManagerReport, Client.BERTCTxnManagerCounters, null, "resetStats"));
+		define(new StatType(ChannelDestinations.STAT_TYPE, ChannelDestinations.OBJECT_NAME, null, "DestinationURI",
+				Client.BEChannelDestinationReport, Client.BEChannelDestinationCounters, null, null));
+	}
+
+	private String name;
+	private String pattern;
+	private String entityKey;
+	private String[] columns;
+	private String[] counters;
+	private String stripPrefix;
+	private String resetOperation;
+
+	// compiled column indexes, -1 if the entity name is not a column
+	private int entityCol;
+	private int firstCol;
+	private int dateCol;
+
+	/**
+	 * Construct and compile a stat type.
+	 *
+	 * @param name
+	 *            name of the stat type, used in report file names
+	 * @param pattern
+	 *            object name pattern of the MBeans
+	 * @param entityKey
+	 *            key property of object names used as entity name, or null
+	 * @param entityColumn
+	 *            report column used as entity name, which must be the first
+	 *            column, or null
+	 * @param columns
+	 *            report columns, including DateTime
+	 * @param counters
+	 *            cumulative counter columns, or null
+	 * @param stripPrefix
+	 *            prefix removed from entity names, or null
+	 * @param resetOperation
+	 *            MBean operation invoked after each poll, or null
+	 * @throws IllegalArgumentException
+	 *             when a column is missing, or the pattern is invalid
+	 */
+	public StatType(String name, String pattern, String entityKey, String entityColumn, String[] columns,
+			String[] counters, String stripPrefix, String resetOperation) {
+		this.name = name;
+		this.pattern = pattern;
+		this.entityKey = entityKey;
+		this.columns = columns;
+		this.counters = (counters != null) ? counters : new String[0];
+		this.stripPrefix = stripPrefix;
+		this.resetOperation = resetOperation;
+
+		if (null == pattern) {
+			throw new IllegalArgumentException(String.format("Stat type %s has no object name pattern", name));
+		}
+		try {
+			new ObjectName(pattern);
+		} catch (Exception e) {
+			throw new IllegalArgumentException(
+					String.format("Invalid object name pattern of stat type %s: %s", name, e.getMessage()));
+		}
+		dateCol = Arrays.asList(columns).indexOf("DateTime");
+		if (dateCol < 0) {
+			throw new IllegalArgumentException(String.format("Stat type %s has no DateTime column", name));
+		}
+		entityCol = -1;
+		if (entityColumn != null) {
+			if (!entityColumn.equals(columns[0])) {
+				throw new IllegalArgumentException(
+						String.format("Entity column %s must be the first column of stat type %s", entityColumn, name));
+			}
+			entityCol = 0;
+		}
+		firstCol = entityCol + 1;
+		for (String counter : this.counters) {
+			if (!Arrays.asList(columns).contains(counter)) {
+				throw new IllegalArgumentException(
+						String.format("Counter %s is not a column of stat type %s", counter, name));
+			}
+		}
+	}
+
+	/**
+	 * Return definition of a stat type.
+	 *
+	 * @param name
+	 *            name of the stat type
+	 * @return the definition, or null if the type is not defined
+	 */
+	public static StatType get(String name) {
+		return types.get(name);
+	}
+
+	/**
+	 * Add or replace the definition of a stat type.
+	 *
+	 * @param type
+	 *            definition of the stat type
+	 */
+	public static void define(StatType type) {
+		types.put(type.getName(), type);
+	}
+
+	/**
+	 * Parse definition of a stat type from configuration properties of the
+	 * form statType.&lt;name&gt;.&lt;field&gt;.
+	 *
+	 * @param name
+	 *            name of the stat type
+	 * @param props
+	 *            configuration properties
+	 * @return the definition
+	 * @throws IllegalArgumentException
+	 *             when the definition is incomplete or invalid
+	 */
+	public static StatType parse(String name, Properties props) {
+		String prefix = "statType." + name + ".";
+		String columns = getProperty(props, prefix + "columns");
+		if (null == columns) {
+			throw new IllegalArgumentException(String.format("Stat type %s has no columns", name));
+		}
+		String counters = getProperty(props, prefix + "counters");
+		return new StatType(name, getProperty(props, prefix + "pattern"), getProperty(props, prefix + "entity"),
+				getProperty(props, prefix + "entityColumn"), columns.split("\\s*,\\s*"),
+				(counters != null) ? counters.split("\\s*,\\s*") : null, getProperty(props, prefix + "strip"),
+				getProperty(props, prefix + "reset"));
+	}
+
+	private static String getProperty(Properties props, String key) {
+		String value = props.getProperty(key, "").trim();
+		return value.length() > 0 ? value : null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public String[] getColumns() {
+		return columns;
+	}
+
+	public String[] getCounters() {
+		return counters;
+	}
+
+	public String getResetOperation() {
+		return resetOperation;
+	}
+
+	/**
+	 * @return index of the first column written after the entity name
+	 */
+	public int getFirstColumn() {
+		return firstCol;
+	}
+
+	/**
+	 * @return index of the DateTime column
+	 */
+	public int getDateColumn() {
+		return dateCol;
+	}
+
+	/**
+	 * @return true if the type reports a row per entity, which is subject to
+	 *         entity filters
+	 */
+	public boolean hasEntities() {
+		return entityKey != null || entityCol >= 0;
+	}
+
+	/**
+	 * @return name of the first column of report headers
+	 */
+	public String getLabelColumn() {
+		return entityCol >= 0 ? columns[entityCol] : "Object";
+	}
+
+	/**
+	 * Return the name of the entity of an MBean, if it is given by a key
+	 * property of the object name.
+	 *
+	 * @param objName
+	 *            object name of the MBean
+	 * @return value of the key property, or name of the stat type
+	 */
+	public String getEntityName(ObjectName objName) {
+		return entityKey != null ? objName.getKeyProperty(entityKey) : name;
+	}
+
+	/**
+	 * Return the entity name written as the first column of a report row.
+	 *
+	 * @param entityName
+	 *            name of the entity from the object name
+	 * @param row
+	 *            values in the order of the report columns
+	 * @return name with the prefix removed, or null if the name is unknown
+	 */
+	public String getLabel(String entityName, Object[] row) {
+		String label = entityName;
+		if (entityCol >= 0) {
+			Object value = row[entityCol];
+			label = (value != null) ? value.toString() : null;
+		}
+		if (label != null && stripPrefix != null && label.startsWith(stripPrefix)) {
+			label = label.substring(stripPrefix.length());
+		}
+		return label;
+	}
+
+	/**
+	 * Return header line of the report.
+	 *
+	 * @param reportColumns
+	 *            columns of report rows, i.e., the columns of the type and
+	 *            derived columns
+	 * @return header line ending with a new line
+	 */
+	public String getHeader(String[] reportColumns) {
+		StringBuilder str = new StringBuilder();
+		if (entityCol < 0) {
+			str.append("Object,");
+		}
+		str.append(reportColumns[0]);
+		for (int idx = 1; idx < reportColumns.length; idx++) {
+			str.append(',');
+			str.append(reportColumns[idx]);
+		}
+		str.append('\n');
+		return str.toString();
+	}
+}
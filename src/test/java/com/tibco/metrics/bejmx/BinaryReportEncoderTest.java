@@ -0,0 +1,143 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+/**
+ * Binary reports exported by BinaryReportReader must be identical to the csv
+ * reports written from the same rows.
+ */
+public class BinaryReportEncoderTest extends TestCase {
+
+	private static final long START = 1437733230000L;
+
+	private Client client = new Client("test", "localhost", 9899);
+
+	public void testEntityCacheRoundTrip() throws Exception {
+		String statType = "BEEntityCache";
+		String[] names = { "be.gen.Order", "be.gen.Account", "be.gen.Customer" };
+		Object[][] rows = new Object[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			rows[i] = new Object[] { names[i], null, 120L, 0.25, 42L, 3L, 0.5, 17L, 0.0, 2L, 1023 + i };
+		}
+		assertRoundTrip(statType, names, rows);
+	}
+
+	public void testAgentEntityRoundTrip() throws Exception {
+		String statType = "BEAgentEntity";
+		String[] names = { "be.gen.Order", "be.gen.Account" };
+		int cols = Client.BEAgentEntityReport.length;
+		Object[][] rows = new Object[names.length][cols];
+		for (int i = 0; i < names.length; i++) {
+			for (int c = 1; c < cols; c++) {
+				rows[i][c] = (c % 4 == 0) ? (Object) (c * 0.37) : (c % 4 == 1) ? (Object) (long) (c * 1001)
+						: (c % 4 == 2) ? "mode" + i : null;
+			}
+		}
+		assertRoundTrip(statType, names, rows);
+	}
+
+	public void testRTCTxnRoundTrip() throws Exception {
+		String statType = "RTCTxnManagerReport";
+		String[] names = { statType };
+		int cols = Client.BERTCTxnManagerReport.length;
+		Object[][] rows = new Object[1][cols];
+		for (int c = 1; c < cols; c++) {
+			rows[0][c] = (c % 2 == 0) ? (Object) 1.5f : (Object) (long) c;
+		}
+		assertRoundTrip(statType, names, rows);
+	}
+
+	public void testSmallerThanCsv() throws Exception {
+		String statType = "BEEntityCache";
+		BinaryReportEncoder encoder = newEncoder(statType);
+		CsvEncoder bin = new CsvEncoder();
+		CsvEncoder csv = new CsvEncoder();
+		bin.append(encoder.getFileHeader(), 0, encoder.getFileHeader().length);
+		csv.append(client.getHeader(statType));
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		Client.RowPlan plan = client.getRowPlan(statType);
+		for (int poll = 0; poll < 100; poll++) {
+			long time = START + poll * 30000L;
+			StatSample sample = new StatSample(time, 50);
+			for (int i = 0; i < 50; i++) {
+				Object[] row = { "be.gen.Concept" + i, null, 1000L + i, 0.25, 42L * poll, 3L, 0.5, 17L * poll,
+						0.0, 2L, i };
+				sample.add(Client.getRowLabel(plan, null, row), row);
+				row[1] = fmt.format(new Date(time));
+				Client.serializeMetrics(plan, null, row, csv);
+			}
+			encoder.encode(sample, bin);
+		}
+		assertTrue(bin.size() + " bytes", bin.size() * 5 < csv.size());
+	}
+
+	/**
+	 * Write a series of polls in which values grow, change kind, and entities
+	 * come and go, then compare exported report with the csv report.
+	 */
+	private void assertRoundTrip(String statType, String[] names, Object[][] base) throws Exception {
+		BinaryReportEncoder encoder = newEncoder(statType);
+		CsvEncoder bin = new CsvEncoder();
+		CsvEncoder csv = new CsvEncoder();
+		bin.append(encoder.getFileHeader(), 0, encoder.getFileHeader().length);
+		csv.append(client.getHeader(statType));
+
+		SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		int dateCol = Client.getDateColumn(statType);
+		Client.RowPlan plan = client.getRowPlan(statType);
+		long time = START;
+		for (int poll = 0; poll < 20; poll++) {
+			// irregular intervals
+			time += 30000L + (poll % 3) * 7;
+			if (poll == 10) {
+				// state is reset when a new file is started
+				encoder.reset();
+			}
+			StatSample sample = new StatSample(time, names.length);
+			for (int i = 0; i < names.length; i++) {
+				if ((poll + i) % 5 == 4) {
+					// entity missing in this poll
+					continue;
+				}
+				Object[] row = base[i].clone();
+				for (int c = Client.getFirstColumn(statType); c < row.length; c++) {
+					if (c == dateCol) {
+						continue;
+					} else if (row[c] instanceof Long) {
+						row[c] = (poll % 7 == 6) ? null : (Long) row[c] * poll - poll % 2;
+					} else if (row[c] instanceof Double) {
+						row[c] = (poll % 6 == 5) ? (Object) Boolean.TRUE : (Double) row[c] * poll / 3.0;
+					} else if (row[c] instanceof Float) {
+						row[c] = (Float) row[c] + poll;
+					} else if (row[c] instanceof String) {
+						row[c] = row[c] + "-" + (poll % 3);
+					}
+				}
+				String label = Client.getRowLabel(plan, names[i], row);
+				if (label != null) {
+					sample.add(label, row.clone());
+				}
+				row[dateCol] = fmt.format(new Date(time));
+				Client.serializeMetrics(plan, names[i], row, csv);
+			}
+			encoder.encode(sample, bin);
+		}
+
+		BinaryReportReader reader = new BinaryReportReader(new ByteArrayInputStream(bin.toByteArray()));
+		ByteArrayOutputStream exported = new ByteArrayOutputStream();
+		assertEquals(20, reader.export(exported));
+		assertEquals(new String(csv.toByteArray(), Charset.defaultCharset()),
+				new String(exported.toByteArray(), Charset.defaultCharset()));
+	}
+
+	private BinaryReportEncoder newEncoder(String statType) {
+		return new BinaryReportEncoder(client.getHeader(statType), Client.getReportColumns(statType).length,
+				Client.getFirstColumn(statType), Client.getDateColumn(statType));
+	}
+}
@@ -0,0 +1,103 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import junit.framework.TestCase;
+
+/**
+ * The channel list is read once and cached, destinations are read per channel
+ * on every poll, and a failed channel causes the list to be read again.
+ */
+public class ChannelDestinationsTest extends TestCase {
+
+	public interface ChannelsMBean {
+		TabularData GetChannels(String session) throws Exception;
+
+		TabularData GetDestinations(String channel, String session) throws Exception;
+	}
+
+	public static class Channels implements ChannelsMBean {
+		int channelCalls = 0;
+		String[] channels = { "/Channels/JMS", "/Channels/HTTP" };
+
+		public TabularData GetChannels(String session) throws Exception {
+			channelCalls++;
+			CompositeType type = new CompositeType("Channel", "channel", new String[] { "Channel URI", "State" },
+					new String[] { "uri", "state" }, new OpenType<?>[] { SimpleType.STRING, SimpleType.STRING });
+			TabularDataSupport data = new TabularDataSupport(
+					new TabularType("Channels", "channels", type, new String[] { "Channel URI" }));
+			for (String uri : channels) {
+				data.put(new CompositeDataSupport(type, new String[] { "Channel URI", "State" },
+						new Object[] { uri, "Started" }));
+			}
+			return data;
+		}
+
+		public TabularData GetDestinations(String channel, String session) throws Exception {
+			if (!Arrays.asList(channels).contains(channel)) {
+				throw new IllegalArgumentException("Unknown channel " + channel);
+			}
+			String[] items = { "Destination URI", "Num Events Received", "Num Events Sent",
+					"Received Events Rate in last stats interval", "Suspended" };
+			CompositeType type = new CompositeType("Destination", "destination", items, items,
+					new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.DOUBLE,
+							SimpleType.BOOLEAN });
+			TabularDataSupport data = new TabularDataSupport(
+					new TabularType("Destinations", "destinations", type, new String[] { "Destination URI" }));
+			data.put(new CompositeDataSupport(type, items,
+					new Object[] { channel + "/in", 10L, 0L, 2.5, Boolean.FALSE }));
+			data.put(new CompositeDataSupport(type, items,
+					new Object[] { channel + "/out", 0L, 7L, 0.0, Boolean.TRUE }));
+			return data;
+		}
+	}
+
+	public void testDestinations() throws Exception {
+		MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+		Channels mbean = new Channels();
+		mbs.registerMBean(mbean, new ObjectName(ChannelDestinations.OBJECT_NAME));
+		StatType type = StatType.get(ChannelDestinations.STAT_TYPE);
+		String[] cols = type.getColumns();
+		ChannelDestinations dest = new ChannelDestinations(cols, type.getDateColumn(), cols.length + 2,
+				3600000L);
+		PollStats stats = new PollStats("e", ChannelDestinations.STAT_TYPE, new AtomicLong(), new AtomicLong());
+
+		List<String> channels = dest.getChannels(mbs, stats);
+		assertEquals(Arrays.asList(mbean.channels), channels);
+		assertSame(channels, dest.getChannels(mbs, stats));
+		assertEquals(1, mbean.channelCalls);
+
+		Object[][] rows = dest.getDestinations(mbs, "/Channels/JMS", stats);
+		assertEquals(2, rows.length);
+		assertEquals(cols.length + 2, rows[0].length);
+		List<String> names = Arrays.asList(cols);
+		Object[] in = rows[0][0].equals("/Channels/JMS/in") ? rows[0] : rows[1];
+		assertEquals("/Channels/JMS", in[names.indexOf("ChannelURI")]);
+		assertEquals(10L, in[names.indexOf("NumEventsReceived")]);
+		assertEquals(2.5, in[names.indexOf("ReceivedEventsRateInLastStatsInterval")]);
+		assertEquals(Boolean.FALSE, in[names.indexOf("Suspended")]);
+		assertNull(in[names.indexOf("ReceivedEventsRate")]);
+		assertNull(in[type.getDateColumn()]);
+		assertEquals("/Channels/JMS/in", type.getLabel(ChannelDestinations.STAT_TYPE, in));
+		assertEquals(2, stats.getRoundTrips());
+
+		// invalidated list is read again
+		mbean.channels = new String[] { "/Channels/JMS" };
+		dest.invalidate();
+		assertEquals(1, dest.getChannels(mbs, stats).size());
+		assertEquals(2, mbean.channelCalls);
+	}
+}
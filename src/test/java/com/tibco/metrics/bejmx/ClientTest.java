@@ -0,0 +1,227 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServerConnection;
+
+import junit.framework.TestCase;
+
+/**
+ * Calls on the MBean server connections of all engines wait for the shared
+ * limit of RMI calls in flight, and attribute requests of a poll are taken in
+ * list order with a bounded number in flight.
+ */
+public class ClientTest extends TestCase {
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	/**
+	 * Connection whose getDefaultDomain blocks until released, and whose
+	 * getMBeanCount fails.
+	 */
+	private MBeanServerConnection blockingConnection() {
+		return (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if ("getMBeanCount".equals(method.getName())) {
+							throw new IOException("connection lost");
+						}
+						int n = inFlight.incrementAndGet();
+						synchronized (maxInFlight) {
+							maxInFlight.set(Math.max(maxInFlight.get(), n));
+						}
+						try {
+							release.await();
+						} finally {
+							inFlight.decrementAndGet();
+						}
+						return "domain";
+					}
+				});
+	}
+
+	public void testCallLimit() throws Exception {
+		Semaphore limiter = new Semaphore(2);
+		Client c1 = new Client("e1", "localhost", 1);
+		Client c2 = new Client("e2", "localhost", 2);
+		c1.setCallLimiter(limiter);
+		c2.setCallLimiter(limiter);
+		final MBeanServerConnection conn1 = c1.limit(blockingConnection());
+		final MBeanServerConnection conn2 = c2.limit(blockingConnection());
+
+		ExecutorService pool = Executors.newFixedThreadPool(6);
+		final CountDownLatch done = new CountDownLatch(6);
+		for (int i = 0; i < 6; i++) {
+			final MBeanServerConnection conn = i % 2 == 0 ? conn1 : conn2;
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						conn.getDefaultDomain();
+					} catch (IOException e) {
+						// counted by the latch
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		// two calls run, the others wait for a permit
+		long deadline = System.currentTimeMillis() + 5000;
+		while (inFlight.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(200);
+		assertEquals(2, inFlight.get());
+		assertEquals(0, limiter.availablePermits());
+		assertEquals(4, limiter.getQueueLength());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+		assertEquals(2, maxInFlight.get());
+		assertEquals(2, limiter.availablePermits());
+
+		// a failed call returns its permit, and keeps its exception type
+		try {
+			conn1.getMBeanCount();
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertEquals("connection lost", e.getMessage());
+		}
+		assertEquals(2, limiter.availablePermits());
+	}
+
+	public void testNoLimit() throws Exception {
+		Client client = new Client("e1", "localhost", 1);
+		MBeanServerConnection conn = blockingConnection();
+		assertSame(conn, client.limit(conn));
+	}
+
+	public void testInterruptedWait() throws Exception {
+		Semaphore limiter = new Semaphore(0);
+		Client client = new Client("e1", "localhost", 1);
+		client.setCallLimiter(limiter);
+		Thread.currentThread().interrupt();
+		try {
+			client.limit(blockingConnection()).getDefaultDomain();
+			fail("expected InterruptedIOException");
+		} catch (InterruptedIOException e) {
+			assertTrue(Thread.interrupted());
+		}
+		assertEquals(0, limiter.availablePermits());
+	}
+
+	public void testFetchPipeline() throws Exception {
+		final AtomicInteger executed = new AtomicInteger();
+		ExecutorService executor = new ThreadPoolExecutor(0, 10, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>()) {
+			public void execute(Runnable task) {
+				executed.incrementAndGet();
+				super.execute(task);
+			}
+		};
+		Client client = new Client("e1", "localhost", 1);
+		client.setFetchPool(1, 2, executor);
+
+		// the first request fails when released, the second waits until the
+		// third is done
+		final CountDownLatch firstRelease = new CountDownLatch(1);
+		final CountDownLatch thirdDone = new CountDownLatch(1);
+		List<Client.Fetch> fetches = new ArrayList<Client.Fetch>();
+		for (int i = 0; i < 5; i++) {
+			final int idx = i;
+			fetches.add(new Client.Fetch(null, "e" + i, new Callable<Object[][]>() {
+				public Object[][] call() throws Exception {
+					int n = inFlight.incrementAndGet();
+					synchronized (maxInFlight) {
+						maxInFlight.set(Math.max(maxInFlight.get(), n));
+					}
+					try {
+						if (0 == idx) {
+							firstRelease.await(5, TimeUnit.SECONDS);
+							throw new IOException("fetch failed");
+						}
+						if (1 == idx) {
+							return new Object[][] { { "e1", thirdDone.await(5, TimeUnit.SECONDS) } };
+						}
+						return new Object[][] { { "e" + idx } };
+					} finally {
+						inFlight.decrementAndGet();
+						if (2 == idx) {
+							thirdDone.countDown();
+						}
+					}
+				}
+			}));
+		}
+		try {
+			Client.FetchPipeline pipeline = client.new FetchPipeline("BEAgentEntity", fetches);
+
+			// the first window is submitted before any request is taken
+			assertEquals(2, executed.get());
+			firstRelease.countDown();
+
+			List<String> rows = new ArrayList<String>();
+			for (int i = 0; i < pipeline.size(); i++) {
+				try {
+					Object[] row = pipeline.get(i).rows.get(5, TimeUnit.SECONDS)[0];
+					rows.add(row.length > 1 ? row[0] + ":" + row[1] : String.valueOf(row[0]));
+				} catch (ExecutionException e) {
+					rows.add(e.getCause().getMessage());
+				}
+			}
+
+			// rows come out in list order, and the slot of the failed request
+			// is reused while the second one is still in flight
+			assertEquals("[fetch failed, e1:true, e2, e3, e4]", rows.toString());
+			assertEquals(5, executed.get());
+			assertEquals(2, maxInFlight.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testFetchWithoutExecutor() throws Exception {
+		final List<String> calls = new ArrayList<String>();
+		List<Client.Fetch> fetches = new ArrayList<Client.Fetch>();
+		for (int i = 0; i < 3; i++) {
+			final String name = "e" + i;
+			fetches.add(new Client.Fetch(null, name, new Callable<Object[][]>() {
+				public Object[][] call() throws Exception {
+					calls.add(name);
+					return new Object[][] { { name } };
+				}
+			}));
+		}
+		Client client = new Client("e1", "localhost", 1);
+		client.setFetchPool(1, 2, null);
+		Client.FetchPipeline pipeline = client.new FetchPipeline("BEAgentEntity", fetches);
+
+		// requests run in the calling thread when they are taken
+		assertTrue(calls.isEmpty());
+		assertEquals("e0", pipeline.get(0).rows.get()[0][0]);
+		assertEquals("[e0]", calls.toString());
+		assertEquals("e1", pipeline.get(1).rows.get()[0][0]);
+		assertEquals("e2", pipeline.get(2).rows.get()[0][0]);
+		assertEquals("[e0, e1, e2]", calls.toString());
+	}
+}
@@ -0,0 +1,131 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.remote.JMXConnector;
+
+import junit.framework.TestCase;
+
+/**
+ * Dead engines back off exponentially and open their circuit after repeated
+ * failures, and a hanging connection attempt blocks a poll only once.
+ */
+public class ConnectionManagerTest extends TestCase {
+
+	private static final Callable<JMXConnector[]> REFUSED = new Callable<JMXConnector[]>() {
+		public JMXConnector[] call() throws IOException {
+			throw new IOException("Connection refused");
+		}
+	};
+
+	private static final Callable<JMXConnector[]> CONNECTED = new Callable<JMXConnector[]>() {
+		public JMXConnector[] call() {
+			return new JMXConnector[0];
+		}
+	};
+
+	public void testBackoff() {
+		ConnectionPolicy policy = new ConnectionPolicy(1000, 0, 1000, 8000, 0, 0);
+		long[] expected = { 1000, 2000, 4000, 8000, 8000 };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i] / 2, policy.getBackoffMillis(i + 1, 0));
+			assertEquals(expected[i], policy.getBackoffMillis(i + 1, 1));
+		}
+		assertEquals(8000, policy.getBackoffMillis(100, 1));
+	}
+
+	public void testCircuit() {
+		ConnectionPolicy policy = new ConnectionPolicy(1000, 0, 1000, 60000, 3, 600000);
+		ConnectionManager manager = new ConnectionManager("test", policy, null);
+		long now = 0;
+		assertNull(manager.connect(REFUSED, now));
+		assertEquals(1, manager.getFailures());
+		assertTrue(manager.getNextAttempt() >= 500 && manager.getNextAttempt() <= 1000);
+
+		// no attempt while backing off
+		assertNull(manager.connect(REFUSED, now + 400));
+		assertEquals(1, manager.getAttempts());
+
+		// circuit opens after the third failure, and stays open
+		now = manager.getNextAttempt();
+		assertNull(manager.connect(REFUSED, now));
+		now = manager.getNextAttempt();
+		assertNull(manager.connect(REFUSED, now));
+		assertTrue(manager.isCircuitOpen());
+		assertEquals(now + 600000, manager.getNextAttempt());
+		assertNull(manager.connect(CONNECTED, now + 599999));
+		assertEquals(3, manager.getAttempts());
+
+		// trial connection after the open period, closed by a complete poll
+		assertNotNull(manager.connect(CONNECTED, now + 600000));
+		assertTrue(manager.isCircuitOpen());
+		manager.recordSuccess();
+		assertFalse(manager.isCircuitOpen());
+		assertEquals(0, manager.getFailures());
+
+		// failed polls of an open connection count as well
+		manager.recordFailure(now, "call timed out");
+		assertNull(manager.connect(CONNECTED, now));
+	}
+
+	public void testConnectFailure() {
+		ConnectionPolicy policy = new ConnectionPolicy(1000, 0, 1000, 60000, 0, 0);
+		ConnectionManager manager = new ConnectionManager("test", policy, null);
+		assertNull(manager.connect(REFUSED, 0));
+		assertTrue(manager.takeConnectFailure());
+		assertFalse(manager.takeConnectFailure());
+
+		// failed polls do not count, and a connection resets the failure
+		manager.recordFailure(0, "call timed out");
+		assertFalse(manager.takeConnectFailure());
+		assertNull(manager.connect(REFUSED, manager.getNextAttempt()));
+		assertNotNull(manager.connect(CONNECTED, manager.getNextAttempt()));
+		assertFalse(manager.takeConnectFailure());
+	}
+
+	public void testHangingAttempt() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<JMXConnector[]> hanging = new Callable<JMXConnector[]>() {
+			public JMXConnector[] call() throws Exception {
+				release.await();
+				return new JMXConnector[0];
+			}
+		};
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			ConnectionPolicy policy = new ConnectionPolicy(100, 0, 1, 1, 0, 0);
+			ConnectionManager manager = new ConnectionManager("test", policy, executor);
+			assertNull(manager.connect(hanging, 0));
+			assertEquals(1, manager.getFailures());
+
+			// a timeout is not a failure of the address
+			assertFalse(manager.takeConnectFailure());
+
+			// no new attempt, and no wait, while the first one hangs
+			long start = System.nanoTime();
+			assertNull(manager.connect(hanging, 1000));
+			assertTrue(System.nanoTime() - start < 50000000L);
+			assertEquals(1, manager.getAttempts());
+
+			// late connection is used by the next poll
+			release.countDown();
+			JMXConnector[] late = null;
+			for (int i = 0; i < 100 && null == late; i++) {
+				late = manager.connect(hanging, 2000);
+				if (null == late) {
+					Thread.sleep(10);
+				}
+			}
+			assertNotNull(late);
+			assertEquals(1, manager.getAttempts());
+			assertNotNull(manager.connect(CONNECTED, 3000));
+			assertEquals(2, manager.getAttempts());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
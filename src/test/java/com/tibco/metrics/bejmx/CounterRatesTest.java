@@ -0,0 +1,98 @@
+package com.tibco.metrics.bejmx;
+
+import junit.framework.TestCase;
+
+/**
+ * Delta and rate columns of cumulative counters survive counter resets, and
+ * idle entities are forgotten.
+ */
+public class CounterRatesTest extends TestCase {
+
+	private static final String[] COLUMNS = { "ClassName", "DateTime", "CacheSize", "GetCount", "PutCount" };
+
+	public void testDeltaAndRate() {
+		CounterRates rates = new CounterRates(COLUMNS, new String[] { "GetCount", "PutCount" });
+		String[] cols = rates.getColumns();
+		assertEquals(9, cols.length);
+		assertEquals("GetCountDelta", cols[5]);
+		assertEquals("PutCountRate", cols[8]);
+
+		Object[] row = row(100L, 10L);
+		rates.compute("Order", 10000L, row);
+		assertNull(row[5]);
+		assertNull(row[6]);
+
+		row = row(400L, 10L);
+		rates.compute("Order", 40000L, row);
+		assertEquals(300L, row[5]);
+		assertEquals(10.0, row[6]);
+		assertEquals(0L, row[7]);
+		assertEquals(0.0, row[8]);
+
+		// other entities are tracked separately
+		row = row(5L, 5L);
+		rates.compute("Account", 40000L, row);
+		assertNull(row[5]);
+
+		// counter is reset, e.g., by an engine restart
+		row = row(60L, null);
+		rates.compute("Order", 70000L, row);
+		assertEquals(60L, row[5]);
+		assertEquals(2.0, row[6]);
+		assertNull(row[7]);
+
+		// no delta after a missing value
+		row = row(90L, 20L);
+		rates.compute("Order", 100000L, row);
+		assertEquals(30L, row[5]);
+		assertNull(row[7]);
+	}
+
+	public void testClear() {
+		CounterRates rates = new CounterRates(COLUMNS, new String[] { "GetCount" });
+		for (int i = 0; i < 100; i++) {
+			rates.compute("Entity" + i, 1000L, row(1L, 1L));
+		}
+		Object[] row = row(2L, 2L);
+		rates.compute("Entity99", 2000L, row);
+		assertEquals(1L, row[5]);
+
+		rates.clear();
+		row = row(3L, 3L);
+		rates.compute("Entity99", 3000L, row);
+		assertNull(row[5]);
+	}
+
+	public void testChurn() {
+		CounterRates rates = new CounterRates(COLUMNS, new String[] { "GetCount" });
+		Object[] row;
+		for (int poll = 0; poll < 100; poll++) {
+			// Order is polled every time, and each other entity only once
+			long time = 1000L * (poll + 1);
+			row = row(10L * poll, 1L);
+			rates.compute("Order", time, row);
+			if (poll > 0) {
+				assertEquals(10L, row[5]);
+			}
+			row = row(1L, 1L);
+			rates.compute("Entity" + poll, time, row);
+			assertNull(row[5]);
+			rates.end();
+		}
+
+		// idle entities are forgotten, and their slots are reused
+		assertEquals(1 + CounterRates.IDLE_POLLS, rates.size());
+
+		// an entity seen again after it is forgotten has no delta
+		row = row(5L, 1L);
+		rates.compute("Entity0", 101000L, row);
+		assertNull(row[5]);
+		row = row(105L, 1L);
+		rates.compute("Entity99", 101000L, row);
+		assertEquals(104L, row[5]);
+	}
+
+	private Object[] row(Long gets, Long puts) {
+		return new Object[] { "be.gen.Order", null, 1L, gets, puts, "x", "x", "x", "x" };
+	}
+}
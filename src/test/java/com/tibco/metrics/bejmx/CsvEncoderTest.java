@@ -0,0 +1,74 @@
+package com.tibco.metrics.bejmx;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Rows encoded by CsvEncoder must be byte-identical to the CSV text written
+ * by FileWriter from StringBuilder rows.
+ */
+public class CsvEncoderTest extends TestCase {
+
+	private static final String TIMESTAMP = "2015-07-24T10:20:30.456";
+
+	private Client client = new Client("test", "localhost", 9899);
+
+	public void testValues() {
+		Object[] values = { null, 0L, -1L, 1234567890123L, Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MIN_VALUE,
+				(short) -12, (byte) 7, 0.0, -0.0, 0.1, 1.0E-5, 123456789.125, 1.0E10, Double.NaN,
+				Double.NEGATIVE_INFINITY, Double.MIN_VALUE, 1.5f, Float.MAX_VALUE, true, false, "text", "Kaffeeé",
+				new StringBuilder("sb") };
+		CsvEncoder out = new CsvEncoder(4);
+		StringBuilder expected = new StringBuilder();
+		for (Object value : values) {
+			out.appendValue(value).append(',');
+			expected.append(value).append(',');
+		}
+		assertBytes(expected, out);
+	}
+
+	public void testAgentEntityRow() {
+		Object[] row = new Object[Client.BEAgentEntityReport.length];
+		row[0] = TIMESTAMP;
+		for (int i = 1; i < row.length; i++) {
+			row[i] = (i % 3 == 0) ? (Object) (i * 0.37) : (i % 3 == 1) ? (Object) (long) (i * 1001) : null;
+		}
+		CsvEncoder out = new CsvEncoder();
+		Client.serializeMetrics(client.getRowPlan("BEAgentEntity"), "be.gen.Account", row, out);
+
+		StringBuilder expected = new StringBuilder("Account");
+		for (Object value : row) {
+			expected.append(',').append(value);
+		}
+		expected.append('\n');
+		assertBytes(expected, out);
+	}
+
+	public void testEntityCacheRow() {
+		Object[] row = { "be.gen.Order", TIMESTAMP, 120L, 0.25, 42L, 3L, 0.5, 17L, 0.0, 2L, 1023 };
+		CsvEncoder out = new CsvEncoder();
+		Client.RowPlan plan = client.getRowPlan("BEEntityCache");
+		Client.serializeMetrics(plan, "ignored", row, out);
+		assertBytes("Order," + TIMESTAMP + ",120,0.25,42,3,0.5,17,0.0,2,1023\n", out);
+
+		// BE internal entities are not reported
+		out.reset();
+		row[0] = "com.tibco.cep.runtime.model.element.impl.ObjectTableIds";
+		Client.serializeMetrics(plan, "ignored", row, out);
+		assertEquals(0, out.size());
+	}
+
+	public void testHeader() {
+		CsvEncoder out = new CsvEncoder();
+		String header = client.getHeader("RTCTxnManagerReport");
+		out.append(header);
+		assertBytes(header, out);
+	}
+
+	private void assertBytes(CharSequence expected, CsvEncoder out) {
+		byte[] bytes = expected.toString().getBytes(Charset.defaultCharset());
+		assertTrue(expected.toString(), Arrays.equals(bytes, out.toByteArray()));
+	}
+}
@@ -0,0 +1,49 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Compiled include patterns must give the same decisions as matching each
+ * pattern one by one.
+ */
+public class EntityFilterTest extends TestCase {
+
+	public void testIncludePatterns() {
+		Set<String> patterns = new LinkedHashSet<String>();
+		patterns.add(".*Events.*");
+		patterns.add(".*Account.*");
+		patterns.add("Order|Trade");
+		EntityFilter filter = new EntityFilter(patterns, true);
+
+		String[] names = { "Account", "MyAccountEvent", "Events.Login", "Order", "Trade", "OrderTrade", "Customer",
+				"Account--ObjectTableIds", "com.tibco.cep.runtime.model.Account" };
+		for (int i = 0; i < 2; i++) {
+			// second round uses memoized decisions
+			for (String name : names) {
+				assertEquals(name, isIgnored(name, patterns), filter.isIgnored(name));
+			}
+		}
+	}
+
+	public void testIncludeAll() {
+		EntityFilter filter = new EntityFilter(null, false);
+		assertFalse(filter.isIgnored("com.tibco.cep.runtime.model.Account"));
+		assertTrue(filter.isIgnored("Account--ObjectTableIds"));
+	}
+
+	// rules applied before patterns were compiled
+	private boolean isIgnored(String name, Set<String> patterns) {
+		if (name.endsWith("--ObjectTableIds") || name.contains("com.tibco.cep.runtime.model")) {
+			return true;
+		}
+		for (String pattern : patterns) {
+			if (name.matches(pattern)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
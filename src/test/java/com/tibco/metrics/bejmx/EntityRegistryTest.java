@@ -0,0 +1,135 @@
+package com.tibco.metrics.bejmx;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Names returned to a poll are a snapshot that is not changed by MBean
+ * registration, while later polls see the registered MBeans, including
+ * those registered while the names are queried. Cached attributes of removed
+ * MBeans are evicted.
+ */
+public class EntityRegistryTest extends TestCase {
+
+	public interface EntityMBean {
+		long getCacheSize();
+	}
+
+	public static class Entity implements EntityMBean {
+		public long getCacheSize() {
+			return 1;
+		}
+	}
+
+	public void testSnapshot() throws Exception {
+		MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+		for (int i = 0; i < 3; i++) {
+			mbs.registerMBean(new Entity(), new ObjectName("com.tibco.be:service=Cache,name=c" + i));
+		}
+		EntityRegistry registry = new EntityRegistry(mbs, 3600000L);
+		String pattern = "com.tibco.be:service=Cache,name=*";
+		Set<ObjectName> names = registry.getNames(pattern);
+		assertEquals(3, names.size());
+
+		// registration during iteration does not change the snapshot
+		Iterator<ObjectName> it = names.iterator();
+		it.next();
+		mbs.registerMBean(new Entity(), new ObjectName("com.tibco.be:service=Cache,name=c9"));
+		mbs.unregisterMBean(new ObjectName("com.tibco.be:service=Cache,name=c1"));
+		it.next();
+		it.next();
+		assertFalse(it.hasNext());
+		assertEquals(3, names.size());
+
+		// the next poll sees the changes without querying the MBean server
+		Set<ObjectName> updated = registry.getNames(pattern);
+		assertEquals(3, updated.size());
+		assertTrue(updated.contains(new ObjectName("com.tibco.be:service=Cache,name=c9")));
+		assertFalse(updated.contains(new ObjectName("com.tibco.be:service=Cache,name=c1")));
+	}
+
+	public void testCacheEviction() throws Exception {
+		MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+		Map<ObjectName, String> cache = new ConcurrentHashMap<ObjectName, String>();
+		for (int i = 0; i < 3; i++) {
+			ObjectName name = new ObjectName("com.tibco.be:service=Cache,name=c" + i);
+			mbs.registerMBean(new Entity(), name);
+			cache.put(name, "attributes of c" + i);
+		}
+		String pattern = "com.tibco.be:service=Cache,name=*";
+		EntityRegistry registry = new EntityRegistry(mbs, 3600000L, cache);
+		assertEquals(3, registry.getNames(pattern).size());
+
+		// unregistered MBeans are evicted by notification
+		mbs.unregisterMBean(new ObjectName("com.tibco.be:service=Cache,name=c1"));
+		assertEquals(2, cache.size());
+		assertFalse(cache.containsKey(new ObjectName("com.tibco.be:service=Cache,name=c1")));
+
+		// without notifications, names missing from a query are evicted
+		mbs.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registry);
+		registry = new EntityRegistry(mbs, 0, cache);
+		assertEquals(2, registry.getNames(pattern).size());
+		mbs.unregisterMBean(new ObjectName("com.tibco.be:service=Cache,name=c2"));
+		assertEquals(2, cache.size());
+		assertEquals(1, registry.getNames(pattern).size());
+		assertEquals(1, cache.size());
+		assertTrue(cache.containsKey(new ObjectName("com.tibco.be:service=Cache,name=c0")));
+	}
+
+	public void testRegistrationDuringScan() throws Exception {
+		final MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+		mbs.registerMBean(new Entity(), new ObjectName("com.tibco.be:service=Cache,name=c0"));
+		final ObjectName added = new ObjectName("com.tibco.be:service=Cache,name=c1");
+		final Thread[] registering = new Thread[1];
+
+		// register another MBean from a different thread after the names are
+		// queried, but before the query returns
+		MBeanServerConnection mbsc = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						Object result;
+						try {
+							result = method.invoke(mbs, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+						if ("queryNames".equals(method.getName()) && !mbs.isRegistered(added)) {
+							registering[0] = new Thread() {
+								public void run() {
+									try {
+										mbs.registerMBean(new Entity(), added);
+									} catch (Exception e) {
+										throw new RuntimeException(e);
+									}
+								}
+							};
+							registering[0].start();
+							registering[0].join(200);
+						}
+						return result;
+					}
+				});
+
+		EntityRegistry registry = new EntityRegistry(mbsc, 3600000L);
+		String pattern = "com.tibco.be:service=Cache,name=*";
+		assertEquals(1, registry.getNames(pattern).size());
+		registering[0].join();
+		Set<ObjectName> names = registry.getNames(pattern);
+		assertEquals(2, names.size());
+		assertTrue(names.contains(added));
+	}
+}
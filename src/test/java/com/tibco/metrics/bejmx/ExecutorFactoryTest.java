@@ -0,0 +1,65 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Platform pools run at most the configured number of threads and queue
+ * other tasks, and virtual mode fails clearly on JVMs that do not support it.
+ */
+public class ExecutorFactoryTest extends TestCase {
+
+	public void testPlatformPool() throws Exception {
+		ThreadPoolExecutor pool = ExecutorFactory.newPlatformPool(2, 1);
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			for (int i = 0; i < 5; i++) {
+				pool.execute(new Runnable() {
+					public void run() {
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+
+			// tasks beyond the pool size are queued, not rejected
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertEquals(2, pool.getPoolSize());
+			assertEquals(3, pool.getQueue().size());
+
+			// idle threads exit after the keep-alive time
+			release.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (pool.getPoolSize() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertEquals(0, pool.getPoolSize());
+			assertEquals(5, pool.getCompletedTaskCount());
+			assertEquals(2, pool.getLargestPoolSize());
+		} finally {
+			release.countDown();
+			pool.shutdown();
+		}
+	}
+
+	public void testUnsupportedVirtualMode() {
+		if (ExecutorFactory.isVirtualSupported()) {
+			assertNotNull(ExecutorFactory.newVirtualExecutor());
+		} else {
+			try {
+				ExecutorFactory.newVirtualExecutor();
+				fail("expected UnsupportedOperationException");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Local engines are selected by main class or system property, and each JVM
+ * is resolved once in its lifetime, unless its PID is reused or connections
+ * to its address fail.
+ */
+public class LocalDiscoveryTest extends TestCase {
+
+	/**
+	 * Discovery that counts resolutions instead of attaching to JVMs.
+	 */
+	private static class CountingDiscovery extends LocalDiscovery {
+		private Map<Integer, Integer> calls = new HashMap<Integer, Integer>();
+		private Map<Integer, String> properties = new HashMap<Integer, String>();
+		private int propertyReads = 0;
+		private boolean fail = false;
+		private long startTime = 1437730200000L;
+
+		CountingDiscovery(String property) {
+			super(Pattern.compile(".*\\.BEMain"), property);
+		}
+
+		@Override
+		protected String resolve(int pid, boolean matched) throws Exception {
+			Integer count = calls.get(pid);
+			calls.put(pid, (null == count) ? 1 : count + 1);
+			if (fail) {
+				throw new Exception("attach failed");
+			}
+			if (!matched) {
+				propertyReads++;
+				if (null == properties.get(pid)) {
+					return null;
+				}
+			}
+			return "service:jmx:rmi://localhost/stub/" + pid;
+		}
+
+		@Override
+		protected long getStartTime(int pid) {
+			startTime += 1000;
+			return startTime;
+		}
+
+		int getCalls(int pid) {
+			Integer count = calls.get(pid);
+			return (null == count) ? 0 : count;
+		}
+	}
+
+	public void testMainClass() {
+		CountingDiscovery discovery = new CountingDiscovery(null);
+		Map<Integer, String> running = new HashMap<Integer, String>();
+		running.put(101, "com.tibco.cep.container.standalone.BEMain --propFile be-engine.tra");
+		running.put(102, "org.apache.catalina.startup.Bootstrap start");
+		Map<Integer, String> engines = discovery.update(running);
+		assertEquals(1, engines.size());
+		assertEquals("service:jmx:rmi://localhost/stub/101", engines.get(101));
+
+		// cached addresses, and no attach to other JVMs without property
+		running.put(103, "com.tibco.cep.container.standalone.BEMain");
+		engines = discovery.update(running);
+		engines = discovery.update(running);
+		assertEquals(2, engines.size());
+		assertEquals(1, discovery.getCalls(101));
+		assertEquals(0, discovery.getCalls(102));
+		assertEquals(1, discovery.getCalls(103));
+
+		// exited JVMs are forgotten
+		running.remove(101);
+		engines = discovery.update(running);
+		assertFalse(engines.containsKey(101));
+		assertEquals(2, discovery.size());
+	}
+
+	public void testProperty() {
+		CountingDiscovery discovery = new CountingDiscovery("tibco.env.BE_HOME");
+		discovery.properties.put(201, "/opt/tibco/be/5.2");
+		Map<Integer, String> running = new HashMap<Integer, String>();
+		running.put(201, "/opt/tibco/be/5.2/lib/cep-engine.jar");
+		running.put(202, "sun.tools.jconsole.JConsole");
+		for (int i = 0; i < 3; i++) {
+			Map<Integer, String> engines = discovery.update(running);
+			assertEquals(1, engines.size());
+			assertTrue(engines.containsKey(201));
+		}
+
+		// JVMs that are not engines are attached only once
+		assertEquals(1, discovery.getCalls(201));
+		assertEquals(1, discovery.getCalls(202));
+		assertEquals(2, discovery.propertyReads);
+
+		// an engine is known by its property, so only the address is resolved
+		// again
+		discovery.invalidate(201, "service:jmx:rmi://localhost/stub/201");
+		assertTrue(discovery.update(running).containsKey(201));
+		assertEquals(2, discovery.getCalls(201));
+		assertEquals(2, discovery.propertyReads);
+	}
+
+	public void testFailedAttach() {
+		CountingDiscovery discovery = new CountingDiscovery(null);
+		discovery.fail = true;
+		Map<Integer, String> running = new HashMap<Integer, String>();
+		running.put(301, "com.tibco.cep.container.standalone.BEMain");
+		for (int i = 0; i < 5; i++) {
+			assertTrue(discovery.update(running).isEmpty());
+		}
+		assertEquals(LocalDiscovery.MAX_ATTEMPTS, discovery.getCalls(301));
+
+		// a new JVM with the same main class is resolved again
+		discovery.fail = false;
+		running.put(302, "com.tibco.cep.container.standalone.BEMain");
+		assertTrue(discovery.update(running).containsKey(302));
+		assertEquals("BEMain", LocalDiscovery.getMainClass(" BEMain -n x"));
+	}
+
+	public void testReusedPid() {
+		CountingDiscovery discovery = new CountingDiscovery(null);
+		Map<Integer, String> running = new HashMap<Integer, String>();
+		running.put(401, "com.tibco.cep.container.standalone.BEMain -n inference");
+		discovery.update(running);
+		String name = discovery.getEngineName(401);
+		discovery.update(running);
+		assertEquals(1, discovery.getCalls(401));
+		assertEquals(name, discovery.getEngineName(401));
+		assertTrue(name, name.startsWith("PID-401-2015"));
+
+		// the PID is reused by a JVM of another command line, which is named
+		// by its own start time
+		running.put(401, "com.tibco.cep.container.standalone.BEMain -n cache");
+		assertTrue(discovery.update(running).containsKey(401));
+		assertEquals(2, discovery.getCalls(401));
+		assertFalse(name.equals(discovery.getEngineName(401)));
+		assertNull(discovery.getEngineName(402));
+
+		// a failed address is resolved again, other addresses are ignored
+		discovery.invalidate(401, "service:jmx:rmi://localhost/stub/999");
+		discovery.update(running);
+		assertEquals(2, discovery.getCalls(401));
+		discovery.invalidate(401, "service:jmx:rmi://localhost/stub/401");
+		assertEquals("service:jmx:rmi://localhost/stub/401", discovery.update(running).get(401));
+		assertEquals(3, discovery.getCalls(401));
+		discovery.update(running);
+		assertEquals(3, discovery.getCalls(401));
+
+		// the address is kept when the JVM is out of attempts
+		discovery.invalidate(401, "service:jmx:rmi://localhost/stub/401");
+		discovery.update(running);
+		assertEquals(4, discovery.getCalls(401));
+		discovery.invalidate(401, "service:jmx:rmi://localhost/stub/401");
+		assertEquals("service:jmx:rmi://localhost/stub/401", discovery.update(running).get(401));
+		assertEquals(4, discovery.getCalls(401));
+	}
+}
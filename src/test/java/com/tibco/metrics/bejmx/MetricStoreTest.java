@@ -0,0 +1,75 @@
+package com.tibco.metrics.bejmx;
+
+import junit.framework.TestCase;
+
+/**
+ * Ring buffers of the metric store keep the latest points of each series
+ * within the memory budget.
+ */
+public class MetricStoreTest extends TestCase {
+
+	private static final String[] COLUMNS = { "ClassName", "DateTime", "CacheSize", "GetAvgTime" };
+
+	public void testRingBuffer() {
+		MetricStore store = new MetricStore(1 << 20, 4);
+		MetricStore.SeriesGroup group = store.getGroup("e1", "BEEntityCache", COLUMNS);
+		for (int i = 1; i <= 10; i++) {
+			group.record("Order", i * 1000L, new Object[] { "be.gen.Order", "ts", (long) i, i * 0.5 });
+		}
+
+		MetricStore.Points last = store.last("e1", "BEEntityCache", "Order", "CacheSize", 3);
+		assertEquals(3, last.size());
+		assertEquals(8000L, last.getTime(0));
+		assertEquals(10.0, last.getValue(2));
+
+		// only the latest 4 points are kept
+		MetricStore.Points range = store.range("e1", "BEEntityCache", "Order", "GetAvgTime", 0, 8500);
+		assertEquals(2, range.size());
+		assertEquals(7000L, range.getTime(0));
+		assertEquals(4.0, range.getValue(1));
+
+		// non-numeric columns are not stored
+		assertNull(store.last("e1", "BEEntityCache", "Order", "DateTime", 1));
+		assertNull(store.last("e1", "BEEntityCache", "Account", "CacheSize", 1));
+		assertEquals(2, store.listSeries().size());
+	}
+
+	public void testMemoryBudget() {
+		// room for 3 series of 4 points
+		MetricStore store = new MetricStore(3 * 4 * 16, 4);
+		MetricStore.SeriesGroup group = store.getGroup("e1", "BEEntityCache", COLUMNS);
+		group.record("Order", 1000L, new Object[] { null, null, 1L, 0.5 });
+		group.record("Account", 1000L, new Object[] { null, null, 2L, 1.5 });
+
+		assertEquals(3, store.listSeries().size());
+		assertEquals(3 * 4 * 16, store.getUsedBytes());
+		assertEquals(1, store.getDroppedValues());
+		assertNull(store.last("e1", "BEEntityCache", "Account", "GetAvgTime", 1));
+	}
+
+	public void testEviction() {
+		// room for 2 series of 4 points
+		MetricStore store = new MetricStore(2 * 4 * 16, 4, 2);
+		MetricStore.SeriesGroup group = store.getGroup("e1", "BEEntityCache", COLUMNS);
+		group.record("Order", 1000L, new Object[] { null, null, 1L, 0.5 });
+		group.endPoll();
+		for (int i = 2; i <= 3; i++) {
+			group.record("Account", i * 1000L, new Object[] { null, null, 2L, 1.5 });
+			assertNull(store.last("e1", "BEEntityCache", "Account", "CacheSize", 1));
+			group.endPoll();
+		}
+
+		// Order is gone for 2 polls, so its series make room for Account
+		group.record("Account", 4000L, new Object[] { null, null, 2L, 1.5 });
+		assertEquals(2, store.listSeries().size());
+		assertEquals(1, store.last("e1", "BEEntityCache", "Account", "CacheSize", 4).size());
+		assertNull(store.last("e1", "BEEntityCache", "Order", "CacheSize", 1));
+		assertEquals(2 * 4 * 16, store.getUsedBytes());
+
+		// removing the engine releases all of its memory
+		store.removeGroup("e1", "BEEntityCache", group);
+		assertTrue(group.isReleased());
+		assertEquals(0, store.listSeries().size());
+		assertEquals(0, store.getUsedBytes());
+	}
+}
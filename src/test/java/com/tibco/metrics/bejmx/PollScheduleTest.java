@@ -0,0 +1,69 @@
+package com.tibco.metrics.bejmx;
+
+import junit.framework.TestCase;
+
+/**
+ * Stat types are polled at wall-clock multiples of their intervals, and
+ * adaptive intervals stretch for slow or unchanged polls within the bounds.
+ */
+public class PollScheduleTest extends TestCase {
+
+	public void testFixed() {
+		PollSchedule schedule = new PollSchedule(30000, 10000, false, 240000, 0.5);
+		assertTrue(schedule.isDue(20000));
+		schedule.record(1);
+		schedule.next(20000, 25000);
+		assertEquals(30000, schedule.getIntervalMillis());
+		assertFalse(schedule.isDue(20000));
+		assertTrue(schedule.isDue(30000));
+		schedule.record(1);
+		schedule.next(30000, 1);
+		assertFalse(schedule.isDue(50000));
+		assertTrue(schedule.isDue(60000));
+		assertEquals(6, PollSchedule.gcd(30, 12));
+	}
+
+	public void testAdaptive() {
+		PollSchedule schedule = new PollSchedule(10000, 5000, true, 80000, 0.5);
+
+		// unchanged values stretch the interval up to the max
+		long slot = 0;
+		long[] expected = { 10000, 20000, 40000, 80000, 80000 };
+		for (long interval : expected) {
+			assertTrue(schedule.isDue(slot));
+			schedule.record(42);
+			schedule.next(slot, 1);
+			assertEquals(interval, schedule.getIntervalMillis());
+			slot += interval;
+		}
+
+		// values change in a fast poll, so return to the configured interval
+		schedule.record(43);
+		schedule.next(slot, 1);
+		assertEquals(10000, schedule.getIntervalMillis());
+
+		// slow poll stretches the interval although values change
+		schedule.record(44);
+		schedule.next(slot, 6000);
+		assertEquals(20000, schedule.getIntervalMillis());
+
+		// poll close to the budget halves the interval
+		schedule.record(45);
+		schedule.next(slot, 4000);
+		assertEquals(10000, schedule.getIntervalMillis());
+
+		// failed poll without values keeps the interval
+		schedule.next(slot, 1);
+		assertEquals(10000, schedule.getIntervalMillis());
+	}
+
+	public void testFingerprint() {
+		Object[] row = { "ts", 1L, 0.5, null };
+		long h = PollSchedule.fingerprint(0, "Order", row, 4, 0);
+		row[0] = "later";
+		assertEquals(h, PollSchedule.fingerprint(0, "Order", row, 4, 0));
+		row[1] = 2L;
+		assertFalse(h == PollSchedule.fingerprint(0, "Order", row, 4, 0));
+		assertFalse(h == PollSchedule.fingerprint(0, "Account", new Object[] { "ts", 1L, 0.5, null }, 4, 0));
+	}
+}
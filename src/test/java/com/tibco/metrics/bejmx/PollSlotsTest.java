@@ -0,0 +1,39 @@
+package com.tibco.metrics.bejmx;
+
+import junit.framework.TestCase;
+
+/**
+ * Scheduler slots are aligned to wall-clock multiples of the tick, and slots
+ * that passed while the scheduler overran are skipped.
+ */
+public class PollSlotsTest extends TestCase {
+
+	public void testAlignment() {
+		PollSlots slots = new PollSlots(10000, 12345);
+		assertEquals(20000, slots.getSlot());
+		assertEquals(20000, new PollSlots(10000, 10000).getSlot());
+
+		// a round that ends before the next slot continues at that slot
+		assertEquals(30000, slots.next(20500));
+		assertEquals(0, slots.getMissed());
+		assertEquals(40000, slots.next(39999));
+		assertEquals(0, slots.getMissed());
+	}
+
+	public void testOverrun() {
+		PollSlots slots = new PollSlots(10000, 0);
+		assertEquals(10000, slots.getSlot());
+
+		// the next slot is due when the round ends, so it is skipped
+		assertEquals(30000, slots.next(20000));
+		assertEquals(1, slots.getMissed());
+
+		// a stall over several slots continues aligned after the current time
+		assertEquals(80000, slots.next(75000));
+		assertEquals(4, slots.getMissed());
+
+		// back on time
+		assertEquals(90000, slots.next(80100));
+		assertEquals(0, slots.getMissed());
+	}
+}
@@ -0,0 +1,75 @@
+package com.tibco.metrics.bejmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Collector statistics keep a histogram of poll times, and are published as
+ * MBean attributes and report rows.
+ */
+public class PollStatsTest extends TestCase {
+
+	private AtomicLong reconnects = new AtomicLong(0);
+	private AtomicLong skipped = new AtomicLong(0);
+
+	public void testHistogram() {
+		assertEquals(0, PollStats.getBucket(0));
+		assertEquals(1, PollStats.getBucket(1));
+		assertEquals(2, PollStats.getBucket(3));
+		assertEquals(11, PollStats.getBucket(1024));
+		assertEquals(PollStats.BUCKETS - 1, PollStats.getBucket(3600000));
+
+		PollStats stats = new PollStats("e1", "BEEntityCache", reconnects, skipped);
+		assertEquals(0, stats.getP99PollMillis());
+		for (int i = 0; i < 98; i++) {
+			stats.addPoll(5000000L);
+		}
+		stats.addPoll(300000000L);
+		stats.addPoll(900000000L);
+		assertEquals(100, stats.getPolls());
+		assertEquals(98, stats.getPollMillisHistogram()[3]);
+		assertEquals(8, stats.getP50PollMillis());
+		assertEquals(8, stats.getP90PollMillis());
+		assertEquals(512, stats.getP99PollMillis());
+		assertEquals(900, stats.getMaxPollMillis());
+		assertEquals(900, stats.getLastPollMillis());
+		assertEquals(16.9, stats.getMeanPollMillis(), 1e-9);
+	}
+
+	public void testMBean() throws Exception {
+		PollStats stats = new PollStats("e1_host_9899", "BEAgentEntity", reconnects, skipped);
+		stats.addRoundTrips(3);
+		stats.addEntitiesFetched(10);
+		stats.addEntityFiltered();
+		stats.addBytesWritten(100);
+		stats.addError();
+		reconnects.incrementAndGet();
+		skipped.addAndGet(2);
+
+		stats.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"com.tibco.metrics.bejmx:type=PollStats,engine=e1_host_9899,statType=BEAgentEntity");
+		try {
+			assertEquals(3L, server.getAttribute(name, "RoundTrips"));
+			assertEquals(1L, server.getAttribute(name, "EntitiesFiltered"));
+			assertEquals(1L, server.getAttribute(name, "Reconnects"));
+			assertEquals(2L, server.getAttribute(name, "SkippedSlots"));
+		} finally {
+			stats.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+
+		Object[] row = stats.getRow(new Object[PollStats.COLUMNS.length], "ts");
+		assertEquals("ts", row[0]);
+		assertEquals(10L, row[11]);
+		assertEquals(100L, row[13]);
+		assertEquals(1L, row[14]);
+		assertEquals(2L, row[16]);
+	}
+}
@@ -0,0 +1,117 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Latest values of all engines are grouped by metric family, and served from
+ * a cached response.
+ */
+public class PrometheusExporterTest extends TestCase {
+
+	private static final String[] COLUMNS = { "ClassName", "DateTime", "CacheSize", "GetCount", "TypeId" };
+
+	private PrometheusExporter exporter;
+
+	protected void setUp() throws Exception {
+		exporter = new PrometheusExporter(0, 2);
+	}
+
+	protected void tearDown() {
+		exporter.stop();
+	}
+
+	public void testExposition() throws Exception {
+		String[] counters = { "GetCount" };
+		PrometheusExporter.Section s1 = exporter.addSection("e1", "h1", 9899, "BEEntityCache", COLUMNS, 1, 1,
+				counters);
+		PrometheusExporter.Section s2 = exporter.addSection("e2", "h2", 9898, "BEEntityCache", COLUMNS, 1, 1,
+				counters);
+		s1.begin();
+		s1.add("Order", new Object[] { "be.gen.Order", "ts", 10L, 42L, 1023 });
+		s1.add("Say \"hi\"", new Object[] { "x", "ts", 0.5, Double.POSITIVE_INFINITY, null });
+		s1.commit();
+		s2.begin();
+		s2.add("Order", new Object[] { "be.gen.Order", "ts", 7L, 1L, "n/a" });
+		s2.commit();
+
+		String expected = "# TYPE bejmx_BEEntityCache_CacheSize gauge\n"
+				+ "bejmx_BEEntityCache_CacheSize{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Order\"} 10\n"
+				+ "bejmx_BEEntityCache_CacheSize{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Say \\\"hi\\\"\"} 0.5\n"
+				+ "bejmx_BEEntityCache_CacheSize{engine=\"e2\",host=\"h2\",port=\"9898\",entity=\"Order\"} 7\n"
+				+ "# TYPE bejmx_BEEntityCache_GetCount_total counter\n"
+				+ "bejmx_BEEntityCache_GetCount_total{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Order\"} 42\n"
+				+ "bejmx_BEEntityCache_GetCount_total{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Say \\\"hi\\\"\"} +Inf\n"
+				+ "bejmx_BEEntityCache_GetCount_total{engine=\"e2\",host=\"h2\",port=\"9898\",entity=\"Order\"} 1\n"
+				+ "# TYPE bejmx_BEEntityCache_TypeId gauge\n"
+				+ "bejmx_BEEntityCache_TypeId{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Order\"} 1023\n";
+		byte[] body = exporter.getBody();
+		assertEquals(expected, new String(body, Charset.forName("UTF-8")));
+
+		// served from cache until the next poll
+		assertSame(body, exporter.getBody());
+		exporter.start();
+		assertEquals(expected, scrape());
+
+		s2.begin();
+		s2.commit();
+		assertNotSame(body, exporter.getBody());
+		assertFalse(scrape().contains("e2"));
+	}
+
+	public void testRemoveSection() throws Exception {
+		String[] counters = { "GetCount" };
+		PrometheusExporter.Section s1 = exporter.addSection("e1", "h1", 9899, "BEEntityCache", COLUMNS, 1, 1,
+				counters);
+		PrometheusExporter.Section s2 = exporter.addSection("e2", "h2", 9898, "BEEntityCache", COLUMNS, 1, 1,
+				counters);
+		s1.begin();
+		s1.add("Order", new Object[] { "be.gen.Order", "ts", 10L, 42L, 1023 });
+		s1.commit();
+		s2.begin();
+		s2.add("Order", new Object[] { "be.gen.Order", "ts", 7L, 1L, 1 });
+		s2.commit();
+		String body = new String(exporter.getBody(), Charset.forName("UTF-8"));
+		assertTrue(body.contains("engine=\"e1\"") && body.contains("engine=\"e2\""));
+
+		// values of a removed engine are no longer served
+		exporter.removeSection(s1);
+		body = new String(exporter.getBody(), Charset.forName("UTF-8"));
+		assertFalse(body.contains("engine=\"e1\""));
+		assertTrue(body.contains("engine=\"e2\""));
+
+		// a replacement with the same labels is served once
+		PrometheusExporter.Section s3 = exporter.addSection("e1", "h1", 9899, "BEEntityCache", COLUMNS, 1, 1,
+				counters);
+		s3.begin();
+		s3.add("Order", new Object[] { "be.gen.Order", "ts", 11L, 43L, 1023 });
+		s3.commit();
+		body = new String(exporter.getBody(), Charset.forName("UTF-8"));
+		assertTrue(body.contains(
+				"bejmx_BEEntityCache_CacheSize{engine=\"e1\",host=\"h1\",port=\"9899\",entity=\"Order\"} 11\n"));
+		assertEquals(3, body.split("engine=\"e1\"", -1).length - 1);
+
+		// nothing is served when all engines are removed
+		exporter.removeSection(s2);
+		exporter.removeSection(s3);
+		assertEquals(0, exporter.getBody().length);
+	}
+
+	private String scrape() throws Exception {
+		InputStream in = new URL("http://localhost:" + exporter.getPort() + "/metrics").openStream();
+		try {
+			StringBuilder str = new StringBuilder();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				str.append(new String(buf, 0, n, Charset.forName("UTF-8")));
+			}
+			return str.toString();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Rows are encoded as lines of the configured protocol, and pushed in batches
+ * to local sockets standing in for the metrics collector.
+ */
+public class PushExporterTest extends TestCase {
+
+	private static final String[] COLUMNS = { "ClassName", "DateTime", "CacheSize", "GetAvgTime", "Mode" };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long TIME = 1437733200000L;
+
+	private String encode(String protocol, String entity, Object[] row) {
+		PushExporter exporter = new PushExporter(protocol, PushExporter.UDP, "localhost", 2003, 1432, 1 << 20,
+				"bejmx");
+		CsvEncoder out = new CsvEncoder();
+		exporter.encode(out, "e1", "h1", 9899, "BEEntityCache", entity, COLUMNS, 1, 1, row, TIME);
+		return new String(out.toByteArray(), UTF8);
+	}
+
+	public void testLineFormats() {
+		Object[] row = { "be.gen.Order", "ts", 10L, 0.5, "x" };
+		assertEquals("bejmx.e1.BEEntityCache.Order.CacheSize 10 1437733200\n"
+				+ "bejmx.e1.BEEntityCache.Order.GetAvgTime 0.5 1437733200\n",
+				encode(PushExporter.GRAPHITE, "Order", row));
+		assertEquals("bejmx.e1.BEEntityCache.a_b.CacheSize:10|g\n" + "bejmx.e1.BEEntityCache.a_b.GetAvgTime:0.5|g\n",
+				encode(PushExporter.STATSD, "a.b", row));
+		assertEquals("bejmx_BEEntityCache,engine=e1,host=h1,port=9899,entity=My\\ Order CacheSize=10i,GetAvgTime=0.5 "
+				+ "1437733200000000000\n", encode(PushExporter.INFLUX, "My Order", row));
+
+		// rows without numbers are not pushed
+		assertEquals("", encode(PushExporter.INFLUX, "Order", new Object[] { "x", "ts", null, null, "x" }));
+	}
+
+	public void testUdpBatches() throws Exception {
+		DatagramSocket receiver = new DatagramSocket(0);
+		receiver.setSoTimeout(5000);
+		PushExporter exporter = new PushExporter(PushExporter.GRAPHITE, PushExporter.UDP, "localhost",
+				receiver.getLocalPort(), 512, 1 << 20, "bejmx");
+		exporter.start();
+		try {
+			CsvEncoder out = new CsvEncoder();
+			for (int i = 0; i < 100; i++) {
+				exporter.encode(out, "e1", "h1", 9899, "BEEntityCache", "Entity" + i, COLUMNS, 1, 1,
+						new Object[] { "x", "ts", (long) i, 1.5, "x" }, TIME);
+			}
+			int total = out.size();
+			exporter.submit(out.toByteArray());
+
+			// all lines arrive intact in few datagrams of at most MTU bytes
+			int received = 0;
+			int lines = 0;
+			int packets = 0;
+			byte[] buf = new byte[2048];
+			while (received < total) {
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				receiver.receive(packet);
+				assertTrue(packet.getLength() <= 512);
+				String text = new String(buf, 0, packet.getLength(), UTF8);
+				assertTrue(text.endsWith("\n"));
+				for (String line : text.split("\n")) {
+					assertTrue(line, line.matches("bejmx\\.e1\\.BEEntityCache\\.Entity\\d+\\.\\w+ [\\d.]+ 1437733200"));
+					lines++;
+				}
+				received += packet.getLength();
+				packets++;
+			}
+			assertEquals(200, lines);
+			assertTrue(packets < 30);
+			assertEquals(0, exporter.getDroppedBytes());
+		} finally {
+			exporter.shutdown(1000);
+			receiver.close();
+		}
+	}
+
+	public void testTcpStream() throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+		PushExporter exporter = new PushExporter(PushExporter.INFLUX, PushExporter.TCP, "localhost",
+				server.getLocalPort(), 1432, 1 << 20, "bejmx");
+		exporter.start();
+		Socket socket = null;
+		try {
+			StringBuilder expected = new StringBuilder();
+			for (int poll = 0; poll < 3; poll++) {
+				CsvEncoder out = new CsvEncoder();
+				exporter.encode(out, "e1", "h1", 9899, "BEEntityCache", "Order", COLUMNS, 1, 1,
+						new Object[] { "x", "ts", (long) poll, 2.5, "x" }, TIME + poll * 1000);
+				byte[] lines = out.toByteArray();
+				expected.append(new String(lines, UTF8));
+				exporter.submit(lines);
+			}
+
+			socket = server.accept();
+			socket.setSoTimeout(5000);
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[4096];
+			StringBuilder actual = new StringBuilder();
+			while (actual.length() < expected.length()) {
+				int n = in.read(buf);
+				assertTrue(n > 0);
+				actual.append(new String(buf, 0, n, UTF8));
+			}
+			assertEquals(expected.toString(), actual.toString());
+
+			// sent bytes are counted after the write returns
+			exporter.shutdown(1000);
+			assertEquals(expected.length(), exporter.getSentBytes());
+		} finally {
+			exporter.shutdown(1000);
+			if (socket != null) {
+				socket.close();
+			}
+			server.close();
+		}
+	}
+
+	public void testTcpShutdown() throws Exception {
+		ServerSocket probe = new ServerSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+		PushExporter exporter = new PushExporter(PushExporter.GRAPHITE, PushExporter.TCP, "localhost", port, 1432,
+				1 << 20, "bejmx");
+		exporter.start();
+		CsvEncoder out = new CsvEncoder();
+		exporter.encode(out, "e1", "h1", 9899, "BEEntityCache", "Order", COLUMNS, 1, 1,
+				new Object[] { "x", "ts", 1L, 2.5, "x" }, TIME);
+		byte[] lines = out.toByteArray();
+		exporter.submit(lines);
+
+		// the collector is not up yet, so the sender backs off
+		Thread.sleep(500);
+		ServerSocket server = new ServerSocket(port);
+		server.setSoTimeout(5000);
+		Socket socket = null;
+		try {
+			// pending data are sent after the backoff, before shutdown returns
+			exporter.shutdown(5000);
+			assertEquals(lines.length, exporter.getSentBytes());
+			assertEquals(0, exporter.getDroppedBytes());
+
+			socket = server.accept();
+			socket.setSoTimeout(5000);
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[4096];
+			StringBuilder actual = new StringBuilder();
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				actual.append(new String(buf, 0, n, UTF8));
+			}
+			assertEquals(new String(lines, UTF8), actual.toString());
+		} finally {
+			if (socket != null) {
+				socket.close();
+			}
+			server.close();
+		}
+	}
+
+	public void testBufferLimit() {
+		PushExporter exporter = new PushExporter(PushExporter.GRAPHITE, PushExporter.TCP, "localhost", 2003, 1432,
+				100, "bejmx");
+		exporter.submit(new byte[60]);
+		exporter.submit(new byte[60]);
+		assertEquals(60, exporter.getDroppedBytes());
+	}
+}
@@ -0,0 +1,182 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Rolled report files are compressed and removed, and archives are pruned by
+ * age and by total size.
+ */
+public class ReportArchiverTest extends TestCase {
+
+	private Path folder;
+
+	protected void setUp() throws IOException {
+		folder = Files.createTempDirectory("bejmx");
+	}
+
+	protected void tearDown() {
+		for (File f : folder.toFile().listFiles()) {
+			f.delete();
+		}
+		folder.toFile().delete();
+	}
+
+	private File create(String name, int size, long lastModified) throws IOException {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		File file = Files.write(folder.resolve(name), data).toFile();
+		file.setLastModified(lastModified);
+		return file;
+	}
+
+	private byte[] gunzip(File file) throws IOException {
+		InputStream in = new GZIPInputStream(new FileInputStream(file));
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testCompress() throws IOException {
+		long time = System.currentTimeMillis() - 60000L;
+		File file = create("e1_h_9899_BEEntityCache_2015_07_24.1.csv", 200000, time);
+		byte[] data = Files.readAllBytes(file.toPath());
+
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 0);
+		archiver.archive(file);
+		archiver.shutdown(5000);
+
+		File gz = folder.resolve("e1_h_9899_BEEntityCache_2015_07_24.1.csv.gz").toFile();
+		assertFalse(file.exists());
+		assertTrue(gz.exists());
+		assertEquals(time / 1000, gz.lastModified() / 1000);
+		assertTrue(Arrays.equals(data, gunzip(gz)));
+		assertEquals(1, folder.toFile().list().length);
+	}
+
+	public void testPruneByAge() throws IOException {
+		long now = System.currentTimeMillis();
+		File old = create("e1_BEEntityCache_2015_07_20.csv.gz", 100, now - TimeUnit.DAYS.toMillis(10));
+		File recent = create("e1_BEEntityCache_2015_07_28.csv.gz", 100, now - TimeUnit.DAYS.toMillis(2));
+		File other = create("notes.txt.gz", 100, now - TimeUnit.DAYS.toMillis(10));
+
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 7, 0);
+		archiver.archive(create("e1_BEEntityCache_2015_07_29.csv", 100, now));
+		archiver.shutdown(5000);
+
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		assertTrue(folder.resolve("e1_BEEntityCache_2015_07_29.csv.gz").toFile().exists());
+
+		// files that are not report archives are kept
+		assertTrue(other.exists());
+	}
+
+	public void testPruneBySize() throws IOException {
+		long now = System.currentTimeMillis();
+		File f1 = create("e1_BEEntityCache_2015_07_20.csv.gz", 1000, now - 30000L);
+		File f2 = create("e1_BEEntityCache_2015_07_21.bin.gz", 1000, now - 20000L);
+		File f3 = create("e1_BEEntityCache_2015_07_22.csv.gz", 1000, now - 10000L);
+
+		// oldest archives are deleted until the rest fit in the limit
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 2500);
+		archiver.archive(folder.resolve("missing.csv").toFile());
+		archiver.shutdown(5000);
+
+		assertFalse(f1.exists());
+		assertTrue(f2.exists());
+		assertTrue(f3.exists());
+	}
+
+	public void testRepeatedRollover() throws Exception {
+		ReportPolicy policy = new ReportPolicy(10, ReportPolicy.SYNC_NONE, 0, 60000);
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 0);
+		policy.setArchiver(archiver);
+		ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", "h\n", policy);
+		String name = file.getFilename();
+		for (int i = 0; i < 6; i++) {
+			byte[] row = String.format("row%d\n", i).getBytes("UTF-8");
+			file.write(row, 0, row.length);
+
+			// each rolled file is archived before the next rollover
+			long deadline = System.currentTimeMillis() + 5000;
+			while (folder.toFile().list().length != i + 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+		}
+		file.close();
+		archiver.shutdown(5000);
+
+		// sequence numbers of archived files are not reused
+		for (int seq = 1; seq <= 5; seq++) {
+			File gz = folder.resolve(name.replace(".csv", "." + seq + ".csv.gz")).toFile();
+			assertTrue(gz.getName(), gz.exists());
+			assertEquals(String.format("h\nrow%d\n", seq - 1), new String(gunzip(gz), "UTF-8"));
+		}
+		assertEquals(6, folder.toFile().list().length);
+	}
+
+	public void testExistingArchive() throws IOException {
+		long time = System.currentTimeMillis() - 60000L;
+		File gz = create("e1_BEEntityCache_2015_07_24.1.csv.gz", 100, time);
+		byte[] archived = Files.readAllBytes(gz.toPath());
+		File file = create("e1_BEEntityCache_2015_07_24.1.csv", 100, time);
+
+		// the archive is not replaced, and the file is kept
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 0);
+		archiver.archive(file);
+		archiver.shutdown(5000);
+		assertTrue(Arrays.equals(archived, Files.readAllBytes(gz.toPath())));
+		assertTrue(file.exists());
+		assertEquals(2, folder.toFile().list().length);
+	}
+
+	public void testArchiveStale() throws IOException {
+		long yesterday = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+		File report = create("e1_h_9899_BEEntityCache_2015_07_24.csv", 100, yesterday);
+		File rolled = create("e1_h_9899_BEEntityCache_2015_07_24.2.bin", 100, yesterday);
+		File current = create("e1_h_9899_BEEntityCache_2015_07_25.csv", 100, System.currentTimeMillis());
+
+		// file names must end with a date of a 4-digit year
+		File shortYear = create("e1_h_9899_BEEntityCache_15_07_24.csv", 100, yesterday);
+		File other = create("notes.csv", 100, yesterday);
+
+		// names generated for report files match the pattern
+		String name = new ReportFile(folder.toString(), "e1_h_9899", "RTCTxnManagerReport", "h\n",
+				ReportPolicy.getDefault()).getFilename();
+		File named = create(name, 100, yesterday);
+
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 0);
+		archiver.archiveStale();
+		archiver.shutdown(5000);
+
+		assertFalse(report.exists());
+		assertFalse(rolled.exists());
+		assertTrue(folder.resolve("e1_h_9899_BEEntityCache_2015_07_24.csv.gz").toFile().exists());
+		assertTrue(folder.resolve("e1_h_9899_BEEntityCache_2015_07_24.2.bin.gz").toFile().exists());
+		assertFalse(named.exists());
+		assertTrue(folder.resolve(name + ".gz").toFile().exists());
+		assertTrue(current.exists());
+		assertTrue(shortYear.exists());
+		assertTrue(other.exists());
+	}
+}
@@ -0,0 +1,160 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Report files are rolled over by size and by day with a header in each new
+ * file, are re-created when deleted or replaced, and are forced to disk as
+ * configured by the sync policy.
+ */
+public class ReportFileTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String HEADER = "h1,h2\n";
+
+	private Path folder;
+
+	protected void setUp() throws IOException {
+		folder = Files.createTempDirectory("bejmx");
+	}
+
+	protected void tearDown() {
+		for (File f : folder.toFile().listFiles()) {
+			f.delete();
+		}
+		folder.toFile().delete();
+	}
+
+	private String read(String name) throws IOException {
+		return new String(Files.readAllBytes(folder.resolve(name)), UTF8);
+	}
+
+	private void write(ReportFile file, String data) throws IOException {
+		byte[] bytes = data.getBytes(UTF8);
+		file.write(bytes, 0, bytes.length);
+	}
+
+	public void testFilename() {
+		ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", HEADER, ReportPolicy.getDefault());
+		String expected = String.format("e1_BEEntityCache_%1$tY_%1$tm_%1$td.csv", Calendar.getInstance());
+		assertEquals(expected, file.getFilename());
+	}
+
+	public void testSizeRollover() throws IOException {
+		ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", HEADER,
+				new ReportPolicy(28, ReportPolicy.SYNC_NONE, 0, 60000));
+		String name = file.getFilename();
+		write(file, "a,1\n");
+		write(file, "b,2\n");
+		write(file, "c,3\n");
+		write(file, "d,4\n");
+		write(file, "e,5\n");
+		assertEquals(HEADER + "a,1\nb,2\nc,3\nd,4\ne,5\n", read(name));
+
+		// the next row would exceed the limit, so a new file starts with the
+		// header, and the full file gets the first free sequence number
+		write(file, "f,6\n");
+		file.close();
+		String rolled = name.replace(".csv", ".1.csv");
+		assertEquals(HEADER + "a,1\nb,2\nc,3\nd,4\ne,5\n", read(rolled));
+		assertEquals(HEADER + "f,6\n", read(name));
+
+		// a row larger than the limit is still written to a new file
+		file = new ReportFile(folder.toString(), "e1", "BEEntityCache", HEADER,
+				new ReportPolicy(28, ReportPolicy.SYNC_NONE, 0, 60000));
+		write(file, "0123456789012345678901234567890123456789\n");
+		file.close();
+		assertEquals(HEADER + "f,6\n", read(name.replace(".csv", ".2.csv")));
+		assertEquals(HEADER + "0123456789012345678901234567890123456789\n", read(name));
+	}
+
+	public void testDailyRollover() throws Exception {
+		final String[] day = { "e1_BEEntityCache_2015_07_24.csv" };
+		final List<File> archived = new ArrayList<File>();
+		ReportPolicy policy = ReportPolicy.getDefault();
+		ReportArchiver archiver = new ReportArchiver(folder.toString(), 0, 0) {
+			public void archive(File file) {
+				archived.add(file);
+			}
+		};
+		policy.setArchiver(archiver);
+		ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", HEADER, policy) {
+			public String getFilename() {
+				return day[0];
+			}
+		};
+		write(file, "a,1\n");
+
+		// the first write of the next day closes and archives the old file
+		day[0] = "e1_BEEntityCache_2015_07_25.csv";
+		write(file, "b,2\n");
+		file.close();
+		archiver.shutdown(5000);
+		assertEquals(HEADER + "a,1\n", read("e1_BEEntityCache_2015_07_24.csv"));
+		assertEquals(HEADER + "b,2\n", read("e1_BEEntityCache_2015_07_25.csv"));
+		assertEquals(1, archived.size());
+		assertEquals("e1_BEEntityCache_2015_07_24.csv", archived.get(0).getName());
+	}
+
+	public void testDeletedFile() throws IOException {
+		ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", HEADER,
+				new ReportPolicy(0, ReportPolicy.SYNC_NONE, 0, 0));
+		String name = file.getFilename();
+		write(file, "a,1\n");
+		file.check();
+
+		Files.delete(folder.resolve(name));
+		try {
+			file.check();
+			fail("deleted file is not detected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("no longer exist"));
+		}
+
+		// the writer closes the file, and the next write re-creates it
+		file.close();
+		write(file, "b,2\n");
+		assertEquals(HEADER + "b,2\n", read(name));
+
+		// a file replaced by another one with the same name has a new file key
+		Path other = Files.write(folder.resolve("other.csv"), "x\n".getBytes(UTF8));
+		Files.move(other, folder.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+		try {
+			file.check();
+			fail("replaced file is not detected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("is replaced"));
+		}
+		file.close();
+	}
+
+	private long flushTwice(ReportPolicy policy) throws IOException {
+		ReportFile file = new ReportFile(folder.toString(), "e1", policy.getSync(), HEADER, policy);
+		byte[] row = "a,1\n".getBytes(UTF8);
+		file.append(row, 0, row.length);
+		file.flush();
+		file.append(row, 0, row.length);
+		file.flush();
+		file.close();
+		assertEquals(HEADER + "a,1\na,1\n", read(file.getFilename()));
+		return file.getSyncs();
+	}
+
+	public void testSyncPolicy() throws IOException {
+		assertEquals(0, flushTwice(new ReportPolicy(0, ReportPolicy.SYNC_NONE, 0, 60000)));
+		assertEquals(2, flushTwice(new ReportPolicy(0, ReportPolicy.SYNC_FLUSH, 0, 60000)));
+
+		// the second flush is within the sync interval
+		assertEquals(1, flushTwice(new ReportPolicy(0, ReportPolicy.SYNC_INTERVAL, 60000, 60000)));
+	}
+}
@@ -0,0 +1,156 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import junit.framework.TestCase;
+
+/**
+ * Batches queued beyond the capacity of the write pipeline are handled by the
+ * overflow policy, and buffered rows are written when the flush policy is
+ * triggered.
+ */
+public class ReportWriterTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Path folder;
+	private ReportFile file;
+
+	protected void setUp() throws IOException {
+		folder = Files.createTempDirectory("bejmx");
+		file = new ReportFile(folder.toString(), "e1", "BEEntityCache", "h\n", ReportPolicy.getDefault());
+	}
+
+	protected void tearDown() {
+		file.close();
+		for (File f : folder.toFile().listFiles()) {
+			f.delete();
+		}
+		folder.toFile().delete();
+	}
+
+	private byte[] bytes(String s) {
+		return s.getBytes(UTF8);
+	}
+
+	// content of the report file, or null if it is not yet written
+	private String content() throws IOException {
+		Path path = folder.resolve(file.getFilename());
+		return Files.exists(path) ? new String(Files.readAllBytes(path), UTF8) : null;
+	}
+
+	private String awaitContent(String expected, long timeoutMillis) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		String content = content();
+		while (!expected.equals(content) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			content = content();
+		}
+		return content;
+	}
+
+	public void testDrop() throws Exception {
+		// writer is not started, so the queue holds 2 batches
+		ReportWriter writer = new ReportWriter(2, ReportWriter.DROP, 60000, 1 << 20);
+		writer.submit(file, bytes("a\n"));
+		writer.submit(file, bytes("b\n"));
+		writer.submit(file, bytes("ccc\n"));
+		assertEquals(1, writer.getDroppedBatches());
+		assertEquals(4, writer.getDroppedBytes());
+
+		writer.start();
+		writer.shutdown(5000);
+		assertEquals("h\na\nb\n", content());
+	}
+
+	public void testDropOldest() throws Exception {
+		ReportWriter writer = new ReportWriter(2, ReportWriter.DROP_OLDEST, 60000, 1 << 20);
+		writer.submit(file, bytes("a\n"));
+		writer.submit(file, bytes("b\n"));
+		writer.submit(file, bytes("ccc\n"));
+		writer.submit(file, bytes("d\n"));
+		assertEquals(2, writer.getDroppedBatches());
+		assertEquals(4, writer.getDroppedBytes());
+
+		writer.start();
+		writer.shutdown(5000);
+		assertEquals("h\nccc\nd\n", content());
+	}
+
+	public void testBlock() throws Exception {
+		final ReportWriter writer = new ReportWriter(1, ReportWriter.BLOCK, 60000, 1 << 20);
+		writer.submit(file, bytes("a\n"));
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					writer.submit(file, bytes("b\n"));
+				} catch (InterruptedException e) {
+					// test fails on missing row
+				}
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());
+
+		// the producer continues when the writer takes the first batch
+		writer.start();
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		writer.shutdown(5000);
+		assertEquals("h\na\nb\n", content());
+		assertEquals(0, writer.getDroppedBatches());
+		assertEquals(0, writer.getDroppedBytes());
+	}
+
+	public void testClose() throws Exception {
+		ReportWriter writer = new ReportWriter(10, ReportWriter.BLOCK, 60000, 1 << 20);
+		writer.start();
+		try {
+			// buffered rows are written before the file is closed
+			writer.submit(file, bytes("a\n"));
+			writer.close(file);
+			assertEquals("h\na\n", awaitContent("h\na\n", 5000));
+
+			// the closed file is re-created by the next write
+			Files.delete(folder.resolve(file.getFilename()));
+			writer.submit(file, bytes("b\n"));
+			writer.close(file);
+			assertEquals("h\nb\n", awaitContent("h\nb\n", 5000));
+		} finally {
+			writer.shutdown(5000);
+		}
+	}
+
+	public void testFlushBytes() throws Exception {
+		ReportWriter writer = new ReportWriter(10, ReportWriter.BLOCK, 60000, 8);
+		writer.start();
+		try {
+			writer.submit(file, bytes("a\n"));
+			Thread.sleep(200);
+			assertNull(content());
+
+			// buffered bytes exceed the threshold
+			writer.submit(file, bytes("bbbbbbb\n"));
+			assertEquals("h\na\nbbbbbbb\n", awaitContent("h\na\nbbbbbbb\n", 5000));
+		} finally {
+			writer.shutdown(5000);
+		}
+	}
+
+	public void testFlushMillis() throws Exception {
+		ReportWriter writer = new ReportWriter(10, ReportWriter.BLOCK, 300, 1 << 20);
+		writer.start();
+		try {
+			// buffered bytes stay below the threshold until the interval expires
+			writer.submit(file, bytes("a\n"));
+			assertEquals("h\na\n", awaitContent("h\na\n", 5000));
+		} finally {
+			writer.shutdown(5000);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Rollups aggregate report rows of each bucket, and return a bucket when it
+ * is complete.
+ */
+public class RollupTest extends TestCase {
+
+	private static final String[] COLUMNS = { "ClassName", "DateTime", "CacheSize", "GetAvgTime", "Mode" };
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	public void testColumns() {
+		Rollup rollup = new Rollup(COLUMNS, 1, 1, 300);
+		assertEquals("5m", rollup.getName());
+		String[] cols = rollup.getColumns();
+		assertEquals(2 + 3 * 5, cols.length);
+		assertEquals("DateTime", cols[0]);
+		assertEquals("Samples", cols[1]);
+		assertEquals("CacheSizeMin", cols[2]);
+		assertEquals("GetAvgTimeLast", cols[10]);
+		assertEquals("ModeSum", cols[16]);
+		assertEquals("1h", Rollup.getName(3600));
+		assertEquals("90s", Rollup.getName(90));
+	}
+
+	public void testAggregates() {
+		Rollup rollup = new Rollup(COLUMNS, 1, 1, 60, UTC);
+		long t = 1437733200000L;
+		assertNull(rollup.roll(t));
+		rollup.add("Order", t, new Object[] { "Order", null, 10L, 0.5, "x" });
+		rollup.add("Account", t, new Object[] { "Account", null, 1L, null, "x" });
+
+		// rows of a retried poll are not counted twice
+		rollup.add("Order", t, new Object[] { "Order", null, 99L, 0.5, "x" });
+
+		assertNull(rollup.roll(t + 30000));
+		rollup.add("Order", t + 30000, new Object[] { "Order", null, 4L, 1.5, "x" });
+
+		StatSample sample = rollup.roll(t + 60000);
+		assertEquals(t, sample.getTime());
+		assertEquals(2, sample.getCount());
+		assertEquals("Order", sample.getLabel(0));
+		Object[] row = sample.getRow(0);
+		assertEquals(2L, row[1]);
+		assertEquals(4L, row[2]);
+		assertEquals(10L, row[3]);
+		assertEquals(7.0, row[4]);
+		assertEquals(4L, row[5]);
+		assertEquals(14L, row[6]);
+		assertEquals(0.5, row[7]);
+		assertEquals(1.5, row[8]);
+		assertEquals(1.0, row[9]);
+		assertEquals(1.5, row[10]);
+		assertEquals(2.0, row[11]);
+		assertNull(row[12]);
+
+		row = sample.getRow(1);
+		assertEquals(1L, row[1]);
+		assertNull(row[7]);
+
+		// empty bucket is not returned
+		assertNull(rollup.roll(t + 180000));
+		rollup.add("Account", t + 180000, new Object[] { "Account", null, 3L, null, "x" });
+		sample = rollup.roll(t + 240000);
+		assertEquals(1, sample.getCount());
+		assertEquals("Account", sample.getLabel(0));
+		assertEquals(3L, sample.getRow(0)[2]);
+	}
+
+	public void testChurn() {
+		Rollup rollup = new Rollup(COLUMNS, 1, 1, 60, UTC);
+		long t = 1437733200000L;
+		rollup.roll(t);
+		rollup.add("Order", t, new Object[] { "Order", null, 10L, 0.5, "x" });
+		rollup.add("Account", t, new Object[] { "Account", null, 1L, 0.5, "x" });
+		rollup.roll(t + 60000);
+		assertEquals(2, rollup.size());
+
+		// Account has no sample in a full bucket, so it is dropped
+		rollup.add("Order", t + 60000, new Object[] { "Order", null, 11L, 0.5, "x" });
+		assertEquals(1, rollup.roll(t + 120000).getCount());
+		assertEquals(1, rollup.size());
+
+		// a new entity reuses the slot without old values
+		rollup.add("Customer", t + 120000, new Object[] { "Customer", null, 5L, null, "x" });
+		StatSample sample = rollup.roll(t + 180000);
+		assertEquals(1, sample.getCount());
+		assertEquals("Customer", sample.getLabel(0));
+		assertEquals(1L, sample.getRow(0)[1]);
+		assertEquals(5L, sample.getRow(0)[6]);
+		assertNull(sample.getRow(0)[7]);
+	}
+
+	public void testLocalZone() {
+		// 1 hour buckets start at local hours of a zone 5:30 ahead of UTC
+		TimeZone zone = TimeZone.getTimeZone("Asia/Kolkata");
+		Rollup rollup = new Rollup(COLUMNS, 1, 1, 3600, zone);
+		long t = 1437733200000L; // 2015-07-24T10:20:00Z, 15:50 local
+		rollup.roll(t);
+		rollup.add("Order", t, new Object[] { "Order", null, 10L, 0.5, "x" });
+		assertNull(rollup.roll(t + 590000));
+		StatSample sample = rollup.roll(t + 600000);
+		assertEquals(t - 3000000, sample.getTime());
+
+		// a day of 25 hours when daylight saving time ends
+		zone = TimeZone.getTimeZone("Europe/Berlin");
+		rollup = new Rollup(COLUMNS, 1, 1, 86400, zone);
+		long midnight = 1445724000000L; // 2015-10-25T00:00:00+02:00
+		rollup.roll(midnight + 3600000);
+		rollup.add("Order", midnight + 3600000, new Object[] { "Order", null, 10L, 0.5, "x" });
+		assertNull(rollup.roll(midnight + 24 * 3600000L));
+		sample = rollup.roll(midnight + 25 * 3600000L);
+		assertEquals(midnight, sample.getTime());
+	}
+}
@@ -0,0 +1,143 @@
+package com.tibco.metrics.bejmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Report rows are written only if they match all predicates, and in
+ * change-suppression mode only if they changed or the heartbeat is due.
+ */
+public class RowFilterTest extends TestCase {
+
+	private static final String[] COLUMNS = { "CacheName", "DateTime", "CacheSize", "CacheMode", "GetCountRate" };
+
+	public void testPredicates() {
+		List<String> predicates = Arrays.asList("CacheSize > 0", "CacheMode != Memory");
+		RowFilter filter = new RowFilter(COLUMNS, 4, 1, predicates, false, 0);
+		filter.begin(0);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 0.0 }));
+		assertFalse(filter.accept("Account", new Object[] { "Account", "t", 0L, "Cache", 0.0 }));
+		assertFalse(filter.accept("Event", new Object[] { "Event", "t", 5L, "Memory", 0.0 }));
+		assertFalse(filter.accept("Unknown", new Object[] { "Unknown", "t", null, "Cache", 0.0 }));
+
+		// unchanged rows are written without suppression
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 0.0 }));
+
+		// derived columns can be filtered as well
+		filter = new RowFilter(COLUMNS, 4, 1, Collections.singletonList("GetCountRate>=1.5"), false, 0);
+		filter.begin(0);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 1.5 }));
+		assertFalse(filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 1.4 }));
+	}
+
+	public void testInvalidPredicates() {
+		RowFilter.validate("CacheSize <= 10", COLUMNS);
+		String[] invalid = { "CacheSize", "Size > 0", "CacheMode > Memory", "CacheSize ~ 1" };
+		for (String expr : invalid) {
+			try {
+				RowFilter.validate(expr, COLUMNS);
+				fail("Accepted invalid filter " + expr);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testSuppressUnchanged() {
+		List<String> none = Collections.emptyList();
+		RowFilter filter = new RowFilter(COLUMNS, 4, 1, none, true, 3);
+		boolean[] expected = { true, false, false, true, false };
+		for (int poll = 0; poll < expected.length; poll++) {
+			filter.begin(0);
+			// DateTime and derived columns change on every poll
+			Object[] row = { "Order", "t" + poll, 5L, "Cache", (double) poll };
+			assertEquals("poll " + poll, expected[poll], filter.accept("Order", row));
+			filter.end();
+		}
+
+		// changed values are written at once
+		filter.begin(0);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 6L, "Cache", 0.0 }));
+		filter.end();
+
+		// a new report file starts with all entities
+		filter.begin(1);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 6L, "Cache", 0.0 }));
+		filter.end();
+
+		// entities not seen by a poll are forgotten, and written when they
+		// come back
+		filter.begin(1);
+		filter.end();
+		filter.begin(1);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 6L, "Cache", 0.0 }));
+		filter.end();
+
+		// without heartbeat, unchanged rows are never written again
+		filter = new RowFilter(COLUMNS, 4, 1, none, true, 0);
+		for (int poll = 0; poll < 10; poll++) {
+			filter.begin(0);
+			assertEquals(0 == poll, filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 0.0 }));
+			filter.end();
+		}
+		filter.clear();
+		filter.begin(0);
+		assertTrue(filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 0.0 }));
+	}
+
+	public void testRollover() throws IOException {
+		Path folder = Files.createTempDirectory("bejmx");
+		try {
+			ReportFile file = new ReportFile(folder.toString(), "e1", "BEEntityCache", "h\n",
+					new ReportPolicy(40, ReportPolicy.SYNC_NONE, 0, 60000));
+			List<String> none = Collections.emptyList();
+			RowFilter filter = new RowFilter(COLUMNS, 4, 1, none, true, 0);
+			int generation = file.getGeneration();
+			for (int poll = 0; poll < 5; poll++) {
+				// Order is unchanged, and Account changes on every poll
+				filter.begin(file.getGeneration());
+				StringBuilder rows = new StringBuilder();
+				if (filter.accept("Order", new Object[] { "Order", "t", 5L, "Cache", 0.0 })) {
+					rows.append("Order\n");
+				}
+				if (filter.accept("Account", new Object[] { "Account", "t", (long) poll, "Cache", 0.0 })) {
+					rows.append("Account").append(poll).append('\n');
+				}
+				filter.end();
+				byte[] data = rows.toString().getBytes("UTF-8");
+				file.write(data, 0, data.length);
+			}
+			file.close();
+
+			// the size rollover keeps the file name, and all entities are
+			// written to the new file by the next poll
+			assertEquals(generation + 1, file.getGeneration());
+			String name = file.getFilename();
+			assertEquals("h\nOrder\nAccount0\nAccount1\nAccount2\n",
+					new String(Files.readAllBytes(folder.resolve(name.replace(".csv", ".1.csv"))), "UTF-8"));
+			assertEquals("h\nAccount3\nOrder\nAccount4\n",
+					new String(Files.readAllBytes(folder.resolve(name)), "UTF-8"));
+		} finally {
+			for (File f : folder.toFile().listFiles()) {
+				f.delete();
+			}
+			folder.toFile().delete();
+		}
+	}
+
+	public void testFingerprint() {
+		Object[] row = { "Order", "t", 5L, 0.25 };
+		long h = RowFilter.fingerprint(row, 4, 1);
+		assertEquals(h, RowFilter.fingerprint(new Object[] { "Order", "later", 5L, 0.25 }, 4, 1));
+		assertFalse(h == RowFilter.fingerprint(new Object[] { "Order", "t", 5L, 0.2500001 }, 4, 1));
+		assertFalse(h == RowFilter.fingerprint(new Object[] { "Order", "t", 6L, 0.25 }, 4, 1));
+		assertFalse(h == RowFilter.fingerprint(new Object[] { "Order", "t", null, 0.25 }, 4, 1));
+	}
+}
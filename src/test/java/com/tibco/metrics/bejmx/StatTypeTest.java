@@ -0,0 +1,87 @@
+package com.tibco.metrics.bejmx;
+
+import java.util.Properties;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Stat types are parsed from configuration properties, and compiled into the
+ * column indexes of report rows.
+ */
+public class StatTypeTest extends TestCase {
+
+	public void testBuiltIn() throws Exception {
+		StatType cache = StatType.get("BEEntityCache");
+		assertEquals(1, cache.getFirstColumn());
+		assertEquals(1, cache.getDateColumn());
+		assertEquals("ClassName", cache.getLabelColumn());
+		assertEquals("Order", cache.getLabel("be.gen.Order", new Object[] { "be.gen.Order", null }));
+		assertNull(cache.getLabel("x", new Object[] { null, null }));
+
+		StatType agent = StatType.get("BEAgentEntity");
+		ObjectName on = new ObjectName("com.tibco.be:type=Agent,agentId=1,subType=Entity,entityId=be.gen.Account");
+		assertEquals("be.gen.Account", agent.getEntityName(on));
+		assertEquals("Account", agent.getLabel(agent.getEntityName(on), new Object[1]));
+		assertTrue(agent.hasEntities());
+
+		StatType rtc = StatType.get("RTCTxnManagerReport");
+		assertFalse(rtc.hasEntities());
+		assertEquals("resetStats", rtc.getResetOperation());
+		assertEquals("RTCTxnManagerReport", rtc.getEntityName(new ObjectName(rtc.getPattern())));
+		assertEquals("Object,DateTime,A\n", rtc.getHeader(new String[] { "DateTime", "A" }));
+		assertNull(StatType.get("Undefined"));
+	}
+
+	public void testParse() throws Exception {
+		Properties props = new Properties();
+		props.setProperty("statType.Channel.pattern", "com.tibco.be:type=Channel,name=*");
+		props.setProperty("statType.Channel.entity", "name");
+		props.setProperty("statType.Channel.columns", "Received, DateTime ,Rate");
+		props.setProperty("statType.Channel.counters", "Received");
+		props.setProperty("statType.Channel.strip", "ch.");
+		props.setProperty("statType.Channel.reset", " ");
+		StatType type = StatType.parse("Channel", props);
+		assertEquals(0, type.getFirstColumn());
+		assertEquals(1, type.getDateColumn());
+		assertEquals("DateTime", type.getColumns()[1]);
+		assertEquals("Received", type.getCounters()[0]);
+		assertNull(type.getResetOperation());
+		assertEquals("in", type.getLabel(type.getEntityName(new ObjectName("com.tibco.be:type=Channel,name=ch.in")),
+				new Object[3]));
+
+		StatType.define(type);
+		Client client = new Client("e", "localhost", 0, null, null);
+		client.setStatTypes(new String[] { "Channel" });
+		assertEquals("Object,Received,DateTime,Rate\n", client.getHeader("Channel"));
+		assertEquals(1, client.getCounterColumns("Channel").length);
+	}
+
+	public void testInvalid() {
+		Properties props = new Properties();
+		props.setProperty("statType.Bad.pattern", "com.tibco.be:name=*");
+		props.setProperty("statType.Bad.columns", "A,B");
+		assertInvalid("Bad", props);
+		props.setProperty("statType.Bad.columns", "A,DateTime");
+		props.setProperty("statType.Bad.entityColumn", "DateTime");
+		assertInvalid("Bad", props);
+		props.remove("statType.Bad.entityColumn");
+		props.setProperty("statType.Bad.counters", "C");
+		assertInvalid("Bad", props);
+		props.remove("statType.Bad.counters");
+		props.setProperty("statType.Bad.pattern", "no domain");
+		assertInvalid("Bad", props);
+		props.remove("statType.Bad.pattern");
+		assertInvalid("Bad", props);
+	}
+
+	private void assertInvalid(String name, Properties props) {
+		try {
+			StatType.parse(name, props);
+			fail("Expected invalid stat type");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}